@@ -34,6 +34,7 @@ android {
 }
 
 dependencies {
+    implementation(project(":tapengine"))
     implementation(libs.appcompat)
     implementation(libs.material)
     testImplementation(libs.junit)
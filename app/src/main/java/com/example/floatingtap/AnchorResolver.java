@@ -0,0 +1,310 @@
+package com.example.floatingtap;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.example.floatingtap.engine.AnchorCache;
+import com.example.floatingtap.engine.NodeAnchor;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a running marker set's anchored markers on their views. Each anchor's node and bounds
+ * are cached; content changes mark only the entries from the window that changed as stale,
+ * and a stale entry is first re-read from its cached node (one call, no tree walk). Only a
+ * node that has gone away is searched for again from the window root. Every node read that
+ * isn't kept in the cache is recycled, and {@link #release()} recycles the cache. Main thread
+ * only, apart from {@link #capture}.
+ */
+final class AnchorResolver {
+
+    // What can move a view: its window's content changing or scrolling, or another window
+    static final int EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+    // Longer text is content, not a label worth finding a view by
+    private static final int MAX_ANCHOR_TEXT_LENGTH = 40;
+    // Fixed markers are parked in a window no event names, so they never go stale
+    private static final int NO_WINDOW = Integer.MIN_VALUE;
+
+    private final NodeAnchor[] anchors; // Null for markers placed where no view could be read
+    private final AccessibilityNodeInfo[] nodes; // Node each anchor was last found at
+    private final AnchorCache cache;
+    // Where each marker taps now; replaced, never written, so schedules can keep the old arrays
+    private int[] xs;
+    private int[] ys;
+    private final Rect bounds = new Rect();
+
+    AnchorResolver(NodeAnchor[] anchors, int[] xs, int[] ys) {
+        this.anchors = anchors;
+        this.nodes = new AccessibilityNodeInfo[anchors.length];
+        this.cache = new AnchorCache(anchors.length);
+        this.xs = xs;
+        this.ys = ys;
+        for (int i = 0; i < anchors.length; i++) {
+            if (anchors[i] == null) {
+                cache.put(i, NO_WINDOW, xs[i], ys[i], xs[i], ys[i]);
+            }
+        }
+    }
+
+    int[] getXs() {
+        return xs;
+    }
+
+    int[] getYs() {
+        return ys;
+    }
+
+    /** The one package every anchor is in, or null if they span several. */
+    String packageName() {
+        String packageName = null;
+        for (NodeAnchor anchor : anchors) {
+            if (anchor == null) {
+                continue;
+            }
+            if (packageName == null) {
+                packageName = anchor.packageName;
+            } else if (!packageName.equals(anchor.packageName)) {
+                return null;
+            }
+        }
+        return packageName;
+    }
+
+    void onEvent(AccessibilityEvent event) {
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                cache.invalidateWindow(event.getWindowId());
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+                invalidateAll();
+                break;
+        }
+    }
+
+    /** The markers' new places after the screen turned; every anchor is looked up again. */
+    void moveTo(int[] xs, int[] ys) {
+        this.xs = xs;
+        this.ys = ys;
+        invalidateAll();
+    }
+
+    private void invalidateAll() {
+        cache.invalidateAll();
+        for (int i = 0; i < anchors.length; i++) {
+            if (anchors[i] == null) {
+                cache.put(i, NO_WINDOW, xs[i], ys[i], xs[i], ys[i]);
+            }
+        }
+    }
+
+    /**
+     * Looks up every stale anchor; the window root is fetched only if a cached node can't be
+     * re-read. An anchor that can't be found keeps its last position and is retried on the
+     * next change. Returns true if any marker's tap position moved.
+     */
+    boolean resolve(AccessibilityService service) {
+        if (cache.invalidCount() == 0) {
+            return false;
+        }
+        int[] newXs = null;
+        int[] newYs = null;
+        AccessibilityNodeInfo root = null;
+        boolean rootFetched = false;
+        try {
+            for (int i = 0; i < anchors.length; i++) {
+                NodeAnchor anchor = anchors[i];
+                if (cache.isValid(i)) {
+                    continue;
+                }
+                AccessibilityNodeInfo node = nodes[i];
+                if (node == null || !node.refresh() || !node.isVisibleToUser()
+                        || !anchor.matches(node.getViewIdResourceName(), node.getText())) {
+                    if (!rootFetched) {
+                        root = service.getRootInActiveWindow();
+                        rootFetched = true;
+                    }
+                    node = find(anchor, root, xs[i], ys[i]);
+                    if (node == null) {
+                        continue;
+                    }
+                    recycle(nodes[i]);
+                }
+                nodes[i] = node;
+                node.getBoundsInScreen(bounds);
+                cache.put(i, node.getWindowId(), bounds.left, bounds.top, bounds.right, bounds.bottom);
+                int x = anchor.pointX(bounds.left, bounds.right);
+                int y = anchor.pointY(bounds.top, bounds.bottom);
+                if (x != xs[i] || y != ys[i]) {
+                    if (newXs == null) {
+                        newXs = xs.clone();
+                        newYs = ys.clone();
+                    }
+                    newXs[i] = x;
+                    newYs[i] = y;
+                }
+            }
+        } finally {
+            // Never cached itself: find hands out a copy when the anchor is the root
+            recycle(root);
+        }
+        if (newXs == null) {
+            return false;
+        }
+        xs = newXs;
+        ys = newYs;
+        return true;
+    }
+
+    /** Recycles the cached nodes; for when the marker set stops or is replaced. */
+    void release() {
+        for (int i = 0; i < nodes.length; i++) {
+            recycle(nodes[i]);
+            nodes[i] = null;
+        }
+        cache.invalidateAll();
+    }
+
+    /**
+     * By id, then exact text, then class path; among several matches, the one nearest (x, y).
+     * The node returned is never {@code root} itself, which the caller recycles.
+     */
+    @SuppressWarnings("deprecation")
+    private AccessibilityNodeInfo find(NodeAnchor anchor, AccessibilityNodeInfo root, int x, int y) {
+        if (root == null || root.getPackageName() == null || !anchor.packageName.contentEquals(root.getPackageName())) {
+            return null;
+        }
+        if (anchor.viewId != null) {
+            AccessibilityNodeInfo node = nearest(root.findAccessibilityNodeInfosByViewId(anchor.viewId), null, x, y);
+            if (node != null) {
+                return node;
+            }
+        }
+        if (anchor.text != null) {
+            AccessibilityNodeInfo node = nearest(root.findAccessibilityNodeInfosByText(anchor.text), anchor, x, y);
+            if (node != null) {
+                return node;
+            }
+        }
+        AccessibilityNodeInfo node = root;
+        for (int level = 0; level < anchor.depth() && node != null; level++) {
+            if (level > 0) {
+                int index = anchor.getPathIndex(level);
+                AccessibilityNodeInfo child = index < node.getChildCount() ? node.getChild(index) : null;
+                if (node != root) {
+                    recycle(node);
+                }
+                node = child;
+            }
+            if (node != null && !anchor.matchesPathClass(level, node.getClassName())) {
+                if (node != root) {
+                    recycle(node);
+                }
+                node = null;
+            }
+        }
+        return node == root ? AccessibilityNodeInfo.obtain(root) : node;
+    }
+
+    /** The visible candidate nearest (x, y), with the exact text if {@code byText} is given; the rest are recycled. */
+    private AccessibilityNodeInfo nearest(List<AccessibilityNodeInfo> candidates, NodeAnchor byText, int x, int y) {
+        AccessibilityNodeInfo best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            AccessibilityNodeInfo candidate = candidates.get(i);
+            // Search by text matches substrings, ignoring case
+            if (!candidate.isVisibleToUser() || (byText != null && !byText.hasText(candidate.getText()))) {
+                recycle(candidate);
+                continue;
+            }
+            candidate.getBoundsInScreen(bounds);
+            long dx = bounds.centerX() - x;
+            long dy = bounds.centerY() - y;
+            if (dx * dx + dy * dy < bestDistance) {
+                bestDistance = dx * dx + dy * dy;
+                recycle(best);
+                best = candidate;
+            } else {
+                recycle(candidate);
+            }
+        }
+        return best;
+    }
+
+    /** Hands a node back to the system's pool; from Android 13 that does nothing and the GC takes it. */
+    @SuppressWarnings("deprecation")
+    static void recycle(AccessibilityNodeInfo node) {
+        if (node != null) {
+            node.recycle();
+        }
+    }
+
+    static void recycleAll(List<AccessibilityNodeInfo> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            recycle(nodes.get(i));
+        }
+    }
+
+    /**
+     * Describes the innermost visible view under {@code (x, y)} in the active window, or
+     * returns null if the window can't be read. Later children are drawn on top of earlier
+     * ones, so they're preferred. Each step down is a call into the app's process, so this
+     * runs off the main thread; it touches nothing else here.
+     */
+    static NodeAnchor capture(AccessibilityService service, int x, int y) {
+        AccessibilityNodeInfo root = service.getRootInActiveWindow();
+        if (root == null) {
+            return null;
+        }
+        if (root.getPackageName() == null || root.getClassName() == null) {
+            recycle(root);
+            return null;
+        }
+        String packageName = root.getPackageName().toString();
+        Rect bounds = new Rect();
+        ArrayList<String> classes = new ArrayList<>();
+        ArrayList<Integer> indices = new ArrayList<>();
+        classes.add(root.getClassName().toString());
+        indices.add(0);
+        AccessibilityNodeInfo node = root;
+        while (true) {
+            AccessibilityNodeInfo next = null;
+            int nextIndex = -1;
+            for (int i = node.getChildCount() - 1; i >= 0 && next == null; i--) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child == null) {
+                    continue;
+                }
+                child.getBoundsInScreen(bounds);
+                if (child.getClassName() != null && child.isVisibleToUser() && bounds.contains(x, y)) {
+                    next = child;
+                    nextIndex = i;
+                } else {
+                    recycle(child);
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            recycle(node);
+            node = next;
+            classes.add(node.getClassName().toString());
+            indices.add(nextIndex);
+        }
+
+        node.getBoundsInScreen(bounds);
+        CharSequence text = node.getText();
+        String viewId = node.getViewIdResourceName();
+        recycle(node);
+        int[] pathIndices = new int[indices.size()];
+        for (int i = 0; i < pathIndices.length; i++) {
+            pathIndices[i] = indices.get(i);
+        }
+        return new NodeAnchor(packageName, viewId,
+                text != null && text.length() > 0 && text.length() <= MAX_ANCHOR_TEXT_LENGTH ? text.toString() : null,
+                classes.toArray(new String[0]), pathIndices,
+                NodeAnchor.fraction(x, bounds.left, bounds.right), NodeAnchor.fraction(y, bounds.top, bounds.bottom));
+    }
+}
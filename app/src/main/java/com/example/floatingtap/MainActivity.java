@@ -1,7 +1,10 @@
 package com.example.floatingtap;
 
+import android.Manifest;
 import android.app.Activity;
+import android.app.AlarmManager;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -13,6 +16,7 @@ import android.widget.Toast;
 public class MainActivity extends Activity {
 
     private static final int REQUEST_CODE_OVERLAY = 1001;
+    private static final int REQUEST_CODE_NOTIFICATIONS = 1002;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -21,6 +25,7 @@ public class MainActivity extends Activity {
 
         Button enableAccessibilityButton = findViewById(R.id.enableAccessibilityButton);
         Button enableOverlayButton = findViewById(R.id.enableOverlayButton);
+        Button enableAlarmsButton = findViewById(R.id.enableAlarmsButton);
         Button startServiceButton = findViewById(R.id.startServiceButton);
 
         enableAccessibilityButton.setOnClickListener(new View.OnClickListener() {
@@ -51,6 +56,30 @@ public class MainActivity extends Activity {
             }
         });
 
+        // Before Android 12 exact alarms need no grant
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+            enableAlarmsButton.setVisibility(View.GONE);
+        }
+        enableAlarmsButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+                    return;
+                }
+                AlarmManager alarmManager = getSystemService(AlarmManager.class);
+                if (!alarmManager.canScheduleExactAlarms()) {
+                    // Optional: without it, slow taps keep time only while the screen is on
+                    Intent intent = new Intent(Settings.ACTION_REQUEST_SCHEDULE_EXACT_ALARM,
+                            Uri.parse("package:" + getPackageName()));
+                    startActivity(intent);
+                } else {
+                    Toast.makeText(MainActivity.this,
+                            "Exact alarms already allowed!",
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+
         startServiceButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -69,8 +98,19 @@ public class MainActivity extends Activity {
                     return;
                 }
 
+                // Without it the service still runs in the foreground; only its notification is hidden
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                        && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+                    requestPermissions(new String[] {Manifest.permission.POST_NOTIFICATIONS}, REQUEST_CODE_NOTIFICATIONS);
+                }
+
+                // Foreground, so the system keeps the overlay and its taps alive under memory pressure
                 Intent intent = new Intent(MainActivity.this, OverlayService.class);
-                startService(intent);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    startForegroundService(intent);
+                } else {
+                    startService(intent);
+                }
                 Toast.makeText(MainActivity.this,
                         "Floating bubble started! Press Home button.",
                         Toast.LENGTH_LONG).show();
@@ -0,0 +1,264 @@
+package com.example.floatingtap;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws every tap marker, numbered, in one overlay window. Markers are painted once into a
+ * cached bitmap as they're added, so a frame is one bitmap blit plus the highlight ring no
+ * matter how many markers there are, and adding a marker or moving the highlight only
+ * invalidates the pixels around the markers involved. While markers are being dragged they
+ * are lifted out of the bitmap and drawn live, so a drag frame costs only as much as the
+ * markers being moved.
+ */
+class MarkerCanvasView extends View {
+
+    static final int MARKER_RADIUS = 20;
+    private static final int HIGHLIGHT_RADIUS = 28;
+    // Half the ring's stroke, so its dirty rect covers the antialiased edge
+    private static final int HIGHLIGHT_STROKE = 6;
+
+    private final List<OverlayService.TapMarker> markers;
+    private final List<OverlayService.TapMarker> selection;
+    private final Paint markerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint highlightPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint selectionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    // Markers hold raw screen coordinates; this is where the window actually starts
+    private final int[] screenOffset = new int[2];
+
+    private Bitmap cache;
+    private Canvas cacheCanvas;
+    private int cachedCount = 0; // markers [0, cachedCount) are already painted into the cache
+    private int highlighted = -1;
+
+    // Selected markers lifted out of the cache during a drag, with their list positions for labels
+    private boolean lifted = false;
+    private OverlayService.TapMarker[] liftedMarkers = new OverlayService.TapMarker[16];
+    private int[] liftedIndices = new int[16];
+    private int liftedCount = 0;
+    private boolean boxVisible = false;
+    private int boxLeft, boxTop, boxRight, boxBottom;
+
+    MarkerCanvasView(Context context, List<OverlayService.TapMarker> markers,
+                     List<OverlayService.TapMarker> selection) {
+        super(context);
+        this.markers = markers;
+        this.selection = selection;
+        markerPaint.setColor(Color.parseColor("#ff6b6b"));
+        labelPaint.setColor(Color.WHITE);
+        labelPaint.setTextSize(18);
+        labelPaint.setTextAlign(Paint.Align.CENTER);
+        highlightPaint.setColor(Color.parseColor("#4ecca3"));
+        highlightPaint.setStyle(Paint.Style.STROKE);
+        highlightPaint.setStrokeWidth(HIGHLIGHT_STROKE);
+        selectionPaint.setColor(Color.parseColor("#ffd166"));
+        selectionPaint.setStyle(Paint.Style.STROKE);
+        selectionPaint.setStrokeWidth(3);
+    }
+
+    /** Paints markers appended since the last call; costs only as much as the new markers. */
+    void onMarkersAdded() {
+        if (cacheCanvas == null) {
+            // Not laid out yet; the first draw paints everything
+            return;
+        }
+        for (int i = cachedCount; i < markers.size(); i++) {
+            paintMarker(i);
+            invalidateAround(i, MARKER_RADIUS);
+        }
+        cachedCount = markers.size();
+    }
+
+    /** Forgets every painted marker and repaints from the list, e.g. after markers moved. */
+    void onMarkersChanged() {
+        if (cache != null) {
+            cache.eraseColor(Color.TRANSPARENT);
+        }
+        cachedCount = 0;
+        highlighted = Math.min(highlighted, markers.size() - 1);
+        invalidate();
+    }
+
+    /**
+     * Lets the cache bitmap go while the window is hidden with no markers; the window itself
+     * stays attached, and the next draw builds a fresh cache.
+     */
+    void clear() {
+        releaseCache();
+        highlighted = -1;
+        boxVisible = false;
+        invalidate();
+    }
+
+    /** Redraws the selection rings; the cache is untouched. */
+    void onSelectionChanged() {
+        invalidate();
+    }
+
+    /**
+     * Takes the selected markers out of the cache so they can follow a drag; one full repaint
+     * here, then every drag frame draws only the lifted markers on top of the cache.
+     */
+    void liftSelection() {
+        liftedCount = 0;
+        for (int i = 0; i < markers.size(); i++) {
+            OverlayService.TapMarker marker = markers.get(i);
+            if (!marker.selected) {
+                continue;
+            }
+            if (liftedCount == liftedMarkers.length) {
+                liftedMarkers = Arrays.copyOf(liftedMarkers, liftedCount * 2);
+                liftedIndices = Arrays.copyOf(liftedIndices, liftedCount * 2);
+            }
+            liftedMarkers[liftedCount] = marker;
+            liftedIndices[liftedCount] = i;
+            liftedCount++;
+        }
+        lifted = true;
+        onMarkersChanged();
+    }
+
+    /** Paints the lifted markers back into the cache where they were dropped. */
+    void dropSelection() {
+        if (!lifted) {
+            return;
+        }
+        lifted = false;
+        if (cacheCanvas != null && cachedCount == markers.size()) {
+            for (int i = 0; i < liftedCount; i++) {
+                paintMarker(cacheCanvas, liftedMarkers[i], liftedIndices[i]);
+            }
+        } else {
+            cachedCount = 0; // Not fully painted yet; let the next draw do it all
+        }
+        Arrays.fill(liftedMarkers, 0, liftedCount, null);
+        liftedCount = 0;
+        invalidate();
+    }
+
+    /** Shows the rubber-band rectangle of a box selection, in screen coordinates. */
+    void setSelectionBox(int left, int top, int right, int bottom) {
+        boxVisible = true;
+        boxLeft = Math.min(left, right);
+        boxTop = Math.min(top, bottom);
+        boxRight = Math.max(left, right);
+        boxBottom = Math.max(top, bottom);
+        invalidate();
+    }
+
+    void hideSelectionBox() {
+        boxVisible = false;
+        invalidate();
+    }
+
+    /** Moves the active-tap ring to marker {@code index}, or hides it with -1. */
+    void setHighlighted(int index) {
+        if (index == highlighted) {
+            return;
+        }
+        if (highlighted >= 0) {
+            invalidateAround(highlighted, HIGHLIGHT_RADIUS + HIGHLIGHT_STROKE);
+        }
+        highlighted = index < markers.size() ? index : -1;
+        if (highlighted >= 0) {
+            invalidateAround(highlighted, HIGHLIGHT_RADIUS + HIGHLIGHT_STROKE);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        // Built at the new size on the next draw
+        releaseCache();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        int oldX = screenOffset[0];
+        int oldY = screenOffset[1];
+        getLocationOnScreen(screenOffset);
+        if (screenOffset[0] != oldX || screenOffset[1] != oldY) {
+            onMarkersChanged();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseCache();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (cache == null) {
+            if (getWidth() <= 0 || getHeight() <= 0) {
+                return;
+            }
+            cache = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            cacheCanvas = new Canvas(cache);
+        }
+        // Catch up on markers added before the cache existed
+        for (int i = cachedCount; i < markers.size(); i++) {
+            if (!lifted || !markers.get(i).selected) {
+                paintMarker(i);
+            }
+        }
+        cachedCount = markers.size();
+
+        canvas.drawBitmap(cache, 0, 0, null);
+        for (int i = 0; i < liftedCount; i++) {
+            paintMarker(canvas, liftedMarkers[i], liftedIndices[i]);
+        }
+        for (int i = 0; i < selection.size(); i++) {
+            OverlayService.TapMarker marker = selection.get(i);
+            canvas.drawCircle(marker.x - screenOffset[0], marker.y - screenOffset[1],
+                    MARKER_RADIUS + 4, selectionPaint);
+        }
+        if (boxVisible) {
+            canvas.drawRect(boxLeft - screenOffset[0], boxTop - screenOffset[1],
+                    boxRight - screenOffset[0], boxBottom - screenOffset[1], selectionPaint);
+        }
+        if (highlighted >= 0) {
+            OverlayService.TapMarker marker = markers.get(highlighted);
+            canvas.drawCircle(marker.x - screenOffset[0], marker.y - screenOffset[1],
+                    HIGHLIGHT_RADIUS, highlightPaint);
+        }
+    }
+
+    private void paintMarker(int index) {
+        paintMarker(cacheCanvas, markers.get(index), index);
+    }
+
+    private void paintMarker(Canvas canvas, OverlayService.TapMarker marker, int index) {
+        float cx = marker.x - screenOffset[0];
+        float cy = marker.y - screenOffset[1];
+        canvas.drawCircle(cx, cy, MARKER_RADIUS, markerPaint);
+        // Baseline so the label sits vertically centred in the circle
+        float baseline = cy - (labelPaint.ascent() + labelPaint.descent()) / 2;
+        canvas.drawText(String.valueOf(index + 1), cx, baseline, labelPaint);
+    }
+
+    private void invalidateAround(int index, int radius) {
+        OverlayService.TapMarker marker = markers.get(index);
+        int cx = marker.x - screenOffset[0];
+        int cy = marker.y - screenOffset[1];
+        invalidate(cx - radius, cy - radius, cx + radius + 1, cy + radius + 1);
+    }
+
+    private void releaseCache() {
+        if (cache != null) {
+            cache.recycle();
+            cache = null;
+            cacheCanvas = null;
+        }
+        cachedCount = 0;
+    }
+}
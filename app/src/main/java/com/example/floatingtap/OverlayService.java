@@ -1,54 +1,687 @@
 package com.example.floatingtap;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.content.res.Configuration;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
-import android.graphics.Rect;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.view.Display;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.MotionEvent;
 import android.view.View;
-import android.view.ViewGroup;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import com.example.floatingtap.engine.NodeAnchor;
+import com.example.floatingtap.engine.PatternLibrary;
+import com.example.floatingtap.engine.ScreenSpace;
+import com.example.floatingtap.engine.SessionSnapshot;
+import com.example.floatingtap.engine.SpatialGrid;
+import com.example.floatingtap.engine.StrokeRecorder;
+import com.example.floatingtap.engine.TapPattern;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class OverlayService extends Service {
 
     private WindowManager windowManager;
     private View floatingView;
-    private View controlPanel;
-    private View markerOverlay;
+    private View controlPanel; // Inflated once; hidden rather than removed between toggles
+    private WindowManager.LayoutParams controlPanelParams;
+    private final DisplayMetrics displayMetrics = new DisplayMetrics();
+    // The screen as it's turned now; rebuilt when the configuration changes, not per tap
+    private ScreenSpace screenSpace;
+    private View markerOverlay; // Captures marker edits and recorded touches; hidden in between
+    private WindowManager.LayoutParams markerOverlayParams;
+    private MarkerCanvasView markerCanvas; // Draws all markers in one window, hidden while there are none
+    private final OverlayTouchRouter touchRouter = new OverlayTouchRouter();
     private View stopRecordingButton;
     private boolean isPanelVisible = false;
+    private boolean isPatternListStale = false; // The library changed while the panel was hidden
     private boolean isAddingMarkers = false;
     private boolean isRunning = false;
     private boolean isRecording = false;
-    private boolean isPlayingPattern = false;
+    // Library ids of every pattern playing; each is its own source in the tap engine
+    private final HashSet<Integer> playingPatternIds = new HashSet<>();
+    private final HashSet<Integer> triggeredPatternIds = new HashSet<>(); // Those playing on screen changes
+    private final HashMap<Integer, Float> playingPatternSpeeds = new HashMap<>(); // Speed each was started at
+    // Pixel copies of normalized patterns for screenPatternsSpace, built on ioExecutor; a
+    // pattern the library evicts takes its copy with it
+    private final WeakHashMap<TapPattern, TapPattern> screenPatterns = new WeakHashMap<>();
+    private ScreenSpace screenPatternsSpace;
+    // Restored as playing; started once the library index is read and the tap service is up
+    private final ArrayList<Integer> pendingPatternIds = new ArrayList<>();
+    private boolean isLibraryOpen = false;
+    private int restoredPatternId = -1; // Selected when the session was saved, until the index is read
+    private boolean resumeOnConnect = false; // Restored as running before the tap service was back
+    private boolean isBatching = false;
+    private boolean isCountingAllocations = false; // Debugging only, so not part of the session
+    private boolean isBurstMode = false;
+    private boolean isTriggerMode = false; // Start and Play wait for screen changes instead of looping
     private List<TapMarker> markers = new ArrayList<>();
-    private int frequency = 2;
+    // Index over the same markers for hit tests and box selection; kept in step by the
+    // addMarker/moveMarker/delete helpers
+    private final SpatialGrid<TapMarker> markerGrid = new SpatialGrid<>(MARKER_GRID_CELL_PX);
+    private final ArrayList<TapMarker> selectedMarkers = new ArrayList<>();
+    private int[] markerQueryScratch = new int[64];
+    // Marker-mode gesture in progress: what the current touch is doing and where it was last
+    private int markerDrag = MARKER_DRAG_NONE;
+    private int markerDownX, markerDownY, markerLastX, markerLastY;
+    private int frequencyProgress = 3;
+    private long intervalMicros = 25000000; // 2.4 taps/min; microseconds so burst rates stay exact
+    private long strokeDurationMs = 50; // How long each synthetic finger stays down
     private TapPattern currentPattern = null;
-    private long recordingStartTime = 0;
+    private TapPattern unsavedPattern = null; // A recording the library couldn't write
+    private long recordingStartTime = 0; // Uptime, the clock MotionEvent times are on
+    private int playbackSpeedProgress = PLAYBACK_SPEED_STEPS / 2; // 1x
+    private final StrokeRecorder strokeRecorder = new StrokeRecorder(RECORD_TOLERANCE_PX);
+    private long strokeStartTime = 0; // Of the stroke being recorded, relative to recordingStartTime
+    private final TapRepeaterService.DispatchStats dispatchStats = new TapRepeaterService.DispatchStats();
+    private Runnable dispatchStatsRefresher;
+    // Pattern file writes happen here so recording never stalls on disk
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+    private PatternLibrary patternLibrary;
+    private int currentPatternId = -1;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Registered only while the marker canvas is up; the tap thread posts to it as the loop moves on
+    private final TapRepeaterService.MarkerHighlightListener markerHighlightListener =
+            new TapRepeaterService.MarkerHighlightListener() {
+                @Override
+                public void onActiveMarkerChanged(int index) {
+                    markerCanvas.setHighlighted(isRunning ? index : -1);
+                }
+            };
+
+    // The session as of the last change, read back when the service is restarted after a kill
+    private static final String SESSION_FILE_NAME = "session.fts";
+    // Edits come in bursts (drags, slider moves); one write covers each burst
+    private static final long SESSION_SAVE_DELAY_MS = 250;
+    private static final String NOTIFICATION_CHANNEL_ID = "overlay";
+    private static final int NOTIFICATION_ID = 1;
+    static final String ACTION_STOP = "com.example.floatingtap.action.STOP";
+    // Upper bound on stroke points kept in memory across cached patterns (~16 bytes each)
+    private static final long MAX_CACHED_PATTERN_TAPS = 200000;
+    // Speed slider steps; a log scale from 0.1x at 0 through 1x in the middle to 10x at the end
+    private static final int PLAYBACK_SPEED_STEPS = 200;
+    // How far a replayed stroke may stray from the recorded finger; well under a fingertip
+    private static final float RECORD_TOLERANCE_PX = 3f;
+    // Roughly two marker diameters, so most hit tests look at a single cell
+    private static final int MARKER_GRID_CELL_PX = 96;
+    // A bit larger than the drawn marker so a fingertip doesn't have to land dead centre
+    private static final int MARKER_HIT_RADIUS_PX = 32;
+    // Movement before an empty-space touch turns into a box selection instead of a new marker
+    private static final int MARKER_TOUCH_SLOP_PX = 16;
+    private static final int MARKER_NUDGE_PX = 4;
+    private static final int MARKER_DRAG_NONE = 0;
+    private static final int MARKER_DRAG_PENDING = 1; // Down on empty space, not moved yet
+    private static final int MARKER_DRAG_MOVE = 2; // Dragging the selection
+    private static final int MARKER_DRAG_BOX = 3; // Rubber-band selection
+    private static final int PANEL_WIDTH_PX = 300;
+    // Allow touches outside to pass through
+    private static final int PANEL_SHOWN_FLAGS = WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL
+            | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH;
+    // Hidden, the panel's window stays attached but takes no touches and no focus
+    private static final int PANEL_HIDDEN_FLAGS = WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
+            | WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE;
+    // Capturing, the marker overlay takes touches anywhere on the screen without taking focus
+    private static final int MARKER_OVERLAY_SHOWN_FLAGS = WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+            | WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL;
+    private static final int MARKER_OVERLAY_HIDDEN_FLAGS = MARKER_OVERLAY_SHOWN_FLAGS
+            | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE;
+
+    // Coalesces session writes; runs on the main thread, where the state lives
+    private final Runnable sessionSaver = new Runnable() {
+        @Override
+        public void run() {
+            writeSession();
+        }
+    };
 
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopEverything();
+        }
+        // If the process is killed the system brings the service back, and onCreate restores the session
+        return START_STICKY;
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+        screenSpace = readScreenSpace();
+        openPatternLibrary();
+        // Each window stacks above the ones added before it, so the marker windows go in first and
+        // stay under the panel and the bubble; all of them are then shown and hidden in place
+        createMarkerCanvas();
+        createMarkerOverlay();
+        createControlPanel();
         createFloatingBubble();
+        // After the bubble: a visible overlay is what lets a restarted service go foreground from the background
+        startInForeground();
+        TapRepeaterService.setConnectionListener(new TapRepeaterService.ConnectionListener() {
+            @Override
+            public void onServiceConnected() {
+                if (resumeOnConnect) {
+                    resumeOnConnect = false;
+                    if (isRunning) {
+                        resumeTapping();
+                    }
+                }
+                resumePatternPlayback();
+            }
+        });
+        TapRepeaterService.setMarkerPositionListener(new TapRepeaterService.MarkerPositionListener() {
+            @Override
+            public void onMarkersMoved(int[] xs, int[] ys) {
+                // Show anchored markers where they now tap, unless the set was edited meanwhile
+                if (!isRunning || xs.length != markers.size()) {
+                    return;
+                }
+                for (int i = 0; i < xs.length; i++) {
+                    TapMarker marker = markers.get(i);
+                    placeMarker(marker, xs[i], ys[i]);
+                    markerGrid.move(marker.handle, marker.x, marker.y);
+                }
+                markerCanvas.onMarkersChanged();
+                // A restart should find them where their views are now, not where they were placed
+                saveSession();
+            }
+        });
+        restoreSession();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        ScreenSpace space = readScreenSpace();
+        // Most changes (locale, night mode, font scale) leave the screen as it was
+        if (space.equals(screenSpace)) {
+            return;
+        }
+        screenSpace = space;
+        for (int i = 0; i < markers.size(); i++) {
+            TapMarker marker = markers.get(i);
+            marker.x = space.toScreenX(marker.nx, marker.ny);
+            marker.y = space.toScreenY(marker.nx, marker.ny);
+            markerGrid.move(marker.handle, marker.x, marker.y);
+        }
+        markerCanvas.onMarkersChanged();
+        if (isRunning) {
+            TapRepeaterService.moveMarkers(markers);
+        }
+        reprojectPlayingPatterns();
+    }
+
+    private ScreenSpace readScreenSpace() {
+        Display display = windowManager.getDefaultDisplay();
+        // The whole screen, which is what raw touch and gesture coordinates are relative to
+        display.getRealMetrics(displayMetrics);
+        return new ScreenSpace(displayMetrics.widthPixels, displayMetrics.heightPixels, display.getRotation());
+    }
+
+    /** Puts {@code marker} at screen pixel (x, y), keeping its normalized position in step. */
+    private void placeMarker(TapMarker marker, int x, int y) {
+        marker.x = x;
+        marker.y = y;
+        marker.nx = screenSpace.toNormalX(x, y);
+        marker.ny = screenSpace.toNormalY(x, y);
+    }
+
+    /**
+     * Rebuilds every playing pattern for the screen as it's now turned. Each is mapped on the
+     * IO thread and swapped in on its own as soon as it's ready, carrying on from its next
+     * stroke, so the rest keep playing meanwhile.
+     */
+    private void reprojectPlayingPatterns() {
+        for (int id : playingPatternIds) {
+            // Still loading after a restore; it starts on the current screen anyway
+            if (pendingPatternIds.contains(id)) {
+                continue;
+            }
+            PatternLibrary.Entry entry = patternLibrary.findEntry(id);
+            if (entry == null) {
+                if (id == currentPatternId && currentPattern != null) {
+                    reprojectPattern(id, currentPattern);
+                }
+                continue;
+            }
+            patternLibrary.load(entry, new PatternLibrary.LoadCallback() {
+                @Override
+                public void onLoaded(PatternLibrary.Entry loaded, TapPattern pattern) {
+                    reprojectPattern(loaded.id, pattern);
+                }
+
+                @Override
+                public void onLoadFailed(PatternLibrary.Entry failed, IOException error) {
+                    // Plays on where it was
+                }
+            });
+        }
+    }
+
+    private void reprojectPattern(final int id, final TapPattern pattern) {
+        // Patterns saved in pixels play as recorded whichever way the screen is turned
+        if (!pattern.normalized) {
+            return;
+        }
+        withScreenPattern(pattern, new ScreenPatternCallback() {
+            @Override
+            public void onReady(TapPattern onScreen) {
+                // Stopped while this was mapped
+                if (!playingPatternIds.contains(id)) {
+                    return;
+                }
+                // A trigger that can't be captured again on the turned screen ends the playback
+                if (!TapRepeaterService.startPatternPlayback(id, onScreen, playingPatternSpeeds.get(id),
+                        triggeredPatternIds.contains(id))) {
+                    stopPatternPlayback(id);
+                    refreshPatternViews();
+                }
+            }
+        });
+    }
+
+    /** Told, on the main thread, when a pattern's copy for the current screen is ready. */
+    private interface ScreenPatternCallback {
+        void onReady(TapPattern onScreen);
+    }
+
+    /**
+     * Hands {@code callback} {@code pattern} in pixels for the screen as it's now turned: from
+     * the cache if it's been played on this screen before, else mapped on ioExecutor, so a
+     * long recording never stalls the main thread. A pattern already in pixels is passed
+     * straight through. If the screen turns while it's mapped, it's mapped again.
+     */
+    private void withScreenPattern(final TapPattern pattern, final ScreenPatternCallback callback) {
+        if (!pattern.normalized) {
+            callback.onReady(pattern);
+            return;
+        }
+        if (!screenSpace.equals(screenPatternsSpace)) {
+            screenPatterns.clear();
+            screenPatternsSpace = screenSpace;
+        }
+        TapPattern cached = screenPatterns.get(pattern);
+        if (cached != null) {
+            callback.onReady(cached);
+            return;
+        }
+        final ScreenSpace space = screenSpace;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TapPattern onScreen = space.toScreen(pattern);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!space.equals(screenSpace)) {
+                            withScreenPattern(pattern, callback);
+                            return;
+                        }
+                        if (!space.equals(screenPatternsSpace)) {
+                            screenPatterns.clear();
+                            screenPatternsSpace = space;
+                        }
+                        screenPatterns.put(pattern, onScreen);
+                        callback.onReady(onScreen);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Maps the selected pattern ahead of time, so pressing Play finds it ready. */
+    private void prepareScreenPattern(final TapPattern pattern) {
+        withScreenPattern(pattern, new ScreenPatternCallback() {
+            @Override
+            public void onReady(TapPattern onScreen) {
+                // Only kept in the cache
+            }
+        });
+    }
+
+    private void startInForeground() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID, "Floating Tap",
+                    NotificationManager.IMPORTANCE_LOW));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            startForeground(NOTIFICATION_ID, buildNotification(), ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
+        } else {
+            startForeground(NOTIFICATION_ID, buildNotification());
+        }
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                ? new Notification.Builder(this, NOTIFICATION_CHANNEL_ID)
+                : new Notification.Builder(this);
+        String text;
+        if (isRunning && !playingPatternIds.isEmpty()) {
+            text = String.format("Tapping %d markers, playing %d patterns", markers.size(), playingPatternIds.size());
+        } else if (isRunning) {
+            text = String.format("Tapping %d markers", markers.size());
+        } else if (!playingPatternIds.isEmpty()) {
+            text = String.format("Playing %d patterns", playingPatternIds.size());
+        } else {
+            text = "Idle";
+        }
+        builder.setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle("Floating Tap")
+                .setContentText(text)
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                        PendingIntent.FLAG_IMMUTABLE));
+        if (isRunning || !playingPatternIds.isEmpty()) {
+            builder.addAction(new Notification.Action.Builder(null, "Stop",
+                    PendingIntent.getService(this, 0, new Intent(this, OverlayService.class).setAction(ACTION_STOP),
+                            PendingIntent.FLAG_IMMUTABLE)).build());
+        }
+        return builder.build();
+    }
+
+    private void updateNotification() {
+        ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    /** After markers or patterns start or stop: the bubble, the notification and the saved session follow. */
+    private void onRunStateChanged() {
+        if (!isRunning) {
+            markerCanvas.setHighlighted(-1);
+        }
+        updateBubbleAppearance();
+        updateNotification();
+        saveSession();
+    }
+
+    /** Stops the markers and every pattern, as the bubble's long press and the notification do. */
+    private void stopEverything() {
+        if (isRunning) {
+            isRunning = false;
+            TapRepeaterService.stopTapping();
+            onRunStateChanged();
+            // Update button if panel is visible
+            if (controlPanel != null && isPanelVisible) {
+                Button startStopButton = controlPanel.findViewById(R.id.startStopButton);
+                if (startStopButton != null) {
+                    updateStartStopButton(startStopButton);
+                }
+            }
+        }
+        if (!playingPatternIds.isEmpty()) {
+            stopAllPatternPlayback();
+            // Update button and list if panel is visible
+            if (controlPanel != null && isPanelVisible) {
+                updatePlayPatternButton((Button) controlPanel.findViewById(R.id.playPatternButton));
+                refreshPatternViews();
+            }
+        }
+    }
+
+    /** Schedules a session write; called after anything worth restoring changes. */
+    private void saveSession() {
+        mainHandler.removeCallbacks(sessionSaver);
+        mainHandler.postDelayed(sessionSaver, SESSION_SAVE_DELAY_MS);
+    }
+
+    private void writeSession() {
+        // Encoded here, where the state is owned; only the bytes go to the IO thread
+        final byte[] bytes = SessionSnapshot.encode(snapshotSession());
+        final File file = new File(getFilesDir(), SESSION_FILE_NAME);
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SessionSnapshot.writeBytes(bytes, file);
+                } catch (IOException e) {
+                    // The previous snapshot stays; the next change tries again
+                }
+            }
+        });
+    }
+
+    private SessionSnapshot snapshotSession() {
+        SessionSnapshot snapshot = new SessionSnapshot();
+        int count = markers.size();
+        snapshot.markerXs = new int[count];
+        snapshot.markerYs = new int[count];
+        snapshot.markerAnchors = new NodeAnchor[count];
+        for (int i = 0; i < count; i++) {
+            TapMarker marker = markers.get(i);
+            snapshot.markerXs[i] = marker.nx;
+            snapshot.markerYs[i] = marker.ny;
+            snapshot.markerAnchors[i] = marker.anchor;
+        }
+        snapshot.intervalMicros = intervalMicros;
+        snapshot.strokeDurationMs = strokeDurationMs;
+        snapshot.frequencyStep = frequencyProgress;
+        snapshot.playbackSpeedStep = playbackSpeedProgress;
+        snapshot.running = isRunning;
+        snapshot.burstMode = isBurstMode;
+        snapshot.triggerMode = isTriggerMode;
+        snapshot.batching = isBatching;
+        snapshot.selectedPatternId = restoredPatternId != -1 ? restoredPatternId : currentPatternId;
+        int playing = playingPatternIds.size();
+        snapshot.playingPatternIds = new int[playing];
+        snapshot.playingSpeeds = new float[playing];
+        snapshot.playingOnEvents = new boolean[playing];
+        int i = 0;
+        for (int id : playingPatternIds) {
+            Float speed = playingPatternSpeeds.get(id);
+            snapshot.playingPatternIds[i] = id;
+            snapshot.playingSpeeds[i] = speed != null ? speed : 1f;
+            snapshot.playingOnEvents[i] = triggeredPatternIds.contains(id);
+            i++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Puts back the session saved before the process was killed. The markers start tapping
+     * straight away if the tap service is up, else as soon as it reconnects; patterns resume
+     * once the library has read its index and loaded their bodies.
+     */
+    private void restoreSession() {
+        SessionSnapshot snapshot;
+        try {
+            // Read here, not on the IO thread: it's a few hundred bytes, and resuming waits on it
+            snapshot = SessionSnapshot.read(new File(getFilesDir(), SESSION_FILE_NAME));
+        } catch (IOException e) {
+            return; // First start, or nothing usable to restore
+        }
+        intervalMicros = snapshot.intervalMicros;
+        strokeDurationMs = snapshot.strokeDurationMs;
+        frequencyProgress = snapshot.frequencyStep;
+        playbackSpeedProgress = snapshot.playbackSpeedStep;
+        isBurstMode = snapshot.burstMode;
+        isTriggerMode = snapshot.triggerMode;
+        isBatching = snapshot.batching;
+        TapRepeaterService.setBatchingEnabled(isBatching);
+        restoredPatternId = snapshot.selectedPatternId;
+
+        for (int i = 0; i < snapshot.markerXs.length; i++) {
+            int nx = snapshot.markerXs[i];
+            int ny = snapshot.markerYs[i];
+            TapMarker marker = new TapMarker(screenSpace.toScreenX(nx, ny), screenSpace.toScreenY(nx, ny));
+            marker.nx = nx;
+            marker.ny = ny;
+            marker.anchor = snapshot.markerAnchors[i];
+            marker.handle = markerGrid.add(marker, marker.x, marker.y);
+            markers.add(marker);
+        }
+        if (!markers.isEmpty()) {
+            showMarkerCanvas();
+            markerCanvas.onMarkersAdded();
+        }
+
+        for (int i = 0; i < snapshot.playingPatternIds.length; i++) {
+            int id = snapshot.playingPatternIds[i];
+            playingPatternIds.add(id);
+            playingPatternSpeeds.put(id, snapshot.playingSpeeds[i]);
+            if (snapshot.playingOnEvents[i]) {
+                triggeredPatternIds.add(id);
+            }
+            pendingPatternIds.add(id);
+        }
+        if (snapshot.running && !markers.isEmpty()) {
+            isRunning = true;
+            resumeTapping();
+        }
+        if (isRunning || !playingPatternIds.isEmpty()) {
+            updateBubbleAppearance();
+            updateNotification();
+        }
+    }
+
+    private void resumeTapping() {
+        if (TapRepeaterService.startTapping(markers, intervalMicros, strokeDurationMs, isBurstMode, isTriggerMode)) {
+            return;
+        }
+        if (!TapRepeaterService.isConnected()) {
+            // Still running as far as the session goes; the connection listener starts it
+            resumeOnConnect = true;
+        } else {
+            // Nothing under the first marker to watch any more
+            isRunning = false;
+            onRunStateChanged();
+        }
+    }
+
+    /** Starts patterns restored as playing, once both their bodies and the tap service are available. */
+    private void resumePatternPlayback() {
+        if (pendingPatternIds.isEmpty() || !isLibraryOpen || !TapRepeaterService.isConnected()) {
+            return;
+        }
+        ArrayList<Integer> pending = new ArrayList<>(pendingPatternIds);
+        pendingPatternIds.clear();
+        for (int i = 0; i < pending.size(); i++) {
+            PatternLibrary.Entry entry = patternLibrary.findEntry(pending.get(i));
+            if (entry == null) {
+                stopPatternPlayback(pending.get(i));
+                continue;
+            }
+            patternLibrary.load(entry, new PatternLibrary.LoadCallback() {
+                @Override
+                public void onLoaded(final PatternLibrary.Entry loaded, TapPattern pattern) {
+                    withScreenPattern(pattern, new ScreenPatternCallback() {
+                        @Override
+                        public void onReady(TapPattern onScreen) {
+                            // Stopped from the panel while loading
+                            if (!playingPatternIds.contains(loaded.id)) {
+                                return;
+                            }
+                            if (!TapRepeaterService.startPatternPlayback(loaded.id, onScreen,
+                                    playingPatternSpeeds.get(loaded.id), triggeredPatternIds.contains(loaded.id))) {
+                                stopPatternPlayback(loaded.id);
+                            }
+                            refreshPatternViews();
+                        }
+                    });
+                }
+
+                @Override
+                public void onLoadFailed(PatternLibrary.Entry failed, IOException error) {
+                    stopPatternPlayback(failed.id);
+                    refreshPatternViews();
+                }
+            });
+        }
+    }
+
+    private void openPatternLibrary() {
+        patternLibrary = new PatternLibrary(new File(getFilesDir(), "patterns"),
+                MAX_CACHED_PATTERN_TAPS, ioExecutor, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        mainHandler.post(command);
+                    }
+                });
+        patternLibrary.setListener(new PatternLibrary.Listener() {
+            @Override
+            public void onIndexChanged() {
+                isLibraryOpen = true;
+                if (restoredPatternId != -1) {
+                    PatternLibrary.Entry restored = patternLibrary.findEntry(restoredPatternId);
+                    restoredPatternId = -1;
+                    if (restored != null && currentPatternId == -1 && !isRecording) {
+                        selectPattern(restored);
+                    }
+                }
+                resumePatternPlayback();
+                // Start out on the most recently recorded pattern
+                if (currentPattern == null && currentPatternId == -1 && !isRecording) {
+                    List<PatternLibrary.Entry> entries = patternLibrary.getEntries();
+                    if (!entries.isEmpty()) {
+                        selectPattern(entries.get(entries.size() - 1));
+                    }
+                }
+                refreshPatternViews();
+            }
+        });
+        patternLibrary.open();
+    }
+
+    private void selectPattern(final PatternLibrary.Entry entry) {
+        // Whatever is playing keeps playing; selecting only picks what the panel controls
+        currentPatternId = entry.id;
+        currentPattern = null;
+        refreshPatternViews();
+        saveSession();
+
+        // Bodies load off the main thread (or come straight from the cache)
+        patternLibrary.load(entry, new PatternLibrary.LoadCallback() {
+            @Override
+            public void onLoaded(PatternLibrary.Entry loaded, TapPattern pattern) {
+                if (loaded.id == currentPatternId) {
+                    currentPattern = pattern;
+                    prepareScreenPattern(pattern);
+                    refreshPatternViews();
+                }
+            }
+
+            @Override
+            public void onLoadFailed(PatternLibrary.Entry failed, IOException error) {
+                if (failed.id == currentPatternId) {
+                    currentPatternId = -1;
+                    refreshPatternViews();
+                }
+            }
+        });
     }
 
     private void createFloatingBubble() {
@@ -104,29 +737,7 @@ public class OverlayService extends Service {
                             @Override
                             public void run() {
                                 // Emergency stop - long press detected
-                                if (isRunning) {
-                                    isRunning = false;
-                                    TapRepeaterService.stopTapping();
-                                    updateBubbleAppearance();
-                                    // Update button if panel is visible
-                                    if (controlPanel != null && isPanelVisible) {
-                                        Button startStopButton = controlPanel.findViewById(R.id.startStopButton);
-                                        if (startStopButton != null) {
-                                            updateStartStopButton(startStopButton);
-                                        }
-                                    }
-                                }
-                                if (isPlayingPattern) {
-                                    stopPatternPlayback();
-                                    // Update button if panel is visible
-                                    if (controlPanel != null && isPanelVisible) {
-                                        Button playPatternButton = controlPanel.findViewById(R.id.playPatternButton);
-                                        if (playPatternButton != null) {
-                                            playPatternButton.setText("▶ Play Pattern");
-                                            playPatternButton.setBackgroundColor(Color.parseColor("#4ecca3"));
-                                        }
-                                    }
-                                }
+                                stopEverything();
                             }
                         };
                         // Post long-press handler (1.5 seconds)
@@ -169,32 +780,17 @@ public class OverlayService extends Service {
     }
 
     private void toggleControlPanel() {
-        // Force check actual state
-        boolean actuallyVisible = controlPanel != null && controlPanel.getParent() != null;
-        
-        if (actuallyVisible || isPanelVisible) {
+        if (isPanelVisible) {
             hideControlPanel();
         } else {
             showControlPanel();
         }
     }
 
-    private void showControlPanel() {
-        // Temporarily disable marker mode if active to ensure control panel buttons work
-        boolean wasAddingMarkers = isAddingMarkers;
-        if (isAddingMarkers) {
-            disableMarkerMode();
-            isAddingMarkers = false;
-        }
-
+    /** Inflates and wires up the panel once; it's attached hidden and only shown or hidden after that. */
+    private void createControlPanel() {
         controlPanel = LayoutInflater.from(this).inflate(R.layout.control_panel, null);
 
-        // Get screen dimensions for landscape compatibility
-        DisplayMetrics displayMetrics = new DisplayMetrics();
-        windowManager.getDefaultDisplay().getMetrics(displayMetrics);
-        int screenHeight = displayMetrics.heightPixels;
-        int maxHeight = (int) (screenHeight * 0.85); // Use 85% of screen height
-
         int layoutType;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             layoutType = WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY;
@@ -202,38 +798,51 @@ public class OverlayService extends Service {
             layoutType = WindowManager.LayoutParams.TYPE_PHONE;
         }
 
-        // Measure the panel to get its desired height
-        controlPanel.measure(
-                View.MeasureSpec.makeMeasureSpec(300, View.MeasureSpec.EXACTLY),
-                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED)
-        );
-        int desiredHeight = controlPanel.getMeasuredHeight();
-        int panelHeight = Math.min(desiredHeight, maxHeight);
-
-        WindowManager.LayoutParams params = new WindowManager.LayoutParams(
-                300, // Fixed width
-                panelHeight, // Constrained height
+        controlPanelParams = new WindowManager.LayoutParams(
+                PANEL_WIDTH_PX, // Fixed width
+                WindowManager.LayoutParams.WRAP_CONTENT, // Constrained on each show
                 layoutType,
-                WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL | WindowManager.LayoutParams.FLAG_WATCH_OUTSIDE_TOUCH, // Allow touches outside to pass through
+                PANEL_HIDDEN_FLAGS,
                 PixelFormat.TRANSLUCENT
         );
 
-        params.gravity = Gravity.CENTER;
+        controlPanelParams.gravity = Gravity.CENTER;
+        controlPanel.setVisibility(View.GONE);
 
-        windowManager.addView(controlPanel, params);
-        isPanelVisible = true;
+        windowManager.addView(controlPanel, controlPanelParams);
+        setupControlPanelListeners();
+    }
 
-        // Re-add floating bubble on top to ensure it can receive touches
-        if (floatingView != null && floatingView.getParent() != null) {
-            WindowManager.LayoutParams bubbleParams = (WindowManager.LayoutParams) floatingView.getLayoutParams();
-            windowManager.removeView(floatingView);
-            windowManager.addView(floatingView, bubbleParams);
-            // Re-setup listeners since we re-added the view
-            setupBubbleListeners(bubbleParams);
+    private void showControlPanel() {
+        // Temporarily disable marker mode if active to ensure control panel buttons work
+        boolean wasAddingMarkers = isAddingMarkers;
+        if (isAddingMarkers) {
+            disableMarkerMode();
+            isAddingMarkers = false;
         }
 
-        setupControlPanelListeners();
-        
+        // Anything may have changed while it was hidden: a restore, a stop from the notification
+        refreshControlPanel();
+
+        // Get screen dimensions for landscape compatibility
+        windowManager.getDefaultDisplay().getMetrics(displayMetrics);
+        int maxHeight = (int) (displayMetrics.heightPixels * 0.85); // Use 85% of screen height
+
+        // Measure the panel to get its desired height; the pattern list grows and shrinks
+        controlPanel.measure(
+                View.MeasureSpec.makeMeasureSpec(PANEL_WIDTH_PX, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED)
+        );
+        controlPanelParams.height = Math.min(controlPanel.getMeasuredHeight(), maxHeight);
+        controlPanelParams.flags = PANEL_SHOWN_FLAGS;
+        controlPanel.setVisibility(View.VISIBLE);
+        // One layout update on a window that's already there; nothing is inflated or re-added
+        windowManager.updateViewLayout(controlPanel, controlPanelParams);
+        touchRouter.attach(OverlayTouchRouter.TARGET_CONTROL_PANEL, controlPanel);
+        isPanelVisible = true;
+        startDispatchStatsRefresh((TextView) controlPanel.findViewById(R.id.dispatchStatsText),
+                (TextView) controlPanel.findViewById(R.id.costStatsText));
+
         // Restore marker mode state in the UI
         if (wasAddingMarkers) {
             Button addMarkerButton = controlPanel.findViewById(R.id.addMarkerButton);
@@ -242,31 +851,80 @@ public class OverlayService extends Service {
         }
     }
 
+    /** Brings the panel's views in line with the current state before it's shown. */
+    private void refreshControlPanel() {
+        updateMarkerCount((TextView) controlPanel.findViewById(R.id.markerCountText));
+        updateStartStopButton((Button) controlPanel.findViewById(R.id.startStopButton));
+        updateBatchModeButton((Button) controlPanel.findViewById(R.id.batchModeButton));
+        updateAllocationCountingButton((Button) controlPanel.findViewById(R.id.allocationCountingButton));
+        updateBurstModeButton((Button) controlPanel.findViewById(R.id.burstModeButton));
+        updateTriggerModeButton((Button) controlPanel.findViewById(R.id.triggerModeButton));
+
+        ((SeekBar) controlPanel.findViewById(R.id.frequencySeekBar)).setProgress(frequencyProgress);
+        updateFrequency((TextView) controlPanel.findViewById(R.id.frequencyText));
+        ((SeekBar) controlPanel.findViewById(R.id.strokeDurationSeekBar)).setProgress((int) strokeDurationMs - 1);
+        ((TextView) controlPanel.findViewById(R.id.strokeDurationText))
+                .setText(String.format("Tap hold: %d ms", strokeDurationMs));
+        ((SeekBar) controlPanel.findViewById(R.id.playbackSpeedSeekBar)).setProgress(playbackSpeedProgress);
+        ((TextView) controlPanel.findViewById(R.id.playbackSpeedText))
+                .setText(String.format("Playback speed: %.2fx", playbackSpeed()));
+
+        if (!isRecording) {
+            updatePatternStatus((TextView) controlPanel.findViewById(R.id.patternStatusText),
+                    (Button) controlPanel.findViewById(R.id.recordPatternButton),
+                    (Button) controlPanel.findViewById(R.id.playPatternButton));
+        }
+        // Rows are only rebuilt if the library changed since they were last built
+        if (isPatternListStale) {
+            isPatternListStale = false;
+            populatePatternList((LinearLayout) controlPanel.findViewById(R.id.patternListContainer));
+        }
+    }
+
     private void setupControlPanelListeners() {
         Button addMarkerButton = controlPanel.findViewById(R.id.addMarkerButton);
         final Button startStopButton = controlPanel.findViewById(R.id.startStopButton);
         Button clearButton = controlPanel.findViewById(R.id.clearButton);
+        Button deleteSelectedButton = controlPanel.findViewById(R.id.deleteSelectedButton);
         Button closeButton = controlPanel.findViewById(R.id.closeButton);
         final Button recordPatternButton = controlPanel.findViewById(R.id.recordPatternButton);
         final Button playPatternButton = controlPanel.findViewById(R.id.playPatternButton);
+        final Button batchModeButton = controlPanel.findViewById(R.id.batchModeButton);
+        final Button allocationCountingButton = controlPanel.findViewById(R.id.allocationCountingButton);
+        final Button burstModeButton = controlPanel.findViewById(R.id.burstModeButton);
+        final Button triggerModeButton = controlPanel.findViewById(R.id.triggerModeButton);
         SeekBar frequencySeekBar = controlPanel.findViewById(R.id.frequencySeekBar);
         final TextView frequencyText = controlPanel.findViewById(R.id.frequencyText);
+        SeekBar strokeDurationSeekBar = controlPanel.findViewById(R.id.strokeDurationSeekBar);
+        final TextView strokeDurationText = controlPanel.findViewById(R.id.strokeDurationText);
         final TextView markerCountText = controlPanel.findViewById(R.id.markerCountText);
         final TextView patternStatusText = controlPanel.findViewById(R.id.patternStatusText);
-
-        updateMarkerCount(markerCountText);
-        updateStartStopButton(startStopButton);
+        SeekBar playbackSpeedSeekBar = controlPanel.findViewById(R.id.playbackSpeedSeekBar);
+        final TextView playbackSpeedText = controlPanel.findViewById(R.id.playbackSpeedText);
 
         frequencySeekBar.setMax(99);
-        frequencySeekBar.setProgress(3); // Default to ~2.4 taps/min
-        frequencyText.setText("Frequency: 2.4 taps/min");
-
         frequencySeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                float freq = (progress + 1) * 0.6f; // taps per minute (0.6 to 60 taps/min)
-                frequency = Math.round(60000.0f / freq); // milliseconds between taps (60000 ms = 1 minute)
-                frequencyText.setText(String.format("Frequency: %.1f taps/min", freq));
+                frequencyProgress = progress;
+                updateFrequency(frequencyText);
+                saveSession();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+
+        strokeDurationSeekBar.setMax(99);
+        strokeDurationSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                strokeDurationMs = progress + 1; // 1 to 100 ms
+                strokeDurationText.setText(String.format("Tap hold: %d ms", strokeDurationMs));
+                saveSession();
             }
 
             @Override
@@ -276,6 +934,51 @@ public class OverlayService extends Service {
             public void onStopTrackingTouch(SeekBar seekBar) {}
         });
 
+        playbackSpeedSeekBar.setMax(PLAYBACK_SPEED_STEPS);
+        playbackSpeedSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                playbackSpeedProgress = progress;
+                playbackSpeedText.setText(String.format("Playback speed: %.2fx", playbackSpeed()));
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {}
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                // Rebuilding the schedule once on release is enough; not on every step of a drag
+                if (isCurrentPatternPlaying() && currentPattern != null) {
+                    final TapPattern pattern = currentPattern;
+                    final float speed = playbackSpeed();
+                    playingPatternSpeeds.put(currentPatternId, speed);
+                    withScreenPattern(pattern, new ScreenPatternCallback() {
+                        @Override
+                        public void onReady(TapPattern onScreen) {
+                            // Stopped or deselected meanwhile
+                            if (pattern != currentPattern || !isCurrentPatternPlaying()) {
+                                return;
+                            }
+                            TapRepeaterService.startPatternPlayback(currentPatternId, onScreen, speed,
+                                    triggeredPatternIds.contains(currentPatternId));
+                        }
+                    });
+                }
+                saveSession();
+            }
+        });
+
+        burstModeButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                isBurstMode = !isBurstMode;
+                // The same slider position means a per-second rate in burst mode
+                updateFrequency(frequencyText);
+                updateBurstModeButton(burstModeButton);
+                saveSession();
+            }
+        });
+
         addMarkerButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -301,21 +1004,67 @@ public class OverlayService extends Service {
                     isRunning = false;
                     TapRepeaterService.stopTapping();
                     updateStartStopButton(startStopButton);
-                    updateBubbleAppearance();
+                    onRunStateChanged();
                 } else {
                     // Start tapping
                     if (markers.isEmpty()) {
                         return;
                     }
+                    if (!TapRepeaterService.startTapping(markers, intervalMicros, strokeDurationMs, isBurstMode,
+                            isTriggerMode)) {
+                        markerCountText.setText(isTriggerMode ? "No labelled view to watch" : "Service not connected");
+                        return;
+                    }
                     isRunning = true;
-                    TapRepeaterService.startTapping(markers, frequency);
                     updateStartStopButton(startStopButton);
-                    updateBubbleAppearance();
+                    onRunStateChanged();
                     hideControlPanel();
                 }
             }
         });
 
+        triggerModeButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // Applies to the next Start or Play; whatever is running keeps its mode
+                isTriggerMode = !isTriggerMode;
+                updateTriggerModeButton(triggerModeButton);
+                saveSession();
+            }
+        });
+
+        batchModeButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                isBatching = !isBatching;
+                TapRepeaterService.setBatchingEnabled(isBatching);
+                updateBatchModeButton(batchModeButton);
+                saveSession();
+            }
+        });
+
+        allocationCountingButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                isCountingAllocations = !isCountingAllocations;
+                TapRepeaterService.setAllocationCountingEnabled(isCountingAllocations);
+                updateAllocationCountingButton(allocationCountingButton);
+            }
+        });
+
+        deleteSelectedButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                deleteSelectedMarkers();
+                updateMarkerCount(markerCountText);
+                saveSession();
+            }
+        });
+        setNudgeListener((Button) controlPanel.findViewById(R.id.nudgeLeftButton), -MARKER_NUDGE_PX, 0);
+        setNudgeListener((Button) controlPanel.findViewById(R.id.nudgeUpButton), 0, -MARKER_NUDGE_PX);
+        setNudgeListener((Button) controlPanel.findViewById(R.id.nudgeDownButton), 0, MARKER_NUDGE_PX);
+        setNudgeListener((Button) controlPanel.findViewById(R.id.nudgeRightButton), MARKER_NUDGE_PX, 0);
+
         clearButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -324,14 +1073,17 @@ public class OverlayService extends Service {
                     isRunning = false;
                     TapRepeaterService.stopTapping();
                     updateStartStopButton(startStopButton);
-                    updateBubbleAppearance();
+                    onRunStateChanged();
                 }
                 // Remove all marker views from screen
-                removeAllMarkerViews();
+                hideMarkerCanvas();
                 // Clear the markers list
                 markers.clear();
+                markerGrid.clear();
+                selectedMarkers.clear();
                 // Update the UI
                 updateMarkerCount(markerCountText);
+                saveSession();
             }
         });
 
@@ -343,17 +1095,15 @@ public class OverlayService extends Service {
                     isRunning = false;
                     TapRepeaterService.stopTapping();
                 }
-                // Stop pattern playback if running
-                if (isPlayingPattern) {
-                    stopPatternPlayback();
-                }
+                // Stop every pattern still playing
+                stopAllPatternPlayback();
                 // Stop the service and close the floating bubble
                 stopSelf();
             }
         });
 
-        // Update pattern status
-        updatePatternStatus(patternStatusText, recordPatternButton, playPatternButton);
+        // The list starts out empty; it's filled in on first show
+        isPatternListStale = true;
 
         recordPatternButton.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -377,17 +1127,30 @@ public class OverlayService extends Service {
         playPatternButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (isPlayingPattern) {
-                    // Stop playback
-                    stopPatternPlayback();
-                    playPatternButton.setText("▶ Play Pattern");
-                    playPatternButton.setBackgroundColor(Color.parseColor("#4ecca3"));
+                // Toggles only the selected pattern; others playing alongside it carry on
+                if (isCurrentPatternPlaying()) {
+                    stopPatternPlayback(currentPatternId);
+                    updatePlayPatternButton(playPatternButton);
+                    refreshPatternViews();
                 } else {
                     // Start playback
-                    if (currentPattern != null && !currentPattern.taps.isEmpty()) {
-                        startPatternPlayback();
-                        playPatternButton.setText("⏸ Stop Playback");
-                        playPatternButton.setBackgroundColor(Color.parseColor("#ff6b6b"));
+                    if (currentPattern != null && !currentPattern.isEmpty()) {
+                        final TapPattern pattern = currentPattern;
+                        withScreenPattern(pattern, new ScreenPatternCallback() {
+                            @Override
+                            public void onReady(TapPattern onScreen) {
+                                // Deselected, or started some other way, while it was mapped
+                                if (pattern != currentPattern || isCurrentPatternPlaying()) {
+                                    return;
+                                }
+                                if (startPatternPlayback(onScreen)) {
+                                    updatePlayPatternButton(playPatternButton);
+                                } else {
+                                    patternStatusText.setText(isTriggerMode ? "No labelled view to watch"
+                                            : "Service not connected");
+                                }
+                            }
+                        });
                     } else {
                         patternStatusText.setText("No pattern recorded!");
                     }
@@ -407,11 +1170,111 @@ public class OverlayService extends Service {
         }
     }
 
+    private void updateBatchModeButton(Button button) {
+        if (button == null) return;
+        if (isBatching) {
+            button.setText("Batch Dispatch: On");
+            button.setBackgroundColor(Color.parseColor("#5588ff"));
+        } else {
+            button.setText("Batch Dispatch: Off");
+            button.setBackgroundColor(Color.parseColor("#888888"));
+        }
+    }
+
+    private void updateAllocationCountingButton(Button button) {
+        if (button == null) return;
+        if (isCountingAllocations) {
+            button.setText("Count Allocations: On");
+            button.setBackgroundColor(Color.parseColor("#5588ff"));
+        } else {
+            button.setText("Count Allocations: Off");
+            button.setBackgroundColor(Color.parseColor("#888888"));
+        }
+    }
+
+    private void updateTriggerModeButton(Button button) {
+        if (button == null) return;
+        if (isTriggerMode) {
+            button.setText("Trigger: Screen Changes");
+            button.setBackgroundColor(Color.parseColor("#ffd166"));
+        } else {
+            button.setText("Trigger: Timer");
+            button.setBackgroundColor(Color.parseColor("#888888"));
+        }
+    }
+
+    private void updateBurstModeButton(Button button) {
+        if (button == null) return;
+        if (isBurstMode) {
+            button.setText("Burst Mode: On");
+            button.setBackgroundColor(Color.parseColor("#ff9f43"));
+        } else {
+            button.setText("Burst Mode: Off");
+            button.setBackgroundColor(Color.parseColor("#888888"));
+        }
+    }
+
+    private void updateFrequency(TextView frequencyText) {
+        if (isBurstMode) {
+            float freq = (frequencyProgress + 1) * 0.5f; // taps per second (0.5 to 50 taps/s)
+            intervalMicros = Math.round(1000000.0 / freq);
+            frequencyText.setText(String.format("Frequency: %.1f taps/s", freq));
+        } else {
+            float freq = (frequencyProgress + 1) * 0.6f; // taps per minute (0.6 to 60 taps/min)
+            intervalMicros = Math.round(60000000.0 / freq);
+            frequencyText.setText(String.format("Frequency: %.1f taps/min", freq));
+        }
+    }
+
+    private void startDispatchStatsRefresh(final TextView statsText, final TextView costText) {
+        // Poll while the panel is showing; the counters live on the tap thread. Its own wakeups
+        // aren't in the cost, which is the tap thread's, but each shows in a trace
+        dispatchStatsRefresher = new Runnable() {
+            @Override
+            public void run() {
+                if (!isPanelVisible || dispatchStatsRefresher != this) {
+                    return;
+                }
+                Trace.beginSection("FloatingTap:statsRefresh");
+                try {
+                    updateDispatchStats(statsText, costText);
+                } finally {
+                    Trace.endSection();
+                }
+                statsText.postDelayed(this, 500);
+            }
+        };
+        dispatchStatsRefresher.run();
+    }
+
+    private void updateDispatchStats(TextView textView, TextView costText) {
+        boolean connected = TapRepeaterService.readDispatchStats(dispatchStats);
+        // Without the grant, minute-scale intervals only keep time while something else keeps the device awake
+        String alarms = !connected || dispatchStats.exactAlarms ? ""
+                : "\nSlow taps: no exact alarms, late while asleep";
+        if (!connected || dispatchStats.dispatched == 0) {
+            textView.setText("Gestures: idle");
+            costText.setText("Tap thread cost: idle" + alarms);
+            return;
+        }
+        textView.setText(String.format("Taps: %d done, %d cancelled\nGestures: %d sent, %d cancelled\n%.1f taps/min achieved, pacing +%d ms\nLag p50/p99: %d/%d ms, completion p50/p99: %d/%d ms",
+                dispatchStats.tapsCompleted, dispatchStats.tapsCancelled,
+                dispatchStats.dispatched, dispatchStats.cancelled,
+                dispatchStats.achievedTapsPerMinute, dispatchStats.pacingGapMs,
+                dispatchStats.lagP50Ms, dispatchStats.lagP99Ms,
+                dispatchStats.completionP50Ms, dispatchStats.completionP99Ms));
+        // Only the tap thread is measured; this panel's own refreshes are not included
+        costText.setText(String.format("Tap thread cost per tap: %.1f us CPU, %s allocs\nTap thread wakeups: %.1f/min, %.2f/tap, %d by alarm",
+                dispatchStats.cpuMicrosPerTap,
+                Float.isNaN(dispatchStats.allocationsPerTap) ? "?" : String.format("%.1f", dispatchStats.allocationsPerTap),
+                dispatchStats.wakeupsPerMinute, dispatchStats.wakeupsPerTap, dispatchStats.alarmWakeups) + alarms);
+    }
+
     private void updateBubbleAppearance() {
         if (floatingView != null) {
             View bubble = floatingView.findViewById(R.id.floating_bubble);
             if (bubble != null) {
-                if (isRunning || isPlayingPattern) {
+                if (isRunning || !playingPatternIds.isEmpty()) {
                     // Change to red when tapping or pattern playback is active
                     bubble.setBackgroundColor(Color.parseColor("#ff6b6b"));
                 } else {
@@ -423,10 +1286,29 @@ public class OverlayService extends Service {
     }
 
     private void updateMarkerCount(TextView textView) {
-        textView.setText("Markers: " + markers.size());
+        if (selectedMarkers.isEmpty()) {
+            textView.setText("Markers: " + markers.size());
+        } else {
+            textView.setText("Markers: " + markers.size() + " (" + selectedMarkers.size() + " selected)");
+        }
     }
 
-    private void enableMarkerMode() {
+    private void setNudgeListener(Button button, final int dx, final int dy) {
+        button.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (selectedMarkers.isEmpty()) {
+                    return;
+                }
+                moveSelectedMarkers(dx, dy);
+                reanchorSelectedMarkers();
+                markerCanvas.onMarkersChanged();
+                saveSession();
+            }
+        });
+    }
+
+    private void createMarkerOverlay() {
         markerOverlay = LayoutInflater.from(this).inflate(R.layout.marker_overlay, null);
 
         int layoutType;
@@ -436,74 +1318,44 @@ public class OverlayService extends Service {
             layoutType = WindowManager.LayoutParams.TYPE_PHONE;
         }
 
-        final WindowManager.LayoutParams params = new WindowManager.LayoutParams(
+        markerOverlayParams = new WindowManager.LayoutParams(
                 WindowManager.LayoutParams.MATCH_PARENT,
                 WindowManager.LayoutParams.MATCH_PARENT,
                 layoutType,
-                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_NOT_TOUCH_MODAL,
+                MARKER_OVERLAY_HIDDEN_FLAGS,
                 PixelFormat.TRANSLUCENT
         );
 
-        params.gravity = Gravity.TOP | Gravity.START;
+        markerOverlayParams.gravity = Gravity.TOP | Gravity.START;
         markerOverlay.setTag("marker_overlay");
+        markerOverlay.setVisibility(View.GONE);
 
-        windowManager.addView(markerOverlay, params);
+        windowManager.addView(markerOverlay, markerOverlayParams);
 
         markerOverlay.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
-                // Check if touch is on stop recording button
-                if (stopRecordingButton != null && stopRecordingButton.getParent() != null) {
-                    int[] location = new int[2];
-                    stopRecordingButton.getLocationOnScreen(location);
-                    Rect buttonRect = new Rect(
-                            location[0],
-                            location[1],
-                            location[0] + stopRecordingButton.getWidth(),
-                            location[1] + stopRecordingButton.getHeight()
-                    );
-
-                    if (buttonRect.contains((int) event.getRawX(), (int) event.getRawY())) {
-                        // Convert to button's local coordinates and dispatch
-                        MotionEvent localEvent = MotionEvent.obtain(event);
-                        localEvent.offsetLocation(-location[0], -location[1]);
-                        boolean handled = stopRecordingButton.dispatchTouchEvent(localEvent);
-                        localEvent.recycle();
-                        // Consume the event so marker overlay doesn't handle it
-                        return true;
-                    }
+                // A stroke being recorded keeps every sample, even over the panel or stop button
+                if (isRecording && strokeRecorder.isActive()) {
+                    recordTouch(event);
+                    return true;
                 }
-
-                // Check if touch is on control panel
-                if (controlPanel != null && isPanelVisible) {
-                    int[] location = new int[2];
-                    controlPanel.getLocationOnScreen(location);
-                    Rect controlPanelRect = new Rect(
-                            location[0],
-                            location[1],
-                            location[0] + controlPanel.getWidth(),
-                            location[1] + controlPanel.getHeight()
-                    );
-
-                    if (controlPanelRect.contains((int) event.getRawX(), (int) event.getRawY())) {
-                        // Convert to control panel's local coordinates and dispatch
-                        MotionEvent localEvent = MotionEvent.obtain(event);
-                        localEvent.offsetLocation(-location[0], -location[1]);
-                        boolean handled = controlPanel.dispatchTouchEvent(localEvent);
-                        localEvent.recycle();
-                        // Always consume touches on control panel to prevent marker adding
-                        return true;
-                    }
+                // So does a marker drag or selection box, or it could end without landing
+                if (isAddingMarkers && !isRecording && markerDrag != MARKER_DRAG_NONE) {
+                    onMarkerEditTouch(event);
+                    return true;
+                }
+                // Touches over the stop button or control panel belong to them; consumed here
+                // so they never turn into markers or recorded taps
+                if (touchRouter.route(event)) {
+                    return true;
                 }
 
-                // Touch is outside control panel and stop button
                 if (event.getAction() == MotionEvent.ACTION_DOWN) {
                     if (isRecording) {
-                        // Record tap during recording mode
-                        recordTap((int) event.getRawX(), (int) event.getRawY());
+                        recordTouch(event);
                     } else if (isAddingMarkers) {
-                        // Add marker in marker mode
-                        addMarker((int) event.getRawX(), (int) event.getRawY());
+                        onMarkerEditTouch(event);
                     }
                     return true;
                 }
@@ -514,43 +1366,209 @@ public class OverlayService extends Service {
         });
     }
 
-    private View findViewAt(ViewGroup parent, int x, int y) {
-        for (int i = parent.getChildCount() - 1; i >= 0; i--) {
-            View child = parent.getChildAt(i);
-            int childX = (int) child.getX();
-            int childY = (int) child.getY();
-            int childRight = childX + child.getWidth();
-            int childBottom = childY + child.getHeight();
-            
-            if (x >= childX && x < childRight && y >= childY && y < childBottom) {
-                if (child instanceof ViewGroup) {
-                    View found = findViewAt((ViewGroup) child, x - childX, y - childY);
-                    if (found != null) {
-                        return found;
-                    }
-                }
-                if (child.isClickable()) {
-                    return child;
-                }
-            }
+    private void enableMarkerMode() {
+        if (markerOverlay.getVisibility() == View.VISIBLE) {
+            return;
         }
-        return null;
+        markerOverlay.setVisibility(View.VISIBLE);
+        markerOverlayParams.flags = MARKER_OVERLAY_SHOWN_FLAGS;
+        windowManager.updateViewLayout(markerOverlay, markerOverlayParams);
     }
 
     private void disableMarkerMode() {
-        if (markerOverlay != null && markerOverlay.getParent() != null) {
-            windowManager.removeView(markerOverlay);
-            markerOverlay = null;
+        // A drag cut short by the overlay going away still has to land its markers
+        markerCanvas.dropSelection();
+        markerCanvas.hideSelectionBox();
+        markerDrag = MARKER_DRAG_NONE;
+        if (markerOverlay.getVisibility() != View.VISIBLE) {
+            return;
         }
+        markerOverlay.setVisibility(View.GONE);
+        markerOverlayParams.flags = MARKER_OVERLAY_HIDDEN_FLAGS;
+        windowManager.updateViewLayout(markerOverlay, markerOverlayParams);
     }
 
     private void addMarker(int x, int y) {
         TapMarker marker = new TapMarker(x, y);
+        placeMarker(marker, x, y);
+        captureAnchor(marker);
+        marker.handle = markerGrid.add(marker, x, y);
         markers.add(marker);
+        showMarkerCanvas();
+        markerCanvas.onMarkersAdded();
+        saveSession();
+    }
 
-        View markerView = new View(this);
-        markerView.setBackgroundColor(Color.parseColor("#ff6b6b"));
-        markerView.setTag("marker_" + markers.size());
+    /**
+     * Marker-mode touches: a touch on a marker selects it and drags the selection; a touch on
+     * empty space adds a marker (or, with a selection, just clears it); dragging from empty
+     * space selects everything in the box.
+     */
+    private void onMarkerEditTouch(MotionEvent event) {
+        int x = (int) event.getRawX();
+        int y = (int) event.getRawY();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN: {
+                markerDownX = x;
+                markerDownY = y;
+                int hit = markerGrid.nearest(x, y, MARKER_HIT_RADIUS_PX);
+                if (hit >= 0) {
+                    TapMarker marker = markerGrid.get(hit);
+                    if (!marker.selected) {
+                        clearMarkerSelection();
+                        selectMarker(marker);
+                    }
+                    markerDrag = MARKER_DRAG_MOVE;
+                    markerCanvas.liftSelection();
+                } else {
+                    markerDrag = MARKER_DRAG_PENDING;
+                }
+                break;
+            }
+            case MotionEvent.ACTION_MOVE:
+                if (markerDrag == MARKER_DRAG_MOVE) {
+                    moveSelectedMarkers(x - markerLastX, y - markerLastY);
+                    markerCanvas.invalidate();
+                } else {
+                    if (markerDrag == MARKER_DRAG_PENDING
+                            && Math.abs(x - markerDownX) + Math.abs(y - markerDownY) > MARKER_TOUCH_SLOP_PX) {
+                        markerDrag = MARKER_DRAG_BOX;
+                    }
+                    if (markerDrag == MARKER_DRAG_BOX) {
+                        selectMarkersInBox(markerDownX, markerDownY, x, y);
+                        markerCanvas.setSelectionBox(markerDownX, markerDownY, x, y);
+                    }
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (markerDrag == MARKER_DRAG_MOVE) {
+                    markerCanvas.dropSelection();
+                    reanchorSelectedMarkers();
+                    saveSession();
+                } else if (markerDrag == MARKER_DRAG_BOX) {
+                    markerCanvas.hideSelectionBox();
+                } else if (markerDrag == MARKER_DRAG_PENDING && event.getActionMasked() == MotionEvent.ACTION_UP) {
+                    if (selectedMarkers.isEmpty()) {
+                        addMarker(x, y);
+                    } else {
+                        clearMarkerSelection();
+                    }
+                }
+                markerDrag = MARKER_DRAG_NONE;
+                refreshMarkerCount();
+                break;
+        }
+        markerLastX = x;
+        markerLastY = y;
+    }
+
+    private void selectMarker(TapMarker marker) {
+        marker.selected = true;
+        selectedMarkers.add(marker);
+        markerCanvas.onSelectionChanged();
+    }
+
+    private void clearMarkerSelection() {
+        for (int i = 0; i < selectedMarkers.size(); i++) {
+            selectedMarkers.get(i).selected = false;
+        }
+        selectedMarkers.clear();
+        markerCanvas.onSelectionChanged();
+    }
+
+    private void selectMarkersInBox(int x1, int y1, int x2, int y2) {
+        if (markerQueryScratch.length < markerGrid.size()) {
+            markerQueryScratch = new int[markerGrid.size() * 2];
+        }
+        int count = markerGrid.query(Math.min(x1, x2), Math.min(y1, y2),
+                Math.max(x1, x2), Math.max(y1, y2), markerQueryScratch);
+        for (int i = 0; i < selectedMarkers.size(); i++) {
+            selectedMarkers.get(i).selected = false;
+        }
+        selectedMarkers.clear();
+        for (int i = 0; i < count; i++) {
+            TapMarker marker = markerGrid.get(markerQueryScratch[i]);
+            marker.selected = true;
+            selectedMarkers.add(marker);
+        }
+    }
+
+    private void moveSelectedMarkers(int dx, int dy) {
+        for (int i = 0; i < selectedMarkers.size(); i++) {
+            TapMarker marker = selectedMarkers.get(i);
+            placeMarker(marker, marker.x + dx, marker.y + dy);
+            markerGrid.move(marker.handle, marker.x, marker.y);
+        }
+    }
+
+    /** Re-anchors moved markers to whatever view they were dropped on. */
+    private void reanchorSelectedMarkers() {
+        for (int i = 0; i < selectedMarkers.size(); i++) {
+            captureAnchor(selectedMarkers.get(i));
+        }
+    }
+
+    /**
+     * Anchors the marker to the view under it, looked up on ioExecutor: the walk down the
+     * app's tree is a call into its process per level, too slow for a touch handler. Until
+     * it's done the marker taps where it was placed.
+     */
+    private void captureAnchor(final TapMarker marker) {
+        final int x = marker.x;
+        final int y = marker.y;
+        final int capture = ++marker.anchorCapture;
+        marker.anchor = null;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final NodeAnchor anchor = TapRepeaterService.captureAnchor(x, y);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Moved again meanwhile, and a newer capture is on its way
+                        if (marker.anchorCapture != capture || anchor == null) {
+                            return;
+                        }
+                        marker.anchor = anchor;
+                        saveSession();
+                    }
+                });
+            }
+        });
+    }
+
+    private void deleteSelectedMarkers() {
+        if (selectedMarkers.isEmpty()) {
+            return;
+        }
+        // One compacting pass keeps the tap order of the survivors
+        int kept = 0;
+        for (int i = 0; i < markers.size(); i++) {
+            TapMarker marker = markers.get(i);
+            if (marker.selected) {
+                markerGrid.remove(marker.handle);
+            } else {
+                markers.set(kept++, marker);
+            }
+        }
+        markers.subList(kept, markers.size()).clear();
+        selectedMarkers.clear();
+        if (markers.isEmpty()) {
+            hideMarkerCanvas();
+        } else {
+            markerCanvas.onMarkersChanged();
+        }
+    }
+
+    private void refreshMarkerCount() {
+        if (controlPanel != null) {
+            updateMarkerCount((TextView) controlPanel.findViewById(R.id.markerCountText));
+        }
+    }
+
+    private void createMarkerCanvas() {
+        markerCanvas = new MarkerCanvasView(this, markers, selectedMarkers);
 
         int layoutType;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -559,61 +1577,55 @@ public class OverlayService extends Service {
             layoutType = WindowManager.LayoutParams.TYPE_PHONE;
         }
 
+        // Full screen so marker coordinates (raw screen positions) map straight onto the canvas
         WindowManager.LayoutParams params = new WindowManager.LayoutParams(
-                40,
-                40,
+                WindowManager.LayoutParams.MATCH_PARENT,
+                WindowManager.LayoutParams.MATCH_PARENT,
                 layoutType,
-                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE,
+                WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE | WindowManager.LayoutParams.FLAG_NOT_TOUCHABLE
+                        | WindowManager.LayoutParams.FLAG_LAYOUT_IN_SCREEN,
                 PixelFormat.TRANSLUCENT
         );
 
         params.gravity = Gravity.TOP | Gravity.START;
-        params.x = x - 20;
-        params.y = y - 20;
+        markerCanvas.setVisibility(View.GONE);
 
-        windowManager.addView(markerView, params);
-        marker.view = markerView;
+        windowManager.addView(markerCanvas, params);
     }
 
-    private void removeAllMarkerViews() {
-        // Create a copy of the list to avoid concurrent modification issues
-        List<TapMarker> markersCopy = new ArrayList<>(markers);
-        for (TapMarker marker : markersCopy) {
-            if (marker != null && marker.view != null) {
-                try {
-                    if (marker.view.getParent() != null) {
-                        windowManager.removeView(marker.view);
-                    }
-                } catch (Exception e) {
-                    // View might have already been removed, ignore
-                }
-                // Clear the view reference
-                marker.view = null;
-            }
+    private void showMarkerCanvas() {
+        if (markerCanvas.getVisibility() == View.VISIBLE) {
+            return;
         }
+        markerCanvas.setVisibility(View.VISIBLE);
+        markerCanvas.setHighlighted(isRunning ? TapRepeaterService.getActiveMarkerIndex() : -1);
+        TapRepeaterService.setMarkerHighlightListener(markerHighlightListener);
+    }
+
+    private void hideMarkerCanvas() {
+        // One window for every marker, so clearing hides it however many there were
+        TapRepeaterService.setMarkerHighlightListener(null);
+        markerCanvas.setVisibility(View.GONE);
+        markerCanvas.clear();
     }
 
     private void hideControlPanel() {
-        if (isPanelVisible && controlPanel != null) {
-            try {
-                if (controlPanel.getParent() != null) {
-                    windowManager.removeView(controlPanel);
-                }
-            } catch (Exception e) {
-                // View might have already been removed
-            }
-            controlPanel = null;
-            isPanelVisible = false;
-        } else {
-            // Force reset if state is inconsistent
-            isPanelVisible = false;
-            controlPanel = null;
+        touchRouter.detach(OverlayTouchRouter.TARGET_CONTROL_PANEL);
+        if (!isPanelVisible) {
+            return;
         }
+        isPanelVisible = false;
+        controlPanel.setVisibility(View.GONE);
+        controlPanelParams.flags = PANEL_HIDDEN_FLAGS;
+        windowManager.updateViewLayout(controlPanel, controlPanelParams);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        TapRepeaterService.setMarkerPositionListener(null);
+        TapRepeaterService.setConnectionListener(null);
+        TapRepeaterService.setMarkerHighlightListener(null);
         if (floatingView != null) {
             windowManager.removeView(floatingView);
         }
@@ -623,51 +1635,48 @@ public class OverlayService extends Service {
         if (markerOverlay != null && markerOverlay.getParent() != null) {
             windowManager.removeView(markerOverlay);
         }
+        if (markerCanvas != null && markerCanvas.getParent() != null) {
+            windowManager.removeView(markerCanvas);
+        }
         if (stopRecordingButton != null && stopRecordingButton.getParent() != null) {
             windowManager.removeView(stopRecordingButton);
         }
-        removeAllMarkerViews();
         TapRepeaterService.stopTapping();
-        TapRepeaterService.stopPatternPlayback();
+        TapRepeaterService.stopAllPatternPlayback();
+        // Closed on purpose: the markers and settings stay, but nothing starts by itself next time
+        isRunning = false;
+        playingPatternIds.clear();
+        pendingPatternIds.clear();
+        mainHandler.removeCallbacks(sessionSaver);
+        writeSession();
+        // Lets a pending pattern or session write finish
+        ioExecutor.shutdown();
     }
 
-    static class TapMarker {
-        int x;
-        int y;
-        View view;
-
-        TapMarker(int x, int y) {
-            this.x = x;
-            this.y = y;
-        }
-    }
-
-    static class TapPattern {
-        String name;
-        List<PatternTap> taps;
-        long duration; // Total duration in milliseconds
-
-        TapPattern(String name) {
-            this.name = name;
-            this.taps = new ArrayList<>();
-            this.duration = 0;
-        }
-
-        void addTap(int x, int y, long timestamp) {
-            taps.add(new PatternTap(x, y, timestamp));
-            duration = timestamp; // Update duration to last tap's timestamp
-        }
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("OverlayService:");
+        writer.printf("  markers: %d, interval: %d us, tap hold: %d ms, burst: %s, running: %s, on screen changes: %s%n",
+                markers.size(), intervalMicros, strokeDurationMs, isBurstMode, isRunning, isTriggerMode);
+        writer.printf("  pattern: %s, playing: %s, recording: %s, batching: %s%n",
+                currentPattern != null ? currentPattern.name + " (" + currentPattern.size() + " taps)" : "none",
+                playingPatternIds, isRecording, isBatching);
+        TapRepeaterService.dumpTelemetry(writer);
     }
 
-    static class PatternTap {
-        int x;
+    static class TapMarker {
+        int x; // Where it taps on the screen as it's turned now
         int y;
-        long timestamp; // Time since recording started in milliseconds
+        int nx; // The same point in ScreenSpace units; what's saved, and what x and y follow
+        int ny;
+        int handle = -1; // Key in markerGrid
+        boolean selected;
+        NodeAnchor anchor; // The view the marker follows, or null to tap x, y as placed
+        int anchorCapture; // Counts captures, so only the latest one sets the anchor
 
-        PatternTap(int x, int y, long timestamp) {
+        TapMarker(int x, int y) {
             this.x = x;
             this.y = y;
-            this.timestamp = timestamp;
         }
     }
 
@@ -680,14 +1689,16 @@ public class OverlayService extends Service {
             TapRepeaterService.stopTapping();
         }
         
-        // Stop pattern playback if running
-        if (isPlayingPattern) {
-            stopPatternPlayback();
-        }
+        // Stop pattern playback so recorded touches are only the user's
+        stopAllPatternPlayback();
         
         isRecording = true;
-        currentPattern = new TapPattern("Recorded Pattern");
-        recordingStartTime = System.currentTimeMillis();
+        // Named by the library when it's saved, after the id it's saved under
+        currentPattern = new TapPattern(null);
+        currentPatternId = -1;
+        unsavedPattern = null;
+        recordingStartTime = SystemClock.uptimeMillis();
+        strokeRecorder.cancel();
         
         // Hide control panel so user can see the screen
         if (isPanelVisible) {
@@ -707,6 +1718,15 @@ public class OverlayService extends Service {
         if (!isRecording) return;
         
         isRecording = false;
+        if (currentPattern != null) {
+            // A finger still down when recording stops lifts where it is
+            strokeRecorder.finish(currentPattern, strokeStartTime);
+            // The wait before stop was pressed is part of the loop, so it repeats with the same rhythm
+            long elapsed = SystemClock.uptimeMillis() - recordingStartTime;
+            currentPattern.tail = Math.max(elapsed - currentPattern.duration, 0);
+            // Recorded in pixels, where the recorder's tolerance means something; saved normalized
+            currentPattern = screenSpace.toNormal(currentPattern);
+        }
         
         // Hide stop recording button
         hideStopRecordingButton();
@@ -715,24 +1735,81 @@ public class OverlayService extends Service {
         if (!isAddingMarkers) {
             disableMarkerMode();
         }
+
+        // The pattern is never modified after recording stops, so it's safe to hand off
+        if (currentPattern != null && !currentPattern.isEmpty()) {
+            final TapPattern recorded = currentPattern;
+            patternLibrary.save(recorded, new PatternLibrary.SaveCallback() {
+                @Override
+                public void onSaved(PatternLibrary.Entry entry) {
+                    if (currentPattern == recorded) {
+                        currentPatternId = entry.id;
+                        refreshPatternViews();
+                        saveSession();
+                    }
+                }
+
+                @Override
+                public void onSaveFailed(IOException error) {
+                    // Kept on screen to say so, but without an id it can't be played or restored
+                    if (currentPattern == recorded) {
+                        unsavedPattern = recorded;
+                        refreshPatternViews();
+                    }
+                }
+            });
+            // Queued behind the save, so the copy is mapped after the library has named it
+            prepareScreenPattern(recorded);
+        }
     }
 
-    private void recordTap(int x, int y) {
+    /**
+     * Feeds one touch event to the stroke recorder: every sample the input system batched into
+     * a move is kept, with its own event time, and the stroke is simplified once the finger
+     * lifts. Only the first pointer is recorded.
+     */
+    private void recordTouch(MotionEvent event) {
         if (!isRecording || currentPattern == null) return;
-        
-        long timestamp = System.currentTimeMillis() - recordingStartTime;
-        currentPattern.addTap(x, y, timestamp);
+
+        int x = (int) event.getRawX();
+        int y = (int) event.getRawY();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                // Event time, not now: a busy main thread mustn't shift the recording
+                strokeStartTime = Math.max(event.getEventTime() - recordingStartTime, 0);
+                strokeRecorder.begin(x, y, event.getEventTime());
+                break;
+            case MotionEvent.ACTION_MOVE: {
+                // Historical samples are in window coordinates; the window doesn't move mid-event
+                float offsetX = event.getRawX() - event.getX();
+                float offsetY = event.getRawY() - event.getY();
+                for (int h = 0, n = event.getHistorySize(); h < n; h++) {
+                    strokeRecorder.sample((int) (event.getHistoricalX(h) + offsetX),
+                            (int) (event.getHistoricalY(h) + offsetY), event.getHistoricalEventTime(h));
+                }
+                strokeRecorder.sample(x, y, event.getEventTime());
+                break;
+            }
+            case MotionEvent.ACTION_UP:
+                strokeRecorder.end(x, y, event.getEventTime(), currentPattern, strokeStartTime);
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                strokeRecorder.finish(currentPattern, strokeStartTime);
+                break;
+        }
     }
 
-    private void startPatternPlayback() {
-        if (isPlayingPattern || currentPattern == null || currentPattern.taps.isEmpty()) {
-            return;
+    /**
+     * Starts the selected pattern alongside whatever markers and patterns are already playing;
+     * {@code onScreen} is its copy for the current screen.
+     */
+    private boolean startPatternPlayback(TapPattern onScreen) {
+        if (isCurrentPatternPlaying() || currentPattern == null || currentPattern.isEmpty()) {
+            return false;
         }
-        
-        // Stop any running tapping
-        if (isRunning) {
-            isRunning = false;
-            TapRepeaterService.stopTapping();
+        if (!TapRepeaterService.startPatternPlayback(currentPatternId, onScreen,
+                playbackSpeed(), isTriggerMode)) {
+            return false;
         }
         
         // Hide control panel so user can see the screen
@@ -740,28 +1817,75 @@ public class OverlayService extends Service {
             hideControlPanel();
         }
         
-        isPlayingPattern = true;
-        TapRepeaterService.startPatternPlayback(currentPattern);
-        updateBubbleAppearance();
+        playingPatternIds.add(currentPatternId);
+        playingPatternSpeeds.put(currentPatternId, playbackSpeed());
+        if (isTriggerMode) {
+            triggeredPatternIds.add(currentPatternId);
+        }
+        onRunStateChanged();
+        return true;
+    }
+
+    private boolean isCurrentPatternPlaying() {
+        return currentPatternId != -1 && playingPatternIds.contains(currentPatternId);
     }
 
-    private void stopPatternPlayback() {
-        if (!isPlayingPattern) return;
+    private float playbackSpeed() {
+        return (float) Math.pow(10, (playbackSpeedProgress - PLAYBACK_SPEED_STEPS / 2) / (PLAYBACK_SPEED_STEPS / 2.0));
+    }
+
+    private void stopPatternPlayback(int patternId) {
+        if (!playingPatternIds.remove(patternId)) return;
+        triggeredPatternIds.remove(patternId);
+        playingPatternSpeeds.remove(patternId);
         
-        isPlayingPattern = false;
-        TapRepeaterService.stopPatternPlayback();
-        updateBubbleAppearance();
+        TapRepeaterService.stopPatternPlayback(patternId);
+        onRunStateChanged();
+    }
+
+    private void stopAllPatternPlayback() {
+        if (playingPatternIds.isEmpty()) return;
+        
+        playingPatternIds.clear();
+        triggeredPatternIds.clear();
+        playingPatternSpeeds.clear();
+        TapRepeaterService.stopAllPatternPlayback();
+        onRunStateChanged();
+    }
+
+    private void updatePlayPatternButton(Button button) {
+        if (button == null) return;
+        if (isCurrentPatternPlaying()) {
+            button.setText("⏸ Stop Playback");
+            button.setBackgroundColor(Color.parseColor("#ff6b6b"));
+        } else {
+            button.setText("▶ Play Pattern");
+            button.setBackgroundColor(Color.parseColor("#4ecca3"));
+        }
     }
 
     private void updatePatternStatus(TextView statusText, Button recordButton, Button playButton) {
         if (statusText == null) return;
         
-        if (currentPattern != null && !currentPattern.taps.isEmpty()) {
-            int tapCount = currentPattern.taps.size();
-            long duration = currentPattern.duration;
-            statusText.setText(String.format("Pattern: %d taps, %.1fs", tapCount, duration / 1000.0));
+        if (currentPattern != null && !currentPattern.isEmpty()) {
+            int tapCount = currentPattern.size();
+            long duration = currentPattern.cycleLength();
+            if (currentPattern == unsavedPattern) {
+                statusText.setText("The recording couldn't be saved (storage full?); record it again");
+            } else {
+                // A fresh recording is named as it's saved
+                String name = currentPatternId != -1 ? currentPattern.name : "New pattern";
+                statusText.setText(String.format("%s: %d taps, %.1fs", name, tapCount, duration / 1000.0));
+            }
             if (playButton != null) {
-                playButton.setEnabled(true);
+                // Playback is keyed by library id, so a fresh recording plays once it's saved
+                playButton.setEnabled(currentPatternId != -1);
+            }
+            updatePlayPatternButton(playButton);
+        } else if (currentPatternId != -1) {
+            statusText.setText("Loading pattern...");
+            if (playButton != null) {
+                playButton.setEnabled(false);
             }
         } else {
             statusText.setText("No pattern recorded");
@@ -771,6 +1895,64 @@ public class OverlayService extends Service {
         }
     }
 
+    private void refreshPatternViews() {
+        if (!isPanelVisible) {
+            isPatternListStale = true;
+            return;
+        }
+        if (!isRecording) {
+            updatePatternStatus((TextView) controlPanel.findViewById(R.id.patternStatusText),
+                    (Button) controlPanel.findViewById(R.id.recordPatternButton),
+                    (Button) controlPanel.findViewById(R.id.playPatternButton));
+        }
+        populatePatternList((LinearLayout) controlPanel.findViewById(R.id.patternListContainer));
+    }
+
+    private void populatePatternList(LinearLayout container) {
+        if (container == null) return;
+        container.removeAllViews();
+
+        // Built from the in-memory index only; no pattern bodies are touched here
+        for (final PatternLibrary.Entry entry : patternLibrary.getEntries()) {
+            TextView row = new TextView(this);
+            row.setText(String.format("%s%s  ·  %d taps, %.1fs", triggeredPatternIds.contains(entry.id) ? "⚡ "
+                    : playingPatternIds.contains(entry.id) ? "▶ " : "",
+                    entry.name, entry.tapCount, entry.cycleLength / 1000.0));
+            row.setTextSize(12);
+            row.setPadding(8, 12, 8, 12);
+            if (entry.id == currentPatternId) {
+                row.setTextColor(Color.parseColor("#4ecca3"));
+            } else {
+                row.setTextColor(Color.WHITE);
+            }
+            row.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    if (!isRecording) {
+                        selectPattern(entry);
+                    }
+                }
+            });
+            row.setOnLongClickListener(new View.OnLongClickListener() {
+                @Override
+                public boolean onLongClick(View v) {
+                    if (isRecording) {
+                        return false;
+                    }
+                    stopPatternPlayback(entry.id);
+                    if (entry.id == currentPatternId) {
+                        currentPatternId = -1;
+                        currentPattern = null;
+                    }
+                    patternLibrary.delete(entry);
+                    saveSession();
+                    return true;
+                }
+            });
+            container.addView(row);
+        }
+    }
+
     private void showStopRecordingButton() {
         if (stopRecordingButton != null && stopRecordingButton.getParent() != null) {
             return; // Already visible
@@ -820,19 +2002,14 @@ public class OverlayService extends Service {
         params.gravity = Gravity.TOP | Gravity.CENTER_HORIZONTAL;
         params.y = 50; // Position near top center
 
+        // Added after the marker overlay, so it's above it and gets its own touches
         windowManager.addView(button, params);
         stopRecordingButton = button;
-        
-        // Re-add stop button on top of marker overlay to ensure it receives touches
-        if (markerOverlay != null && markerOverlay.getParent() != null) {
-            WindowManager.LayoutParams buttonParams = (WindowManager.LayoutParams) button.getLayoutParams();
-            windowManager.removeView(button);
-            windowManager.addView(button, buttonParams);
-            stopRecordingButton = button;
-        }
+        touchRouter.attach(OverlayTouchRouter.TARGET_STOP_BUTTON, button);
     }
 
     private void hideStopRecordingButton() {
+        touchRouter.detach(OverlayTouchRouter.TARGET_STOP_BUTTON);
         if (stopRecordingButton != null && stopRecordingButton.getParent() != null) {
             windowManager.removeView(stopRecordingButton);
             stopRecordingButton = null;
@@ -0,0 +1,85 @@
+package com.example.floatingtap;
+
+import android.graphics.Rect;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Forwards touches that land on the full-screen capture overlay to the small overlay windows
+ * that should own them (the control panel, the stop-recording button). Each target's screen
+ * region is cached and refreshed only when its window lays out again, and events are
+ * forwarded by shifting them in place, so routing a touch allocates nothing.
+ */
+class OverlayTouchRouter {
+
+    static final int TARGET_STOP_BUTTON = 0;
+    static final int TARGET_CONTROL_PANEL = 1;
+    private static final int TARGET_COUNT = 2;
+
+    private static final class Target implements View.OnLayoutChangeListener {
+        View view;
+        final Rect region = new Rect();
+        final int[] location = new int[2];
+
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                   int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            update();
+        }
+
+        void update() {
+            view.getLocationOnScreen(location);
+            region.set(location[0], location[1],
+                    location[0] + view.getWidth(), location[1] + view.getHeight());
+        }
+    }
+
+    private final Target[] targets = new Target[TARGET_COUNT];
+
+    OverlayTouchRouter() {
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            targets[i] = new Target();
+        }
+    }
+
+    /** Starts routing to {@code view}; earlier slots win where regions overlap. */
+    void attach(int slot, View view) {
+        detach(slot);
+        Target target = targets[slot];
+        target.view = view;
+        target.region.setEmpty(); // Filled in by the window's first layout
+        view.addOnLayoutChangeListener(target);
+    }
+
+    void detach(int slot) {
+        Target target = targets[slot];
+        if (target.view != null) {
+            target.view.removeOnLayoutChangeListener(target);
+            target.view = null;
+        }
+        target.region.setEmpty();
+    }
+
+    /**
+     * Delivers {@code event} to the first target whose window contains it, in that window's
+     * coordinates. Returns false if no target claims the point.
+     */
+    boolean route(MotionEvent event) {
+        int x = (int) event.getRawX();
+        int y = (int) event.getRawY();
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            Target target = targets[i];
+            if (target.view == null || !target.region.contains(x, y)) {
+                continue;
+            }
+            float dx = target.region.left;
+            float dy = target.region.top;
+            // Shift in place rather than cloning, and put the event back for the caller
+            event.offsetLocation(-dx, -dy);
+            target.view.dispatchTouchEvent(event);
+            event.offsetLocation(dx, dy);
+            return true;
+        }
+        return false;
+    }
+}
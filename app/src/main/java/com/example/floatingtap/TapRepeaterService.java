@@ -1,164 +1,1053 @@
 package com.example.floatingtap;
 
 import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.AccessibilityServiceInfo;
+import android.annotation.TargetApi;
 import android.accessibilityservice.GestureDescription;
 import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.example.floatingtap.engine.EventTrigger;
+import com.example.floatingtap.engine.NodeAnchor;
+import com.example.floatingtap.engine.StrokeSegments;
+import com.example.floatingtap.engine.TapClock;
+import com.example.floatingtap.engine.TapCost;
+import com.example.floatingtap.engine.TapDispatcher;
+import com.example.floatingtap.engine.TapEngine;
+import com.example.floatingtap.engine.TapPattern;
+import com.example.floatingtap.engine.TapSchedule;
+import com.example.floatingtap.engine.TapTelemetry;
+import com.example.floatingtap.engine.TriggerSet;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TapRepeaterService extends AccessibilityService {
 
     private static TapRepeaterService instance;
+    // Kept here as well as in the engine so the choice survives the service reconnecting
+    private static volatile boolean batchingEnabled = false;
+    private static volatile boolean allocationCountingEnabled = false;
+    private HandlerThread tapThread;
     private Handler handler;
-    private Runnable tapRunnable;
-    private Runnable patternRunnable;
-    private boolean isRunning = false;
-    private boolean isPatternPlaying = false;
-    private List<OverlayService.TapMarker> markers;
-    private OverlayService.TapPattern currentPattern;
-    private int currentMarkerIndex = 0;
-    private int tapInterval = 500;
+    private TapTimer timer; // Handler posts for near deadlines, exact alarms for far ones
+    private TapEngine<GestureDescription> engine;
+    private TapCost cost; // The engine's; written on the tap thread, read for display
+    private boolean countingAllocations; // Tap thread
+    // Written from the UI thread on stop so the tap thread sees it before the stop message runs
+    private volatile TapEngine<GestureDescription>.Loop markerLoop;
+    // Every pattern playing, by source id; loops are added and stopped on the tap thread
+    private final ConcurrentHashMap<Integer, TapEngine<GestureDescription>.Loop> patternLoops =
+            new ConcurrentHashMap<>();
+    private volatile int markerCount; // Markers in the running marker loop, before repetition
+    // How the running marker set plays, kept to rebuild it when anchored markers move; main thread
+    private long markerIntervalMicros;
+    private long markerStrokeDuration;
+    private boolean markerBurst;
+    private boolean markerOnEvents;
+    private AnchorResolver anchorResolver; // While the running marker set has anchored markers
+    private static volatile MarkerPositionListener markerPositionListener;
+    private static volatile ConnectionListener connectionListener;
+    private static volatile MarkerHighlightListener markerHighlightListener;
+    private int publishedMarker = UNPUBLISHED; // Tap thread: the active marker last posted
+    private volatile int activeMarker = -1;
+    private volatile boolean highlightPosted; // Cleared on the main thread as the post runs
+
+    // Armed event triggers; replaced whole on the main thread, where events arrive. The event
+    // subscription follows them, so with none armed the system sends the service nothing
+    private TriggerSet triggers = TriggerSet.EMPTY;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private long triggerCheckTime = Long.MAX_VALUE; // When triggerCheck is posted for
+    // What each armed trigger plays, by trigger id; tap thread only
+    private final HashMap<Integer, TriggeredSource> triggeredSources = new HashMap<>();
+    private final Rect nodeBounds = new Rect();
+
+    // How long each synthetic finger stays down during pattern playback
+    private static final long TAP_DURATION_MS = 50;
+    // Lower bound for one pattern cycle so a single-tap pattern can't spin the looper
+    private static final long MIN_PATTERN_PERIOD_MS = 50;
+    // A dispatched gesture can't be recalled, so batches stay short enough for stop to feel immediate
+    private static final long MAX_BATCH_WINDOW_MS = 1000;
+    // Shortest streamed segment; each one costs a callback round trip with the finger held still
+    private static final long MIN_SEGMENT_MS = 50;
+    // Pattern sources are keyed by library id, which starts at 1
+    private static final int MARKER_TRIGGER_ID = -1;
+    private static final int ANCHOR_TRIGGER_ID = -2; // Not a source: re-reads moved anchors
+    // Anchored markers should catch up with a moved view before the next tap or two
+    private static final long ANCHOR_QUIET_MS = 50;
+    private static final long ANCHOR_MAX_WAIT_MS = 250;
+    // Screen changes that can reveal a tap target
+    private static final int TRIGGER_EVENT_TYPES =
+            AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED;
+    // A screen is usually still settling for a few hundred ms after it starts changing
+    private static final long TRIGGER_QUIET_MS = 300;
+    private static final long TRIGGER_MAX_WAIT_MS = 2000;
+    // Longer text is content, not a label worth waiting for
+    private static final int MAX_TRIGGER_TEXT_LENGTH = 40;
+    // No active marker posted yet, or the listener changed since
+    private static final int UNPUBLISHED = Integer.MIN_VALUE;
+
+    /** Told, on the main thread, where anchored markers tap after their views moved. */
+    interface MarkerPositionListener {
+        void onMarkersMoved(int[] xs, int[] ys);
+    }
+
+    /** Told, on the main thread, when the service (re)connects and taps can be dispatched. */
+    interface ConnectionListener {
+        void onServiceConnected();
+    }
+
+    /** Told, on the main thread, which marker the marker loop tapped last; -1 once it stops. */
+    interface MarkerHighlightListener {
+        void onActiveMarkerChanged(int index);
+    }
+
+    /** A timeline played once each time its trigger fires. */
+    private static final class TriggeredSource {
+        final TapSchedule<GestureDescription> schedule;
+        final boolean alwaysBatch;
+        TapEngine<GestureDescription>.Loop loop; // The pass playing, or the last one played
+
+        TriggeredSource(TapSchedule<GestureDescription> schedule, boolean alwaysBatch) {
+            this.schedule = schedule;
+            this.alwaysBatch = alwaysBatch;
+        }
+    }
+
+    // Fires every trigger whose burst has settled, then sleeps until the next one will have
+    private final Runnable triggerCheck = new Runnable() {
+        @Override
+        public void run() {
+            triggerCheckTime = Long.MAX_VALUE;
+            long now = SystemClock.uptimeMillis();
+            EventTrigger due;
+            while ((due = triggers.takeDue(now)) != null) {
+                if (due.id == ANCHOR_TRIGGER_ID) {
+                    onAnchorsChanged();
+                    continue;
+                }
+                // The node walk happens once per burst here, never once per event
+                if (!due.hasNodeCondition() || isOnScreen(due)) {
+                    fireTrigger(due.id);
+                }
+            }
+            scheduleTriggerCheck(triggers.nextDeadline());
+        }
+    };
+
+    // Hands the newest active marker to the listener; taps landing before it runs share the post
+    private final Runnable highlightUpdate = new Runnable() {
+        @Override
+        public void run() {
+            highlightPosted = false;
+            MarkerHighlightListener listener = markerHighlightListener;
+            if (listener != null) {
+                listener.onActiveMarkerChanged(activeMarker);
+            }
+        }
+    };
+
+    private final GestureResultCallback gestureCallback = new GestureResultCallback() {
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            cost.onWakeup();
+            engine.onGestureFinished(true);
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            cost.onWakeup();
+            engine.onGestureFinished(false);
+        }
+    };
+
+    // The engine's view of the device: elapsed realtime, dispatchGesture and the tap thread's timer.
+    // Elapsed realtime rather than uptime, so a deadline that falls while asleep is still on time
+    private final TapClock clock = new TapClock() {
+        @Override
+        public long nowMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private final TapDispatcher<GestureDescription> dispatcher = new TapDispatcher<GestureDescription>() {
+        @Override
+        public void dispatch(GestureDescription gesture) {
+            Trace.beginSection("FloatingTap:dispatch");
+            try {
+                dispatchGesture(gesture, gestureCallback, handler);
+            } finally {
+                Trace.endSection();
+            }
+            publishActiveMarker();
+        }
+
+        @Override
+        public void postAtTime(Runnable task, long timeMillis) {
+            timer.postAtTime(task, timeMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            timer.removeCallbacks(task);
+        }
+    };
+
+    // Read by the engine's cost after each dispatch; both are a clock or counter read and allocate nothing
+    private final TapCost.ThreadCounters threadCounters = new TapCost.ThreadCounters() {
+        @Override
+        public long cpuNanos() {
+            return Debug.threadCpuTimeNanos();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public long allocations() {
+            return countingAllocations ? Debug.getThreadAllocCount() : TapCost.NOT_COUNTED;
+        }
+    };
 
     @Override
     public void onCreate() {
         super.onCreate();
         instance = this;
-        handler = new Handler();
+        // Taps run on their own looper so overlay inflation, bubble drags and accessibility
+        // callbacks on the main thread can't delay a scheduled tap
+        tapThread = new HandlerThread("TapDispatch", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        tapThread.start();
+        handler = new Handler(tapThread.getLooper());
+        engine = new TapEngine<>(clock, dispatcher, threadCounters);
+        cost = engine.getCost();
+        timer = new TapTimer(this, handler, cost);
+        engine.setBatchingEnabled(batchingEnabled);
+        applyAllocationCounting();
     }
 
     @Override
-    public void onAccessibilityEvent(AccessibilityEvent event) {}
+    protected void onServiceConnected() {
+        super.onServiceConnected();
+        // The static config subscribes to nothing; catch up with triggers armed before now
+        updateSubscription();
+        ConnectionListener listener = connectionListener;
+        if (listener != null) {
+            listener.onServiceConnected();
+        }
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (anchorResolver != null) {
+            anchorResolver.onEvent(event);
+        }
+        // Nothing armed costs one check; otherwise a mask test rejects most events outright
+        if (triggers.onEvent(event.getEventType(), event.getPackageName(), SystemClock.uptimeMillis())) {
+            scheduleTriggerCheck(triggers.nextDeadline());
+        }
+    }
 
     @Override
     public void onInterrupt() {
         stopTapping();
+        stopAllPatternPlayback();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        stopTapping();
         instance = null;
+        mainHandler.removeCallbacks(triggerCheck);
+        mainHandler.removeCallbacks(highlightUpdate);
+        triggers = TriggerSet.EMPTY;
+        deactivate(markerLoop);
+        for (TapEngine<GestureDescription>.Loop loop : patternLoops.values()) {
+            loop.deactivate();
+        }
+        // Before the service is gone, or the system reports the receiver as leaked
+        timer.unregister();
+        handler.post(new Runnable() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public void run() {
+                timer.release();
+                if (countingAllocations) {
+                    Debug.stopAllocCounting();
+                }
+            }
+        });
+        // Drops any taps still queued for the future; nothing is posted after this point
+        tapThread.quitSafely();
     }
 
-    public static void startTapping(List<OverlayService.TapMarker> markerList, int interval) {
-        if (instance != null) {
-            instance.markers = markerList;
-            instance.tapInterval = interval;
-            instance.startTappingInternal();
+    /**
+     * Taps the markers in turn, one every {@code intervalMicros}, each held down for
+     * {@code strokeDurationMs}. In burst mode taps always go out in multi-stroke batches, so
+     * rates well beyond one gesture round trip per tap are reachable. With {@code onEvents}
+     * the markers are tapped once through each time the app under the first marker changes
+     * its screen, rather than on a timer; returns false if there's no labelled view under the
+     * first marker to watch for.
+     * Markers anchored to a view follow it as the app moves it.
+     */
+    public static boolean startTapping(List<OverlayService.TapMarker> markerList, long intervalMicros,
+                                       long strokeDurationMs, boolean burst, boolean onEvents) {
+        TapRepeaterService service = instance;
+        if (service == null || markerList.isEmpty()) {
+            return false;
         }
-    }
 
-    public static void stopTapping() {
-        if (instance != null) {
-            instance.stopTappingInternal();
+        // Copied here so the UI thread can keep editing its own list while the tap thread plays this one
+        int count = markerList.size();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        NodeAnchor[] anchors = new NodeAnchor[count];
+        boolean anchored = false;
+        for (int i = 0; i < count; i++) {
+            OverlayService.TapMarker marker = markerList.get(i);
+            xs[i] = marker.x;
+            ys[i] = marker.y;
+            anchors[i] = marker.anchor;
+            anchored |= marker.anchor != null;
         }
+        AnchorResolver resolver = null;
+        if (anchored) {
+            // The app may have moved things since the markers were placed
+            resolver = new AnchorResolver(anchors, xs, ys);
+            resolver.resolve(service);
+            xs = resolver.getXs();
+            ys = resolver.getYs();
+        }
+        EventTrigger trigger = null;
+        if (onEvents) {
+            trigger = service.anchoredTrigger(MARKER_TRIGGER_ID, xs[0], ys[0]);
+            if (trigger == null) {
+                if (resolver != null) {
+                    resolver.release();
+                }
+                return false;
+            }
+        }
+
+        stopTapping();
+        service.markerCount = count;
+        service.markerIntervalMicros = intervalMicros;
+        // Lift the finger before the next tap on the same spot is due
+        service.markerStrokeDuration = Math.max(1, Math.min(strokeDurationMs, intervalMicros / 1000 - 1));
+        service.markerBurst = burst;
+        service.markerOnEvents = onEvents;
+        if (trigger != null) {
+            service.arm(trigger);
+        }
+        if (resolver != null) {
+            service.anchorResolver = resolver;
+            service.arm(new EventTrigger(ANCHOR_TRIGGER_ID, AnchorResolver.EVENT_TYPES, resolver.packageName(),
+                    null, null, ANCHOR_QUIET_MS, ANCHOR_MAX_WAIT_MS));
+        }
+        service.playMarkers(xs, ys, false);
+        return true;
     }
 
-    public static void startPatternPlayback(OverlayService.TapPattern pattern) {
-        if (instance != null) {
-            instance.currentPattern = pattern;
-            instance.startPatternPlaybackInternal();
+    /**
+     * Main thread; builds the marker source for taps at {@code xs/ys}. With {@code resume} a
+     * running marker loop is replaced, carrying on with the tap it would have played next, on time.
+     */
+    private void playMarkers(final int[] xs, final int[] ys, final boolean resume) {
+        final long intervalMicros = markerIntervalMicros;
+        final long strokeDuration = markerStrokeDuration;
+        final boolean burst = markerBurst;
+        if (markerOnEvents) {
+            // One pass over the markers, unrepeated, on the same microsecond grid as the timer loop
+            final long[] offsets = new long[xs.length];
+            for (int i = 0; i < xs.length; i++) {
+                offsets[i] = (i * intervalMicros + 500) / 1000;
+            }
+            final long period = Math.max(xs.length * intervalMicros / 1000, 1);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    putTriggeredSource(MARKER_TRIGGER_ID, new TapSchedule<>(xs, ys, offsets, period,
+                            strokeDuration, GestureDescription.getMaxStrokeCount(), maxBatchWindow(),
+                            gestureFactory(strokeDuration)), burst);
+                }
+            });
+            return;
         }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A resume for a loop stopped meanwhile, or a second start, has nothing to do
+                if ((markerLoop != null) != resume) {
+                    return;
+                }
+                TapSchedule<GestureDescription> schedule = TapSchedule.atInterval(xs, ys, intervalMicros,
+                        strokeDuration, GestureDescription.getMaxStrokeCount(), maxBatchWindow(),
+                        gestureFactory(strokeDuration));
+                // A resume keeps the old loop's place and the time left until its next tap
+                markerLoop = resume ? engine.replace(markerLoop, schedule, burst) : engine.start(schedule, burst);
+            }
+        });
     }
 
-    public static void stopPatternPlayback() {
-        if (instance != null) {
-            instance.stopPatternPlaybackInternal();
+    /** Main thread; re-reads stale anchors and moves the markers' taps to wherever their views went. */
+    private void onAnchorsChanged() {
+        AnchorResolver resolver = anchorResolver;
+        if (resolver == null || !resolver.resolve(this)) {
+            return;
+        }
+        playMarkers(resolver.getXs(), resolver.getYs(), true);
+        MarkerPositionListener listener = markerPositionListener;
+        if (listener != null) {
+            listener.onMarkersMoved(resolver.getXs(), resolver.getYs());
         }
     }
 
-    private void startTappingInternal() {
-        if (isRunning || markers == null || markers.isEmpty()) {
+    /**
+     * Main thread; moves the running markers' taps to where {@code markerList} now has them,
+     * as after the screen turns, carrying on from the tap after the last one played. Anchored
+     * markers are looked up again on the turned screen.
+     */
+    static void moveMarkers(List<OverlayService.TapMarker> markerList) {
+        TapRepeaterService service = instance;
+        // A set edited since it started isn't the one playing
+        if (service == null || markerList.size() != service.markerCount) {
             return;
         }
+        int[] xs = new int[markerList.size()];
+        int[] ys = new int[markerList.size()];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = markerList.get(i).x;
+            ys[i] = markerList.get(i).y;
+        }
+        AnchorResolver resolver = service.anchorResolver;
+        if (resolver != null) {
+            resolver.moveTo(xs, ys);
+            resolver.resolve(service);
+            xs = resolver.getXs();
+            ys = resolver.getYs();
+        }
+        service.playMarkers(xs, ys, true);
+        MarkerPositionListener listener = markerPositionListener;
+        if (resolver != null && listener != null) {
+            listener.onMarkersMoved(xs, ys);
+        }
+    }
+
+    /**
+     * The view under {@code (x, y)} in the active window, to anchor a marker placed there; or
+     * null. Walks the window's tree, so call it off the main thread.
+     */
+    static NodeAnchor captureAnchor(int x, int y) {
+        TapRepeaterService service = instance;
+        return service != null ? AnchorResolver.capture(service, x, y) : null;
+    }
+
+    static void setMarkerPositionListener(MarkerPositionListener listener) {
+        markerPositionListener = listener;
+    }
+
+    static void setConnectionListener(ConnectionListener listener) {
+        connectionListener = listener;
+    }
+
+    /** Set while the markers are on screen; with none set the tap thread posts nothing for them. */
+    static void setMarkerHighlightListener(final MarkerHighlightListener listener) {
+        markerHighlightListener = listener;
+        final TapRepeaterService service = instance;
+        if (service != null) {
+            service.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The new listener starts from whatever the marker loop taps next
+                    service.publishedMarker = UNPUBLISHED;
+                }
+            });
+        }
+    }
 
-        isRunning = true;
-        currentMarkerIndex = 0;
+    /** False until the system has (re)started the service, e.g. just after the process was killed. */
+    static boolean isConnected() {
+        return instance != null;
+    }
 
-        tapRunnable = new Runnable() {
+    /** Stops the marker loop, or disarms the markers' trigger. */
+    public static void stopTapping() {
+        final TapRepeaterService service = instance;
+        if (service != null) {
+            service.disarm(MARKER_TRIGGER_ID);
+            service.disarm(ANCHOR_TRIGGER_ID);
+            if (service.anchorResolver != null) {
+                service.anchorResolver.release();
+                service.anchorResolver = null;
+            }
+            deactivate(service.markerLoop);
+            service.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (service.markerLoop != null) {
+                        service.markerLoop.stop();
+                        service.markerLoop = null;
+                    }
+                    service.publishActiveMarker();
+                }
+            });
+        }
+    }
+
+    /**
+     * Plays {@code pattern} in a loop at {@code speed} times its recorded speed, as source
+     * {@code sourceId}. Sources play side by side with each other and with the marker loop,
+     * each on its own period. The speed is applied to the schedule's copy of the timing, never
+     * to the pattern itself. If the source is already playing, it switches to the new pattern
+     * and speed from the next stroke on, when that stroke was due. With {@code onEvents} the pattern plays once through
+     * each time the app under its first tap changes its screen, rather than looping; returns
+     * false if there's no labelled view under its first tap to watch for.
+     */
+    public static boolean startPatternPlayback(final int sourceId, TapPattern pattern, float speed,
+                                               boolean onEvents) {
+        final TapRepeaterService service = instance;
+        if (service == null || pattern == null || pattern.isEmpty()) {
+            return false;
+        }
+        EventTrigger trigger = null;
+        if (onEvents) {
+            trigger = service.anchoredTrigger(sourceId, pattern.getX(0), pattern.getY(0));
+            if (trigger == null) {
+                return false;
+            }
+            stopPatternPlayback(sourceId);
+        } else {
+            service.disarm(sourceId);
+        }
+
+        int count = pattern.size();
+        final int[] xs = new int[count];
+        final int[] ys = new int[count];
+        final long[] offsets = new long[count];
+        final long[] durations = new long[count];
+        final Path[] paths = new Path[count];
+        // Strokes one gesture can't reproduce are streamed; continued strokes need API 26
+        final StrokeSegments[] streamed =
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? new StrokeSegments[count] : null;
+        long maxDuration = GestureDescription.getMaxGestureDuration();
+        long maxSegment = maxBatchWindow();
+        for (int i = 0; i < count; i++) {
+            xs[i] = pattern.getX(i);
+            ys[i] = pattern.getY(i);
+            offsets[i] = TapPattern.scaleTime(pattern.getTimestamp(i), speed);
+            // A tap of default length stays that long at any speed, or fast playback would lose it
+            long hold = TapPattern.scaleTime(pattern.getHold(i), speed);
+            durations[i] = Math.min(hold > 0 ? hold : TAP_DURATION_MS, maxDuration);
+            if (streamed != null && (pattern.getPointCount(i) > 2 || hold > maxSegment)) {
+                // Only points are planned here; segments are built on the tap thread when due
+                streamed[i] = StrokeSegments.plan(pattern, i, speed, MIN_SEGMENT_MS, maxSegment);
+                continue;
+            }
+            // Built once here; the schedule reuses them for every gesture it caches
+            Path path = new Path();
+            path.moveTo(pattern.getPointX(i, 0), pattern.getPointY(i, 0));
+            for (int p = 1; p < pattern.getPointCount(i); p++) {
+                path.lineTo(pattern.getPointX(i, p), pattern.getPointY(i, p));
+            }
+            paths[i] = path;
+        }
+        final long period = Math.max(TapPattern.scaleTime(pattern.cycleLength(), speed),
+                MIN_PATTERN_PERIOD_MS);
+
+        if (trigger != null) {
+            service.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    service.putTriggeredSource(sourceId,
+                            newSchedule(xs, ys, offsets, durations, paths, streamed, period), false);
+                }
+            });
+            service.arm(trigger);
+            return true;
+        }
+
+        service.handler.post(new Runnable() {
             @Override
             public void run() {
-                if (isRunning && markers != null && !markers.isEmpty()) {
-                    OverlayService.TapMarker marker = markers.get(currentMarkerIndex);
-                    performTap(marker.x, marker.y);
+                TapSchedule<GestureDescription> schedule =
+                        newSchedule(xs, ys, offsets, durations, paths, streamed, period);
+                TapEngine<GestureDescription>.Loop playing = service.patternLoops.get(sourceId);
+                // Same source, new speed: carry on from the stroke it would have played next,
+                // not from inside a batch already sent
+                service.patternLoops.put(sourceId, playing != null
+                        ? service.engine.replace(playing, schedule, false)
+                        : service.engine.start(schedule, false));
+            }
+        });
+        return true;
+    }
 
-                    currentMarkerIndex = (currentMarkerIndex + 1) % markers.size();
-                    handler.postDelayed(this, tapInterval);
+    /** Stops or disarms source {@code sourceId}; other sources and the marker loop play on. */
+    public static void stopPatternPlayback(final int sourceId) {
+        final TapRepeaterService service = instance;
+        if (service != null) {
+            service.disarm(sourceId);
+            deactivate(service.patternLoops.get(sourceId));
+            service.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    TapEngine<GestureDescription>.Loop loop = service.patternLoops.remove(sourceId);
+                    if (loop != null) {
+                        loop.stop();
+                    }
+                }
+            });
+        }
+    }
+
+    public static void stopAllPatternPlayback() {
+        final TapRepeaterService service = instance;
+        if (service != null) {
+            for (int i = service.triggers.size() - 1; i >= 0; i--) {
+                int id = service.triggers.get(i).id;
+                if (id != MARKER_TRIGGER_ID) {
+                    service.disarm(id);
                 }
             }
-        };
-        handler.post(tapRunnable);
+            for (TapEngine<GestureDescription>.Loop loop : service.patternLoops.values()) {
+                loop.deactivate();
+            }
+            service.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (TapEngine<GestureDescription>.Loop loop : service.patternLoops.values()) {
+                        loop.stop();
+                    }
+                    service.patternLoops.clear();
+                }
+            });
+        }
     }
 
-    private void stopTappingInternal() {
-        isRunning = false;
-        if (tapRunnable != null) {
-            handler.removeCallbacks(tapRunnable);
+    /**
+     * Packs consecutive taps into one multi-stroke gesture (up to the platform stroke and
+     * duration limits) instead of making one dispatchGesture call per tap.
+     */
+    public static void setBatchingEnabled(boolean enabled) {
+        batchingEnabled = enabled;
+        TapRepeaterService service = instance;
+        if (service != null) {
+            service.engine.setBatchingEnabled(enabled);
         }
     }
 
-    private void startPatternPlaybackInternal() {
-        if (isPatternPlaying || currentPattern == null || currentPattern.taps.isEmpty()) {
+    /** Index of the marker the marker loop tapped most recently, or -1 if it isn't tapping. */
+    static int getActiveMarkerIndex() {
+        TapRepeaterService service = instance;
+        return service != null ? service.activeMarkerIndex() : -1;
+    }
+
+    private int activeMarkerIndex() {
+        TapEngine<GestureDescription>.Loop loop = markerLoop;
+        int tap = loop != null ? loop.getLastTapIndex() : -1;
+        // The timeline repeats the marker list to fill batches
+        return tap >= 0 ? tap % markerCount : -1;
+    }
+
+    /** Tap thread; posts the active marker to the highlight listener when it has moved on. */
+    private void publishActiveMarker() {
+        if (markerHighlightListener == null) {
             return;
         }
+        int marker = activeMarkerIndex();
+        if (marker == publishedMarker) {
+            return;
+        }
+        publishedMarker = marker;
+        activeMarker = marker;
+        // Written before the flag is read, so a post already pending picks the new marker up
+        if (!highlightPosted) {
+            highlightPosted = true;
+            mainHandler.post(highlightUpdate);
+        }
+    }
 
-        isPatternPlaying = true;
-        final long patternDuration = currentPattern.duration;
+    /**
+     * Counts the objects the tap thread allocates, for the cost report. Off by default: while
+     * on, the runtime counts every allocation in the process, which slows all of them down.
+     */
+    public static void setAllocationCountingEnabled(boolean enabled) {
+        allocationCountingEnabled = enabled;
+        TapRepeaterService service = instance;
+        if (service != null) {
+            service.applyAllocationCounting();
+        }
+    }
 
-        // Function to play one cycle of the pattern
-        Runnable playCycle = new Runnable() {
+    private void applyAllocationCounting() {
+        handler.post(new Runnable() {
             @Override
+            @SuppressWarnings("deprecation")
             public void run() {
-                if (!isPatternPlaying || currentPattern == null) {
+                boolean enabled = allocationCountingEnabled;
+                if (enabled == countingAllocations) {
                     return;
                 }
+                countingAllocations = enabled;
+                if (enabled) {
+                    Debug.startAllocCounting();
+                } else {
+                    Debug.stopAllocCounting();
+                }
+            }
+        });
+    }
 
-                long cycleStartTime = System.currentTimeMillis();
-                
-                // Schedule each tap at its relative timestamp
-                for (OverlayService.PatternTap tap : currentPattern.taps) {
-                    final int x = tap.x;
-                    final int y = tap.y;
-                    long delay = tap.timestamp;
-                    
-                    handler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (isPatternPlaying) {
-                                performTap(x, y);
-                            }
-                        }
-                    }, delay);
+    /** Snapshot of the gesture pipeline counters, for display. */
+    static class DispatchStats {
+        long dispatched;
+        long completed;
+        long cancelled;
+        long tapsCompleted;
+        long tapsCancelled;
+        long pacingGapMs;
+        float achievedTapsPerMinute;
+        long lagP50Ms;
+        long lagP99Ms;
+        long completionP50Ms;
+        long completionP99Ms;
+        float cpuMicrosPerTap;
+        float allocationsPerTap; // NaN while allocations aren't counted
+        float wakeupsPerMinute;
+        float wakeupsPerTap;
+        long alarmWakeups;
+        boolean exactAlarms; // False while far deadlines fall back to the handler
+    }
+
+    /** Fills {@code out} with the current counters; returns false if the service isn't connected. */
+    static boolean readDispatchStats(DispatchStats out) {
+        TapRepeaterService service = instance;
+        if (service == null) {
+            return false;
+        }
+        TapTelemetry telemetry = service.engine.getTelemetry();
+        out.dispatched = telemetry.getGesturesDispatched();
+        out.completed = telemetry.getGesturesCompleted();
+        out.cancelled = telemetry.getGesturesCancelled();
+        out.tapsCompleted = telemetry.getTapsCompleted();
+        out.tapsCancelled = telemetry.getTapsCancelled();
+        out.pacingGapMs = service.engine.getPacingGapMs();
+        out.achievedTapsPerMinute = telemetry.achievedTapsPerMinute(SystemClock.elapsedRealtime());
+        out.lagP50Ms = telemetry.dispatchLag.percentile(0.5);
+        out.lagP99Ms = telemetry.dispatchLag.percentile(0.99);
+        out.completionP50Ms = telemetry.completionTime.percentile(0.5);
+        out.completionP99Ms = telemetry.completionTime.percentile(0.99);
+        TapCost cost = service.cost;
+        out.cpuMicrosPerTap = cost.cpuMicrosPerTap();
+        out.allocationsPerTap = cost.allocationsPerTap();
+        out.wakeupsPerMinute = cost.wakeupsPerMinute(SystemClock.elapsedRealtime());
+        out.wakeupsPerTap = cost.wakeupsPerTap();
+        out.alarmWakeups = cost.getAlarmWakeups();
+        out.exactAlarms = service.timer.usesExactAlarms();
+        return true;
+    }
+
+    /** Appends the engine's telemetry and the tap cost to a dumpsys report from another service. */
+    static void dumpTelemetry(PrintWriter writer) {
+        TapRepeaterService service = instance;
+        if (service == null) {
+            writer.println("Tap telemetry: accessibility service not connected");
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        service.engine.getTelemetry().dump(writer, now);
+        service.cost.dump(writer, now);
+        service.dumpTimer(writer);
+    }
+
+    private void dumpTimer(PrintWriter writer) {
+        writer.println(timer.usesExactAlarms()
+                ? "  far taps: exact alarms, allowed while idle"
+                : "  far taps: handler fallback, exact alarms not allowed; late while the device sleeps");
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("TapRepeaterService:");
+        writer.printf("  marker loop: %s, pattern sources playing: %s, batching: %s%n",
+                markerLoop != null ? "running" : "stopped",
+                patternLoops.keySet(),
+                batchingEnabled ? "on" : "off");
+        writer.printf("  armed triggers: %d%n", triggers.size());
+        writer.printf("  pacing gap: %d ms, allocation counting: %s%n",
+                engine.getPacingGapMs(), allocationCountingEnabled ? "on" : "off");
+        long now = SystemClock.elapsedRealtime();
+        engine.getTelemetry().dump(writer, now);
+        cost.dump(writer, now);
+        dumpTimer(writer);
+    }
+
+    /**
+     * Builds a trigger for the app whose window is active, conditioned on the view under
+     * {@code (x, y)} still being there: by resource id if it has one, else by its label.
+     * Null if no window can be read, or if nothing under the point has an id or a label:
+     * with no view to look for, every change anywhere in the app would fire it.
+     */
+    private EventTrigger anchoredTrigger(int id, int x, int y) {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return null;
+        }
+        CharSequence packageName = root.getPackageName();
+        if (packageName == null) {
+            AnchorResolver.recycle(root);
+            return null;
+        }
+        String viewId = null;
+        String text = null;
+        // Walk down to the innermost view containing the point, remembering the last one that
+        // can be found again; later children are drawn on top, so they're preferred
+        AccessibilityNodeInfo node = root;
+        while (node != null) {
+            if (node.getViewIdResourceName() != null) {
+                viewId = node.getViewIdResourceName();
+                text = null;
+            } else if (node.getText() != null && node.getText().length() <= MAX_TRIGGER_TEXT_LENGTH) {
+                text = node.getText().toString();
+                viewId = null;
+            }
+            AccessibilityNodeInfo next = null;
+            for (int i = node.getChildCount() - 1; i >= 0 && next == null; i--) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child == null) {
+                    continue;
+                }
+                child.getBoundsInScreen(nodeBounds);
+                if (child.isVisibleToUser() && nodeBounds.contains(x, y)) {
+                    next = child;
+                } else {
+                    AnchorResolver.recycle(child);
                 }
+            }
+            AnchorResolver.recycle(node);
+            node = next;
+        }
+        if (viewId == null && text == null) {
+            return null;
+        }
+        return new EventTrigger(id, TRIGGER_EVENT_TYPES, packageName.toString(), text, viewId,
+                TRIGGER_QUIET_MS, TRIGGER_MAX_WAIT_MS);
+    }
+
+    /** Main thread. */
+    private boolean isOnScreen(EventTrigger trigger) {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return false;
+        }
+        boolean found = (trigger.viewId == null || found(root.findAccessibilityNodeInfosByViewId(trigger.viewId)))
+                && (trigger.text == null || found(root.findAccessibilityNodeInfosByText(trigger.text)));
+        AnchorResolver.recycle(root);
+        return found;
+    }
 
-                // Schedule next cycle after pattern duration
-                handler.postDelayed(this, patternDuration);
+    /** Whether a search found anything; the nodes themselves aren't needed, so they're recycled. */
+    private static boolean found(List<AccessibilityNodeInfo> nodes) {
+        AnchorResolver.recycleAll(nodes);
+        return !nodes.isEmpty();
+    }
+
+    /** Main thread. */
+    private void arm(EventTrigger trigger) {
+        setTriggers(triggers.with(trigger));
+    }
+
+    /** Main thread; re-subscribes only if the events the triggers need have changed. */
+    private void setTriggers(TriggerSet set) {
+        TriggerSet previous = triggers;
+        triggers = set;
+        if (!set.subscribesLike(previous)) {
+            updateSubscription();
+        }
+    }
+
+    /** Subscribes to exactly the event types and packages the armed triggers listen to. */
+    private void updateSubscription() {
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info == null) {
+            return; // Not connected yet; onServiceConnected() will do it
+        }
+        info.eventTypes = triggers.eventTypes();
+        info.packageNames = triggers.packageNames();
+        setServiceInfo(info);
+    }
+
+    /** Main thread; drops the trigger and whatever pass of its timeline is playing. */
+    private void disarm(final int id) {
+        TriggerSet remaining = triggers.without(id);
+        if (remaining == triggers) {
+            return;
+        }
+        setTriggers(remaining);
+        if (triggers.isEmpty()) {
+            mainHandler.removeCallbacks(triggerCheck);
+            triggerCheckTime = Long.MAX_VALUE;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                removeTriggeredSource(id);
             }
-        };
+        });
+    }
+
+    /** Main thread; keeps at most one check posted, for the earliest deadline. */
+    private void scheduleTriggerCheck(long time) {
+        if (time >= triggerCheckTime) {
+            return;
+        }
+        mainHandler.removeCallbacks(triggerCheck);
+        triggerCheckTime = time;
+        mainHandler.postAtTime(triggerCheck, time);
+    }
 
-        // Start first cycle immediately
-        handler.post(playCycle);
+    private void fireTrigger(final int id) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                TriggeredSource source = triggeredSources.get(id);
+                // A pass still playing isn't restarted; the screen changing under it is expected
+                if (source != null && (source.loop == null || source.loop.isStopped())) {
+                    source.loop = engine.start(source.schedule, source.alwaysBatch, -1, 1);
+                }
+            }
+        });
     }
 
-    private void stopPatternPlaybackInternal() {
-        isPatternPlaying = false;
-        if (patternRunnable != null) {
-            handler.removeCallbacks(patternRunnable);
+    /** Tap thread. */
+    private void putTriggeredSource(int id, TapSchedule<GestureDescription> schedule, boolean alwaysBatch) {
+        removeTriggeredSource(id);
+        triggeredSources.put(id, new TriggeredSource(schedule, alwaysBatch));
+    }
+
+    /** Tap thread. */
+    private void removeTriggeredSource(int id) {
+        TriggeredSource source = triggeredSources.remove(id);
+        if (source != null && source.loop != null) {
+            source.loop.stop();
+        }
+    }
+
+    private static void deactivate(TapEngine<GestureDescription>.Loop loop) {
+        if (loop != null) {
+            loop.deactivate();
         }
     }
 
-    private void performTap(float x, float y) {
-        Path path = new Path();
-        path.moveTo(x, y);
+    /** Builds the immutable gestures a {@link TapSchedule} caches for each tap and batch. */
+    private static TapSchedule.GestureFactory<GestureDescription> gestureFactory(final long strokeDuration) {
+        return new TapSchedule.GestureFactory<GestureDescription>() {
+            @Override
+            public GestureDescription create(int[] xs, int[] ys, long[] offsets, int from, int to) {
+                Trace.beginSection("FloatingTap:buildGesture");
+                try {
+                    GestureDescription.Builder builder = new GestureDescription.Builder();
+                    for (int i = from; i < to; i++) {
+                        Path path = new Path();
+                        path.moveTo(xs[i], ys[i]);
+                        builder.addStroke(new GestureDescription.StrokeDescription(
+                                path, offsets[i] - offsets[from], strokeDuration));
+                    }
+                    return builder.build();
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        };
+    }
+
+    /**
+     * Like {@link #gestureFactory} but for recorded strokes, each following its own path for
+     * its own duration. The finger moves along the path at a steady speed, which matches the
+     * recording for the short, straight strokes that aren't streamed.
+     */
+    private static TapSchedule.GestureFactory<GestureDescription> strokeFactory(final Path[] paths,
+                                                                                final long[] durations) {
+        return new TapSchedule.GestureFactory<GestureDescription>() {
+            @Override
+            public GestureDescription create(int[] xs, int[] ys, long[] offsets, int from, int to) {
+                Trace.beginSection("FloatingTap:buildGesture");
+                try {
+                    GestureDescription.Builder builder = new GestureDescription.Builder();
+                    for (int i = from; i < to; i++) {
+                        builder.addStroke(new GestureDescription.StrokeDescription(
+                                paths[i], offsets[i] - offsets[from], durations[i]));
+                    }
+                    return builder.build();
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        };
+    }
+
+    /**
+     * Builds streamed strokes one segment at a time on the tap thread, chaining each onto the
+     * last with continueStroke so the finger stays down in between.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private static final class SegmentFactory implements TapSchedule.SegmentFactory<GestureDescription> {
+        // The segment that left the finger down, or null once it has lifted
+        private GestureDescription.StrokeDescription previous;
+
+        @Override
+        public GestureDescription createSegment(StrokeSegments stroke, int segment, long duration,
+                                                boolean continued) {
+            Trace.beginSection("FloatingTap:buildSegment");
+            try {
+                int from = stroke.segmentStart(segment);
+                int to = stroke.segmentEnd(segment);
+                Path path = new Path();
+                path.moveTo(stroke.getX(from), stroke.getY(from));
+                for (int p = from + 1; p <= to; p++) {
+                    // A finger resting in place is a bare moveTo, like a tap
+                    if (stroke.getX(p) != stroke.getX(p - 1) || stroke.getY(p) != stroke.getY(p - 1)) {
+                        path.lineTo(stroke.getX(p), stroke.getY(p));
+                    }
+                }
+                boolean willContinue = segment < stroke.segmentCount() - 1;
+                GestureDescription.StrokeDescription description = continued && previous != null
+                        ? previous.continueStroke(path, 0, duration, willContinue)
+                        : new GestureDescription.StrokeDescription(path, 0, duration, willContinue);
+                previous = willContinue ? description : null;
+                return new GestureDescription.Builder().addStroke(description).build();
+            } finally {
+                Trace.endSection();
+            }
+        }
 
-        GestureDescription.StrokeDescription stroke =
-                new GestureDescription.StrokeDescription(path, 0, 50);
+        @Override
+        public GestureDescription createRelease(StrokeSegments stroke, int segment) {
+            int end = stroke.segmentEnd(segment);
+            Path path = new Path();
+            path.moveTo(stroke.getX(end), stroke.getY(end));
+            GestureDescription.StrokeDescription description = previous.continueStroke(path, 0, 1, false);
+            previous = null;
+            return new GestureDescription.Builder().addStroke(description).build();
+        }
+    }
 
-        GestureDescription.Builder builder = new GestureDescription.Builder();
-        builder.addStroke(stroke);
+    private static long maxBatchWindow() {
+        return Math.min(MAX_BATCH_WINDOW_MS, GestureDescription.getMaxGestureDuration());
+    }
 
-        dispatchGesture(builder.build(), null, null);
+    private static TapSchedule<GestureDescription> newSchedule(int[] xs, int[] ys, long[] offsets, long[] durations,
+                                                               Path[] paths, StrokeSegments[] streamed, long period) {
+        return new TapSchedule<>(xs, ys, offsets, durations, streamed, period,
+                GestureDescription.getMaxStrokeCount(), maxBatchWindow(), strokeFactory(paths, durations),
+                streamed != null ? new SegmentFactory() : null);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,158 @@
+package com.example.floatingtap;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Trace;
+import com.example.floatingtap.engine.TapCost;
+
+/**
+ * Runs the tap engine's pump at its deadlines, choosing how by how far off a deadline is.
+ * Near ones are handler posts on the tap thread, accurate to a frame. Far ones (minute-scale
+ * intervals) leave nothing queued on the process: an exact alarm wakes the device shortly
+ * before the deadline, a partial wake lock keeps it awake through the tap, and the handler
+ * takes the last stretch so the tap still lands on time. Between taps the CPU can sleep.
+ * The alarm is allowed while idle, so Doze doesn't hold it to a maintenance window; in deep
+ * Doze the system still spaces such alarms several minutes apart, and taps due more often
+ * than that land late. Without the exact-alarm grant (Android 12 on) far deadlines fall back
+ * to the handler, which keeps time only while something else keeps the device awake; see
+ * {@link #usesExactAlarms}. Times are elapsed realtime, which keeps counting while the device
+ * is asleep. Each run of the pump counts as a wakeup in the {@link TapCost} and is a trace
+ * section. Tap thread only, apart from {@link #usesExactAlarms} and {@link #unregister}.
+ */
+final class TapTimer {
+
+    // Closer than this an alarm's wakeup costs more than just waiting
+    private static final long ALARM_MIN_DELAY_MS = 10000;
+    // How early the alarm goes off; covers alarm delivery slop, then the handler is exact
+    private static final long WAKE_LEAD_MS = 1000;
+    // Awake past the deadline for the gesture and its callback
+    private static final long WAKE_HOLD_MS = 3000;
+
+    // Private to the app: the alarm's broadcast goes to this package's receiver and no other
+    private static final String ACTION_ALARM = "com.example.floatingtap.action.TAP_ALARM";
+
+    private final Context context;
+    private final Handler handler;
+    private final AlarmManager alarmManager;
+    private final PendingIntent alarmIntent;
+    private final PowerManager.WakeLock wakeLock;
+    private final TapCost cost;
+    // The engine keeps a single pump posted, so one task and one alarm at a time is all that's needed
+    private Runnable task;
+    private boolean alarmSet;
+    private long alarmDeadline;
+
+    // Posted in place of the task, so it can be counted and traced without wrapping each post
+    private final Runnable wakeup = new Runnable() {
+        @Override
+        public void run() {
+            Runnable current = task;
+            task = null;
+            if (current == null) {
+                return;
+            }
+            cost.onWakeup();
+            Trace.beginSection("FloatingTap:pump");
+            try {
+                current.run();
+            } finally {
+                Trace.endSection();
+            }
+        }
+    };
+
+    // Registered on the tap thread's handler; only a PendingIntent alarm may go off while idle
+    private final BroadcastReceiver alarmReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!alarmSet) {
+                return;
+            }
+            alarmSet = false;
+            cost.onAlarmWakeup();
+            long delay = Math.max(alarmDeadline - SystemClock.elapsedRealtime(), 0);
+            // The system holds the device awake only while the broadcast is delivered
+            wakeLock.acquire(delay + WAKE_HOLD_MS);
+            handler.postDelayed(wakeup, delay);
+        }
+    };
+
+    TapTimer(Context context, Handler handler, TapCost cost) {
+        this.context = context;
+        this.handler = handler;
+        this.cost = cost;
+        this.alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        this.alarmIntent = PendingIntent.getBroadcast(context, 0,
+                new Intent(ACTION_ALARM).setPackage(context.getPackageName()), PendingIntent.FLAG_IMMUTABLE);
+        IntentFilter filter = new IntentFilter(ACTION_ALARM);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            context.registerReceiver(alarmReceiver, filter, null, handler, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(alarmReceiver, filter, null, handler);
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "FloatingTap:tap");
+        // Each wake window replaces the last rather than stacking up
+        wakeLock.setReferenceCounted(false);
+    }
+
+    void postAtTime(Runnable task, long elapsedMillis) {
+        this.task = task;
+        long delay = elapsedMillis - SystemClock.elapsedRealtime();
+        if (delay < ALARM_MIN_DELAY_MS || !usesExactAlarms()) {
+            // Same clock rate as elapsed realtime while awake, which a handler wait always is
+            handler.postDelayed(wakeup, Math.max(delay, 0));
+            return;
+        }
+        alarmSet = true;
+        alarmDeadline = elapsedMillis;
+        alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                elapsedMillis - WAKE_LEAD_MS, alarmIntent);
+    }
+
+    void removeCallbacks(Runnable task) {
+        if (this.task != task) {
+            return;
+        }
+        this.task = null;
+        handler.removeCallbacks(wakeup);
+        if (alarmSet) {
+            alarmManager.cancel(alarmIntent);
+            alarmSet = false;
+        }
+    }
+
+    /** Stops listening for the alarm; any thread, while the service is being destroyed. */
+    void unregister() {
+        context.unregisterReceiver(alarmReceiver);
+    }
+
+    /** Cancels any alarm and lets the device sleep; for when the service goes away. */
+    void release() {
+        task = null;
+        handler.removeCallbacks(wakeup);
+        if (alarmSet) {
+            alarmManager.cancel(alarmIntent);
+            alarmSet = false;
+        }
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+    }
+
+    /**
+     * Whether far deadlines get an exact alarm, or only the handler fallback because the user
+     * hasn't granted exact alarms. Any thread.
+     */
+    boolean usesExactAlarms() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S || alarmManager.canScheduleExactAlarms();
+    }
+}
@@ -0,0 +1,25 @@
+// JMH benchmarks for :tapengine. Run with ./gradlew :benchmark:jmh; results land in
+// build/results/jmh/results.json for CI to compare against the previous run
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    jmh(project(":tapengine"))
+    jmh(testFixtures(project(":tapengine")))
+}
+
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    resultFormat.set("JSON")
+    // Reports gc.alloc.rate.norm, the bytes allocated per benchmark operation
+    profilers.add("gc")
+}
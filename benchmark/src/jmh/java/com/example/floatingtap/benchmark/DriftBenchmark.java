@@ -0,0 +1,97 @@
+package com.example.floatingtap.benchmark;
+
+import com.example.floatingtap.engine.SimulatedTapHost;
+import com.example.floatingtap.engine.TapEngine;
+import com.example.floatingtap.engine.TapSchedule;
+import com.example.floatingtap.engine.TapTelemetry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Plays one simulated minute of a marker loop through {@link TapEngine} at a given rate and
+ * reports, next to the wall time, how far dispatches drifted from their deadlines and how many
+ * taps per second actually went out. The simulated system takes each gesture's stroke time plus
+ * a fixed latency to complete it, as a device does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DriftBenchmark {
+
+    private static final long TAP_DURATION = 50;
+    private static final long COMPLETION_LATENCY_MS = 8;
+    private static final long SIMULATED_MS = 60_000;
+    private static final int MARKERS = 5;
+
+    @Param({"1", "10", "50", "100"})
+    public int tapsPerSecond;
+
+    @Param({"false", "true"})
+    public boolean batching;
+
+    /** Drift of the run just measured; single-shot mode gives one run per iteration. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drift {
+        public long lagP50Ms;
+        public long lagP99Ms;
+        public long lagMaxMs;
+        public double achievedTapsPerSecond;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            lagP50Ms = 0;
+            lagP99Ms = 0;
+            lagMaxMs = 0;
+            achievedTapsPerSecond = 0;
+        }
+    }
+
+    private int[] xs;
+    private long[] offsets;
+    private long period;
+    private TapSchedule.GestureFactory<SimulatedTapHost.Gesture> factory;
+
+    @Setup
+    public void setUp() {
+        long interval = 1000 / tapsPerSecond;
+        xs = new int[MARKERS];
+        offsets = new long[MARKERS];
+        for (int i = 0; i < MARKERS; i++) {
+            xs[i] = i * 100;
+            offsets[i] = i * interval;
+        }
+        period = MARKERS * interval;
+        factory = SimulatedTapHost.gestureFactory(TAP_DURATION);
+    }
+
+    @Benchmark
+    public long simulateMinute(Drift drift) {
+        SimulatedTapHost host = new SimulatedTapHost(0, COMPLETION_LATENCY_MS);
+        TapEngine<SimulatedTapHost.Gesture> engine = new TapEngine<>(host, host);
+        host.attach(engine);
+        engine.setBatchingEnabled(batching);
+        engine.start(new TapSchedule<>(xs, xs, offsets, period, TAP_DURATION, 20, 1000, factory));
+        host.runUntil(SIMULATED_MS);
+
+        TapTelemetry telemetry = engine.getTelemetry();
+        drift.lagP50Ms = telemetry.dispatchLag.percentile(0.5);
+        drift.lagP99Ms = telemetry.dispatchLag.percentile(0.99);
+        drift.lagMaxMs = telemetry.dispatchLag.max();
+        drift.achievedTapsPerSecond = telemetry.getTapsDispatched() * 1000.0 / SIMULATED_MS;
+        return telemetry.getTapsDispatched();
+    }
+}
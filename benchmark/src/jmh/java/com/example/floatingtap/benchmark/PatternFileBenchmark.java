@@ -0,0 +1,56 @@
+package com.example.floatingtap.benchmark;
+
+import com.example.floatingtap.engine.PatternFile;
+import com.example.floatingtap.engine.TapPattern;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Encode and decode throughput of the binary pattern format, in memory. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PatternFileBenchmark {
+
+    @Param({"1000", "100000"})
+    public int taps;
+
+    private TapPattern pattern;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        // Recorded-looking input: small moves between taps a few hundred ms apart
+        Random random = new Random(42);
+        pattern = new TapPattern("bench", taps);
+        int x = 540;
+        int y = 1200;
+        long time = 0;
+        for (int i = 0; i < taps; i++) {
+            x = Math.max(0, Math.min(1080, x + random.nextInt(201) - 100));
+            y = Math.max(0, Math.min(2400, y + random.nextInt(201) - 100));
+            time += 50 + random.nextInt(400);
+            pattern.addTap(x, y, time);
+        }
+        encoded = PatternFile.encode(pattern);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return PatternFile.encode(pattern);
+    }
+
+    @Benchmark
+    public TapPattern decode() throws IOException {
+        return PatternFile.decode(ByteBuffer.wrap(encoded));
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.floatingtap.benchmark;
+
+import com.example.floatingtap.engine.SimulatedTapHost;
+import com.example.floatingtap.engine.TapSchedule;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the per-tap work on the tap thread ({@code takeNext}) and of precompiling a
+ * schedule. With {@code -prof gc}, {@code gc.alloc.rate.norm} on {@link #takeNext} is the
+ * allocation per dispatched gesture and should stay at zero.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TapScheduleBenchmark {
+
+    private static final long TAP_DURATION = 50;
+
+    @Param({"10", "1000"})
+    public int taps;
+
+    @Param({"false", "true"})
+    public boolean batching;
+
+    private int[] xs;
+    private int[] ys;
+    private long[] offsets;
+    private TapSchedule.GestureFactory<SimulatedTapHost.Gesture> factory;
+    private TapSchedule<SimulatedTapHost.Gesture> schedule;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        xs = new int[taps];
+        ys = new int[taps];
+        offsets = new long[taps];
+        for (int i = 0; i < taps; i++) {
+            xs[i] = i % 1080;
+            ys[i] = i % 2400;
+            offsets[i] = i * 10L;
+        }
+        factory = SimulatedTapHost.gestureFactory(TAP_DURATION);
+        schedule = newSchedule();
+        now = 0;
+        schedule.start(now);
+    }
+
+    private TapSchedule<SimulatedTapHost.Gesture> newSchedule() {
+        return new TapSchedule<>(xs, ys, offsets, taps * 10L, TAP_DURATION, 20, 1000, factory);
+    }
+
+    @Benchmark
+    public SimulatedTapHost.Gesture takeNext() {
+        // Same sequence as a loop iteration that's on time
+        now = schedule.nextDeadline();
+        SimulatedTapHost.Gesture gesture = schedule.takeNext(batching);
+        schedule.resyncIfBehind(now);
+        return gesture;
+    }
+
+    @Benchmark
+    public TapSchedule<SimulatedTapHost.Gesture> compile() {
+        return newSchedule();
+    }
+}
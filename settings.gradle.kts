@@ -21,4 +21,6 @@ dependencyResolutionManagement {
 
 rootProject.name = "FloatingTapRepeater"
 include(":app")
+include(":tapengine")
+include(":benchmark")
  
\ No newline at end of file
@@ -0,0 +1,15 @@
+// Scheduling, telemetry and pattern storage with no Android dependency, so they can be unit
+// tested and benchmarked on a plain JVM. The simulated host in testFixtures drives both
+plugins {
+    `java-library`
+    `java-test-fixtures`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
@@ -0,0 +1,84 @@
+package com.example.floatingtap.engine;
+
+import java.util.Arrays;
+
+/**
+ * Last known screen bounds of each anchored marker's node, and the window it was found in.
+ * A content change in one window invalidates only the entries from that window, so after a
+ * burst of events just those markers are looked up again; the rest keep tapping where their
+ * node was without the tree being touched.
+ */
+public final class AnchorCache {
+
+    private final int[] windowIds;
+    private final int[] bounds; // left, top, right, bottom per slot
+    private final boolean[] valid;
+    private int invalidCount;
+
+    public AnchorCache(int slots) {
+        windowIds = new int[slots];
+        bounds = new int[slots * 4];
+        valid = new boolean[slots];
+        invalidCount = slots;
+    }
+
+    public int size() {
+        return valid.length;
+    }
+
+    public void put(int slot, int windowId, int left, int top, int right, int bottom) {
+        windowIds[slot] = windowId;
+        bounds[slot * 4] = left;
+        bounds[slot * 4 + 1] = top;
+        bounds[slot * 4 + 2] = right;
+        bounds[slot * 4 + 3] = bottom;
+        if (!valid[slot]) {
+            valid[slot] = true;
+            invalidCount--;
+        }
+    }
+
+    public boolean isValid(int slot) {
+        return valid[slot];
+    }
+
+    /** Slots whose bounds need looking up again. */
+    public int invalidCount() {
+        return invalidCount;
+    }
+
+    public int getLeft(int slot) {
+        return bounds[slot * 4];
+    }
+
+    public int getTop(int slot) {
+        return bounds[slot * 4 + 1];
+    }
+
+    public int getRight(int slot) {
+        return bounds[slot * 4 + 2];
+    }
+
+    public int getBottom(int slot) {
+        return bounds[slot * 4 + 3];
+    }
+
+    /** Marks every entry found in window {@code windowId} stale; returns how many were. */
+    public int invalidateWindow(int windowId) {
+        int invalidated = 0;
+        for (int i = 0; i < valid.length; i++) {
+            if (valid[i] && windowIds[i] == windowId) {
+                valid[i] = false;
+                invalidated++;
+            }
+        }
+        invalidCount += invalidated;
+        return invalidated;
+    }
+
+    /** E.g. when another window came to the front. */
+    public void invalidateAll() {
+        Arrays.fill(valid, false);
+        invalidCount = valid.length;
+    }
+}
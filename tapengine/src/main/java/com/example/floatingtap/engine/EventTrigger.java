@@ -0,0 +1,83 @@
+package com.example.floatingtap.engine;
+
+/**
+ * A condition on the accessibility event stream that starts taps: events of the given types
+ * from the given package arm it, and it fires once the burst they came in has settled. The
+ * event part is compiled down to a type mask and a package name compared without copying, so
+ * an event costs a few comparisons; the node part (text or view id that must be on screen) is
+ * left to the caller to check once per firing, since it needs a walk of the window.
+ */
+public final class EventTrigger {
+
+    public static final int ANY_EVENT_TYPE = -1;
+
+    public final int id;
+    final int eventTypes; // Mask of AccessibilityEvent types
+    final String packageName; // Null matches any package
+    public final String text; // Visible text the screen must contain when firing, or null
+    public final String viewId; // Full resource id ("package:id/name") that must be on screen, or null
+    final long quietMs;
+    final long maxWaitMs;
+
+    // Debounce state, touched only by the thread feeding events
+    private boolean armed = false;
+    private long firstMatch;
+    private long lastMatch;
+
+    /**
+     * @param viewId    resource id of a view that must be present; a bare name ("start") is
+     *                  resolved against {@code packageName}
+     * @param quietMs   how long the stream must stay quiet after a match before firing
+     * @param maxWaitMs longest a steady stream of matches can hold off firing
+     */
+    public EventTrigger(int id, int eventTypes, String packageName, String text, String viewId,
+                        long quietMs, long maxWaitMs) {
+        if (quietMs < 0 || maxWaitMs < quietMs) {
+            throw new IllegalArgumentException("Need 0 <= quietMs <= maxWaitMs");
+        }
+        this.id = id;
+        this.eventTypes = eventTypes;
+        this.packageName = packageName;
+        this.text = text != null && !text.isEmpty() ? text : null;
+        if (viewId != null && !viewId.isEmpty() && viewId.indexOf(':') < 0 && packageName != null) {
+            viewId = packageName + ":id/" + viewId;
+        }
+        this.viewId = viewId != null && !viewId.isEmpty() ? viewId : null;
+        this.quietMs = quietMs;
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    /** True if firing also needs {@link #text} or {@link #viewId} to be found on screen. */
+    public boolean hasNodeCondition() {
+        return text != null || viewId != null;
+    }
+
+    boolean matches(int eventType, CharSequence eventPackage) {
+        if ((eventTypes & eventType) == 0) {
+            return false;
+        }
+        return packageName == null || (eventPackage != null && packageName.contentEquals(eventPackage));
+    }
+
+    /** Records a matching event at {@code now}, extending the burst it belongs to. */
+    void onMatch(long now) {
+        if (!armed) {
+            armed = true;
+            firstMatch = now;
+        }
+        lastMatch = now;
+    }
+
+    boolean isArmed() {
+        return armed;
+    }
+
+    /** When an armed trigger fires: after a quiet spell, or when the burst has gone on too long. */
+    long deadline() {
+        return Math.min(lastMatch + quietMs, firstMatch + maxWaitMs);
+    }
+
+    void disarm() {
+        armed = false;
+    }
+}
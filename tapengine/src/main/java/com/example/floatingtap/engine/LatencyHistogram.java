@@ -0,0 +1,82 @@
+package com.example.floatingtap.engine;
+
+/**
+ * Fixed-bucket millisecond histogram. Recording is a binary search and an increment, with
+ * no allocation, so it can sit on the tap hot path. Written by one thread; readers on other
+ * threads see approximate (but never wildly wrong) values, which is fine for telemetry.
+ */
+public final class LatencyHistogram {
+
+    // Inclusive upper bound of each bucket in ms; one overflow bucket sits past the last
+    private static final long[] BOUNDS = {
+            0, 1, 2, 3, 4, 5, 6, 8, 10, 12, 15, 20, 25, 30, 40, 50, 60, 80, 100, 120, 150,
+            200, 250, 300, 400, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000
+    };
+
+    private final long[] counts = new long[BOUNDS.length + 1];
+    private volatile long total;
+    private volatile long sum;
+    private volatile long max;
+
+    public void record(long valueMs) {
+        long value = Math.max(valueMs, 0);
+        int low = 0;
+        int high = BOUNDS.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (BOUNDS[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        counts[low]++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+        total++;
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        long n = total;
+        return n == 0 ? 0 : (double) sum / n;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given quantile (0..1); the recorded max for the
+     * overflow bucket. Accurate to the bucket width, which is what jitter reporting needs.
+     */
+    public long percentile(double quantile) {
+        long n = total;
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i < BOUNDS.length ? Math.min(BOUNDS[i], max) : max;
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        total = 0;
+        sum = 0;
+        max = 0;
+    }
+}
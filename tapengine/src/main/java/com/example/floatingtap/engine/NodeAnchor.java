@@ -0,0 +1,87 @@
+package com.example.floatingtap.engine;
+
+/**
+ * Where a marker sits, described by the accessibility node under it rather than by screen
+ * coordinates, so the tap follows the view when the app moves, scrolls or re-lays it out.
+ * The node is found again by resource id, else by its exact text, else by the path of
+ * class names and child indices from the window's root; the tap lands at the same relative
+ * spot inside the node's bounds as the marker was placed.
+ */
+public final class NodeAnchor {
+
+    public final String packageName;
+    public final String viewId; // Null if the node has none
+    public final String text; // Null if the node has none
+    // Class name and index among its siblings of each node from the root down; index 0 is the root's
+    private final String[] pathClasses;
+    private final int[] pathIndices;
+    public final float fractionX; // Across the node's bounds, 0 at the left edge and 1 at the right
+    public final float fractionY;
+
+    public NodeAnchor(String packageName, String viewId, String text, String[] pathClasses, int[] pathIndices,
+                      float fractionX, float fractionY) {
+        if (pathClasses.length != pathIndices.length) {
+            throw new IllegalArgumentException("Path classes and indices differ in length");
+        }
+        this.packageName = packageName;
+        this.viewId = viewId;
+        this.text = text;
+        this.pathClasses = pathClasses;
+        this.pathIndices = pathIndices;
+        this.fractionX = fractionX;
+        this.fractionY = fractionY;
+    }
+
+    /** Nodes on the path, the root included. */
+    public int depth() {
+        return pathClasses.length;
+    }
+
+    public String getPathClass(int level) {
+        return pathClasses[level];
+    }
+
+    public int getPathIndex(int level) {
+        return pathIndices[level];
+    }
+
+    /**
+     * Whether a node with {@code viewId} and {@code text} is still the anchored view; a node
+     * re-read from the cache can be a recycled view now showing something else. By id if the
+     * anchor has one, else by exact text; an anchor with neither takes any node.
+     */
+    public boolean matches(CharSequence viewId, CharSequence text) {
+        if (this.viewId != null) {
+            return viewId != null && this.viewId.contentEquals(viewId);
+        }
+        return this.text == null || hasText(text);
+    }
+
+    /** Exactly the anchor's text; a search by text also finds substrings, ignoring case. */
+    public boolean hasText(CharSequence text) {
+        return this.text != null && text != null && this.text.contentEquals(text);
+    }
+
+    /** Whether a node of {@code className} can be the path's node at {@code level}. */
+    public boolean matchesPathClass(int level, CharSequence className) {
+        return className != null && pathClasses[level].contentEquals(className);
+    }
+
+    /** Screen x of the tap for a node spanning {@code left..right}. */
+    public int pointX(int left, int right) {
+        return left + Math.round(fractionX * (right - left));
+    }
+
+    /** Screen y of the tap for a node spanning {@code top..bottom}. */
+    public int pointY(int top, int bottom) {
+        return top + Math.round(fractionY * (bottom - top));
+    }
+
+    /** Where {@code value} falls between {@code from} and {@code to}, clamped to 0..1. */
+    public static float fraction(int value, int from, int to) {
+        if (to <= from) {
+            return 0.5f;
+        }
+        return Math.min(Math.max((value - from) / (float) (to - from), 0f), 1f);
+    }
+}
@@ -0,0 +1,244 @@
+package com.example.floatingtap.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of a {@link TapPattern}.
+ *
+ * <pre>
+ * "FTPT" magic, version byte
+ * varint name length, UTF-8 name
+ * varint stroke count, varint duration, varint tail
+ * coordinate byte: 1 for {@link ScreenSpace} units, 0 for screen pixels
+ * per stroke: varint (zigzag dt from the previous stroke's start) &lt;&lt; 1 | plain-tap flag
+ *             plain tap: zigzag varint dx, zigzag varint dy
+ *             otherwise: varint hold, varint point count, then per point:
+ *                        zigzag varint dx, zigzag varint dy,
+ *                        varint dt from the previous point (omitted for the first)
+ * </pre>
+ *
+ * Position deltas run from the previous point across strokes. Neighbouring points are close in
+ * space and time, so most deltas fit in one or two bytes, and a plain tap takes only its
+ * position deltas beyond its start. Any other version is rejected.
+ */
+public final class PatternFile {
+
+    private static final byte[] MAGIC = {'F', 'T', 'P', 'T'};
+    private static final int VERSION = 4;
+
+    private PatternFile() {}
+
+    public static void write(TapPattern pattern, File file) throws IOException {
+        // Write to a sibling first so a crash mid-write never leaves a truncated pattern behind
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(encode(pattern));
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    public static TapPattern read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public static byte[] encode(TapPattern pattern) {
+        int count = pattern.size();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + count * 3 + pattern.pointCount() * 3);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+
+        byte[] name = (pattern.name != null ? pattern.name : "").getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, name.length);
+        out.write(name, 0, name.length);
+        writeVarint(out, count);
+        writeVarint(out, pattern.duration);
+        writeVarint(out, pattern.tail);
+        out.write(pattern.normalized ? 1 : 0);
+
+        int lastX = 0;
+        int lastY = 0;
+        long lastTime = 0;
+        for (int i = 0; i < count; i++) {
+            long time = pattern.getTimestamp(i);
+            int points = pattern.getPointCount(i);
+            boolean plainTap = points == 1 && pattern.getHold(i) == 0;
+            writeVarint(out, zigzag(time - lastTime) << 1 | (plainTap ? 1 : 0));
+            lastTime = time;
+            if (!plainTap) {
+                writeVarint(out, pattern.getHold(i));
+                writeVarint(out, points);
+            }
+            long lastPointTime = 0;
+            for (int p = 0; p < points; p++) {
+                int x = pattern.getPointX(i, p);
+                int y = pattern.getPointY(i, p);
+                writeVarint(out, zigzag(x - lastX));
+                writeVarint(out, zigzag(y - lastY));
+                lastX = x;
+                lastY = y;
+                if (p > 0) {
+                    long pointTime = pattern.getPointTime(i, p);
+                    writeVarint(out, pointTime - lastPointTime);
+                    lastPointTime = pointTime;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Name, stroke count, duration and tail, readable without decoding the strokes. */
+    public static final class Header {
+        public String name;
+        public int tapCount;
+        public long duration;
+        public long tail;
+        public boolean normalized;
+    }
+
+    public static Header readHeader(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            Header header = new Header();
+            decodeHeader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), header);
+            return header;
+        }
+    }
+
+    public static TapPattern decode(ByteBuffer in) throws IOException {
+        Header header = new Header();
+        decodeHeader(in, header);
+        try {
+            TapPattern pattern = new TapPattern(header.name, header.tapCount);
+            decodeStrokes(in, header.tapCount, pattern);
+            pattern.duration = header.duration;
+            pattern.tail = header.tail;
+            pattern.normalized = header.normalized;
+            return pattern;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated pattern file", e);
+        }
+    }
+
+    private static void decodeStrokes(ByteBuffer in, int count, TapPattern pattern) throws IOException {
+        // One scratch stroke, grown to the longest one in the file
+        int[] xs = new int[16];
+        int[] ys = new int[16];
+        long[] times = new long[16];
+        int x = 0;
+        int y = 0;
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            long start = readVarint(in);
+            time += unzigzag(start >>> 1);
+            if ((start & 1) != 0) {
+                x += (int) unzigzag(readVarint(in));
+                y += (int) unzigzag(readVarint(in));
+                pattern.addTap(x, y, time);
+                continue;
+            }
+            long hold = readVarint(in);
+            int points = (int) readVarint(in);
+            // Every point takes at least two bytes
+            if (points < 1 || points > in.remaining() / 2 + 1) {
+                throw new IOException("Corrupt point count " + points);
+            }
+            if (points > xs.length) {
+                xs = new int[points];
+                ys = new int[points];
+                times = new long[points];
+            }
+            long pointTime = 0;
+            for (int p = 0; p < points; p++) {
+                x += (int) unzigzag(readVarint(in));
+                y += (int) unzigzag(readVarint(in));
+                if (p > 0) {
+                    pointTime += readVarint(in);
+                }
+                xs[p] = x;
+                ys[p] = y;
+                times[p] = pointTime;
+            }
+            pattern.addStroke(time, hold, xs, ys, times, points);
+        }
+    }
+
+    private static void decodeHeader(ByteBuffer in, Header out) throws IOException {
+        try {
+            for (byte magic : MAGIC) {
+                if (in.get() != magic) {
+                    throw new IOException("Not a tap pattern file");
+                }
+            }
+            int version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported pattern file version " + version);
+            }
+
+            int nameLength = (int) readVarint(in);
+            if (nameLength < 0 || nameLength > in.remaining()) {
+                throw new IOException("Corrupt pattern name");
+            }
+            byte[] name = new byte[nameLength];
+            in.get(name);
+            int count = (int) readVarint(in);
+            long duration = readVarint(in);
+            long tail = readVarint(in);
+            boolean normalized = in.get() != 0;
+            // Every tap takes at least three bytes, which bounds a corrupt count
+            if (count < 0 || count > in.remaining() / 3) {
+                throw new IOException("Corrupt tap count " + count);
+            }
+
+            out.name = new String(name, StandardCharsets.UTF_8);
+            out.tapCount = count;
+            out.duration = duration;
+            out.tail = tail;
+            out.normalized = normalized;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated pattern file", e);
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,362 @@
+package com.example.floatingtap.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Directory of named patterns. A small index (name, tap count, cycle length, file size) is kept
+ * in memory for listing; pattern bodies are read on the IO executor only when asked for and
+ * held in an LRU cache bounded by total stroke points (a plain tap is one point), so memory
+ * stays flat however many patterns are stored. Callbacks are delivered on the callback executor.
+ */
+public final class PatternLibrary {
+
+    public static final class Entry {
+        public final int id;
+        public final String name;
+        public final int tapCount;
+        public final long cycleLength; // One pass as it loops, tail included, as TapPattern.cycleLength()
+        public final long sizeBytes;
+
+        public Entry(int id, String name, int tapCount, long cycleLength, long sizeBytes) {
+            this.id = id;
+            this.name = name;
+            this.tapCount = tapCount;
+            this.cycleLength = cycleLength;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    public interface Listener {
+        void onIndexChanged();
+    }
+
+    public interface LoadCallback {
+        void onLoaded(Entry entry, TapPattern pattern);
+
+        void onLoadFailed(Entry entry, IOException error);
+    }
+
+    public interface SaveCallback {
+        void onSaved(Entry entry);
+
+        void onSaveFailed(IOException error);
+    }
+
+    private static final String INDEX_FILE_NAME = "index.dat";
+    private static final String PATTERN_SUFFIX = ".ftp";
+    private static final int INDEX_MAGIC = 0x46544958; // "FTIX"
+    private static final int INDEX_VERSION = 2;
+
+    private final File directory;
+    private final long maxCachedTaps;
+    private final Executor ioExecutor;
+    private final Executor callbackExecutor;
+    private Listener listener;
+
+    // Guarded by this
+    private final List<Entry> entries = new ArrayList<>();
+    private final LinkedHashMap<Integer, TapPattern> cache =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedTaps = 0;
+    private int nextId = 1;
+
+    public PatternLibrary(File directory, long maxCachedTaps, Executor ioExecutor, Executor callbackExecutor) {
+        this.directory = directory;
+        this.maxCachedTaps = maxCachedTaps;
+        this.ioExecutor = ioExecutor;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Reads the index (rebuilding it from pattern file headers if it's missing or corrupt). */
+    public void open() {
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                directory.mkdirs();
+                List<Entry> loaded;
+                int loadedNextId;
+                try {
+                    loaded = new ArrayList<>();
+                    loadedNextId = readIndex(loaded);
+                } catch (IOException e) {
+                    loaded = new ArrayList<>();
+                    loadedNextId = rebuildIndex(loaded);
+                    writeIndexQuietly(loaded, loadedNextId);
+                }
+                synchronized (PatternLibrary.this) {
+                    entries.clear();
+                    entries.addAll(loaded);
+                    nextId = loadedNextId;
+                }
+                notifyIndexChanged();
+            }
+        });
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    public synchronized Entry findEntry(int id) {
+        for (Entry entry : entries) {
+            if (entry.id == id) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static String defaultName(int id) {
+        return "Pattern " + id;
+    }
+
+    /**
+     * Stores a pattern under a new id; the pattern must not be modified afterwards. One without
+     * a name is named after that id as it's allocated, so the two always agree; read its name
+     * only once {@link SaveCallback#onSaved} has been called.
+     */
+    public void save(final TapPattern pattern, final SaveCallback callback) {
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Allocated here, after open() has read the stored next id
+                final int id;
+                synchronized (PatternLibrary.this) {
+                    id = nextId++;
+                }
+                if (pattern.name == null) {
+                    pattern.name = defaultName(id);
+                }
+                File file = patternFile(id);
+                try {
+                    PatternFile.write(pattern, file);
+                } catch (final IOException e) {
+                    // Never indexed, so a partial file would only be found again by a rebuild
+                    file.delete();
+                    if (callback != null) {
+                        callbackExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onSaveFailed(e);
+                            }
+                        });
+                    }
+                    return;
+                }
+                final Entry entry = new Entry(id, pattern.name, pattern.size(), pattern.cycleLength(), file.length());
+                List<Entry> snapshot;
+                int snapshotNextId;
+                synchronized (PatternLibrary.this) {
+                    entries.add(entry);
+                    putInCache(id, pattern);
+                    snapshot = new ArrayList<>(entries);
+                    snapshotNextId = nextId;
+                }
+                writeIndexQuietly(snapshot, snapshotNextId);
+                notifyIndexChanged();
+                if (callback != null) {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSaved(entry);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /** Delivers the pattern from the cache, or reads it on the IO executor first. */
+    public void load(final Entry entry, final LoadCallback callback) {
+        final TapPattern cached;
+        synchronized (this) {
+            cached = cache.get(entry.id);
+        }
+        if (cached != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onLoaded(entry, cached);
+                }
+            });
+            return;
+        }
+
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final TapPattern pattern = PatternFile.read(patternFile(entry.id));
+                    synchronized (PatternLibrary.this) {
+                        putInCache(entry.id, pattern);
+                    }
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onLoaded(entry, pattern);
+                        }
+                    });
+                } catch (final IOException e) {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onLoadFailed(entry, e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    public void delete(final Entry entry) {
+        synchronized (this) {
+            entries.remove(entry);
+            TapPattern removed = cache.remove(entry.id);
+            if (removed != null) {
+                cachedTaps -= removed.pointCount();
+            }
+        }
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                patternFile(entry.id).delete();
+                // Snapshot here, behind any save queued earlier, so the index never drops it
+                List<Entry> snapshot;
+                int snapshotNextId;
+                synchronized (PatternLibrary.this) {
+                    snapshot = new ArrayList<>(entries);
+                    snapshotNextId = nextId;
+                }
+                writeIndexQuietly(snapshot, snapshotNextId);
+            }
+        });
+        notifyIndexChanged();
+    }
+
+    public synchronized long getCachedTaps() {
+        return cachedTaps;
+    }
+
+    // Caller holds the lock
+    private void putInCache(int id, TapPattern pattern) {
+        TapPattern previous = cache.put(id, pattern);
+        if (previous != null) {
+            cachedTaps -= previous.pointCount();
+        }
+        cachedTaps += pattern.pointCount();
+        // Evict least recently used bodies, but always keep the one just added
+        Iterator<Map.Entry<Integer, TapPattern>> it = cache.entrySet().iterator();
+        while (cachedTaps > maxCachedTaps && cache.size() > 1 && it.hasNext()) {
+            Map.Entry<Integer, TapPattern> eldest = it.next();
+            if (eldest.getKey() == id) {
+                continue;
+            }
+            cachedTaps -= eldest.getValue().pointCount();
+            it.remove();
+        }
+    }
+
+    private void notifyIndexChanged() {
+        final Listener current = listener;
+        if (current != null) {
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    current.onIndexChanged();
+                }
+            });
+        }
+    }
+
+    private File patternFile(int id) {
+        return new File(directory, id + PATTERN_SUFFIX);
+    }
+
+    private int readIndex(List<Entry> out) throws IOException {
+        File file = new File(directory, INDEX_FILE_NAME);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unrecognised pattern index");
+            }
+            int storedNextId = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                out.add(new Entry(in.readInt(), in.readUTF(), in.readInt(), in.readLong(), in.readLong()));
+            }
+            return storedNextId;
+        }
+    }
+
+    private int rebuildIndex(List<Entry> out) {
+        int maxId = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (!fileName.endsWith(PATTERN_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    int id = Integer.parseInt(fileName.substring(0, fileName.length() - PATTERN_SUFFIX.length()));
+                    PatternFile.Header header = PatternFile.readHeader(file);
+                    out.add(new Entry(id, header.name, header.tapCount, header.duration + header.tail, file.length()));
+                    maxId = Math.max(maxId, id);
+                } catch (NumberFormatException | IOException e) {
+                    // Not one of ours, or unreadable - leave it out of the index
+                }
+            }
+        }
+        // Directory listing order is arbitrary; keep recording order
+        Collections.sort(out, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Integer.compare(a.id, b.id);
+            }
+        });
+        return maxId + 1;
+    }
+
+    private void writeIndexQuietly(List<Entry> snapshot, int snapshotNextId) {
+        File file = new File(directory, INDEX_FILE_NAME);
+        File temp = new File(directory, INDEX_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(snapshotNextId);
+            out.writeInt(snapshot.size());
+            for (Entry entry : snapshot) {
+                out.writeInt(entry.id);
+                out.writeUTF(entry.name != null ? entry.name : "");
+                out.writeInt(entry.tapCount);
+                out.writeLong(entry.cycleLength);
+                out.writeLong(entry.sizeBytes);
+            }
+        } catch (IOException e) {
+            // The index is rebuilt from the pattern files if it's ever missing
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+}
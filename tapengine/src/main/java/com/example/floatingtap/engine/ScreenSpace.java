@@ -0,0 +1,141 @@
+package com.example.floatingtap.engine;
+
+/**
+ * Maps between screen pixels as the display is turned now and a normalized space that
+ * survives rotation and resolution changes: the display in its natural orientation, scaled to
+ * {@link #UNITS} per axis. Markers and patterns are stored normalized; one of these is built
+ * per display configuration, and positions are mapped to pixels once, when a schedule is
+ * built, so nothing is converted per tap. Immutable.
+ */
+public final class ScreenSpace {
+
+    /**
+     * Normalized extent of each axis. Anything above the largest display dimension maps a
+     * pixel to normalized and back exactly; this leaves headroom while deltas stay small.
+     */
+    public static final int UNITS = 1 << 15;
+
+    /** Quarter turns from the natural orientation, counterclockwise; as Surface.ROTATION_*. */
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    private final int width;
+    private final int height;
+    private final int rotation;
+    // The rotation as an axis swap and flips, worked out once here
+    private final boolean swap;
+    private final boolean flipX;
+    private final boolean flipY;
+
+    /** {@code width} by {@code height} are the screen's pixels as it's turned now. */
+    public ScreenSpace(int width, int height, int rotation) {
+        if (width <= 0 || height <= 0 || width >= UNITS || height >= UNITS) {
+            throw new IllegalArgumentException("Unsupported screen size " + width + "x" + height);
+        }
+        if (rotation < ROTATION_0 || rotation > ROTATION_270) {
+            throw new IllegalArgumentException("Unknown rotation " + rotation);
+        }
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        this.swap = rotation == ROTATION_90 || rotation == ROTATION_270;
+        this.flipX = rotation == ROTATION_180 || rotation == ROTATION_270;
+        this.flipY = rotation == ROTATION_90 || rotation == ROTATION_180;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public int toScreenX(int nx, int ny) {
+        int along = swap ? ny : nx;
+        return scale(flipX ? UNITS - along : along, width);
+    }
+
+    public int toScreenY(int nx, int ny) {
+        int along = swap ? nx : ny;
+        return scale(flipY ? UNITS - along : along, height);
+    }
+
+    public int toNormalX(int x, int y) {
+        return swap ? unflip(y, height, flipY) : unflip(x, width, flipX);
+    }
+
+    public int toNormalY(int x, int y) {
+        return swap ? unflip(x, width, flipX) : unflip(y, height, flipY);
+    }
+
+    /** A pixel copy of a normalized pattern, for playback; a pattern already in pixels is returned as is. */
+    public TapPattern toScreen(TapPattern pattern) {
+        return pattern.normalized ? map(pattern, true) : pattern;
+    }
+
+    /** A normalized copy of a pattern recorded in pixels on this screen. */
+    public TapPattern toNormal(TapPattern pattern) {
+        return pattern.normalized ? pattern : map(pattern, false);
+    }
+
+    private TapPattern map(TapPattern pattern, boolean toScreen) {
+        TapPattern mapped = new TapPattern(pattern.name, pattern.size());
+        int[] xs = new int[16];
+        int[] ys = new int[16];
+        long[] times = new long[16];
+        for (int i = 0; i < pattern.size(); i++) {
+            int points = pattern.getPointCount(i);
+            if (points > xs.length) {
+                xs = new int[points];
+                ys = new int[points];
+                times = new long[points];
+            }
+            for (int p = 0; p < points; p++) {
+                int x = pattern.getPointX(i, p);
+                int y = pattern.getPointY(i, p);
+                xs[p] = toScreen ? toScreenX(x, y) : toNormalX(x, y);
+                ys[p] = toScreen ? toScreenY(x, y) : toNormalY(x, y);
+                times[p] = pattern.getPointTime(i, p);
+            }
+            if (points == 1 && pattern.getHold(i) == 0) {
+                mapped.addTap(xs[0], ys[0], pattern.getTimestamp(i));
+            } else {
+                mapped.addStroke(pattern.getTimestamp(i), pattern.getHold(i), xs, ys, times, points);
+            }
+        }
+        mapped.duration = pattern.duration;
+        mapped.tail = pattern.tail;
+        mapped.normalized = !toScreen;
+        return mapped;
+    }
+
+    private static int scale(int units, int pixels) {
+        return (int) Math.floorDiv(units * (long) pixels + UNITS / 2, UNITS);
+    }
+
+    private static int unflip(int pixel, int pixels, boolean flip) {
+        int units = (int) Math.round(pixel * (double) UNITS / pixels);
+        return flip ? UNITS - units : units;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ScreenSpace)) {
+            return false;
+        }
+        ScreenSpace other = (ScreenSpace) o;
+        return width == other.width && height == other.height && rotation == other.rotation;
+    }
+
+    @Override
+    public int hashCode() {
+        return (width * 31 + height) * 4 + rotation;
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.floatingtap.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Everything needed to put the overlay back as it was after its process is killed: the
+ * markers (with their anchors), the tap settings, the selected pattern and what was playing.
+ * Pattern bodies aren't included; they're in the {@link PatternLibrary} under their ids.
+ *
+ * <pre>
+ * "FTSS" magic, version byte, flags byte (running, burst, on screen changes, batching)
+ * varint interval (us), varint tap hold, varint frequency step, varint speed step
+ * varint marker count; per marker: zigzag varint dx, zigzag varint dy from the previous
+ *                      marker, in {@link ScreenSpace} units, then anchor byte 0, or 1
+ *                      followed by the anchor:
+ *                      string package, string id, string text, varint path length,
+ *                      per level string class and varint index, float x, float y
+ * zigzag varint selected pattern id (-1 for none)
+ * varint playing count; per pattern: varint id, float speed, byte on screen changes
+ * </pre>
+ *
+ * Strings are a varint of length + 1 (0 for null) and UTF-8; floats are four bytes, big-endian.
+ * A few dozen markers take well under a kilobyte, so a write never holds anything up.
+ * Any other version is rejected.
+ */
+public final class SessionSnapshot {
+
+    private static final byte[] MAGIC = {'F', 'T', 'S', 'S'};
+    private static final int VERSION = 2;
+    private static final int FLAG_RUNNING = 1;
+    private static final int FLAG_BURST = 1 << 1;
+    private static final int FLAG_TRIGGER = 1 << 2;
+    private static final int FLAG_BATCHING = 1 << 3;
+
+    public int[] markerXs = new int[0]; // ScreenSpace units
+    public int[] markerYs = new int[0];
+    public NodeAnchor[] markerAnchors = new NodeAnchor[0]; // Null entries for fixed markers
+    public long intervalMicros;
+    public long strokeDurationMs;
+    public int frequencyStep; // The panel's slider positions, restored as they were
+    public int playbackSpeedStep;
+    public boolean running; // The markers were tapping
+    public boolean burstMode;
+    public boolean triggerMode;
+    public boolean batching;
+    public int selectedPatternId = -1;
+    public int[] playingPatternIds = new int[0];
+    public float[] playingSpeeds = new float[0];
+    public boolean[] playingOnEvents = new boolean[0];
+
+    public static void write(SessionSnapshot snapshot, File file) throws IOException {
+        writeBytes(encode(snapshot), file);
+    }
+
+    /**
+     * Replaces {@code file} with {@code bytes}; a crash or power loss mid-write leaves the old
+     * file intact. The new bytes are synced before the rename, or a journaling file system can
+     * commit the rename first and leave an empty file behind.
+     */
+    public static void writeBytes(byte[] bytes, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(bytes);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    public static SessionSnapshot read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) Math.min(raf.length(), Integer.MAX_VALUE)];
+            raf.readFully(bytes);
+            return decode(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    public static byte[] encode(SessionSnapshot snapshot) {
+        int count = snapshot.markerXs.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + count * 8);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        out.write((snapshot.running ? FLAG_RUNNING : 0) | (snapshot.burstMode ? FLAG_BURST : 0)
+                | (snapshot.triggerMode ? FLAG_TRIGGER : 0) | (snapshot.batching ? FLAG_BATCHING : 0));
+        PatternFile.writeVarint(out, snapshot.intervalMicros);
+        PatternFile.writeVarint(out, snapshot.strokeDurationMs);
+        PatternFile.writeVarint(out, snapshot.frequencyStep);
+        PatternFile.writeVarint(out, snapshot.playbackSpeedStep);
+
+        PatternFile.writeVarint(out, count);
+        int lastX = 0;
+        int lastY = 0;
+        for (int i = 0; i < count; i++) {
+            PatternFile.writeVarint(out, PatternFile.zigzag(snapshot.markerXs[i] - lastX));
+            PatternFile.writeVarint(out, PatternFile.zigzag(snapshot.markerYs[i] - lastY));
+            lastX = snapshot.markerXs[i];
+            lastY = snapshot.markerYs[i];
+            NodeAnchor anchor = snapshot.markerAnchors[i];
+            if (anchor == null) {
+                out.write(0);
+                continue;
+            }
+            out.write(1);
+            writeString(out, anchor.packageName);
+            writeString(out, anchor.viewId);
+            writeString(out, anchor.text);
+            PatternFile.writeVarint(out, anchor.depth());
+            for (int level = 0; level < anchor.depth(); level++) {
+                writeString(out, anchor.getPathClass(level));
+                PatternFile.writeVarint(out, anchor.getPathIndex(level));
+            }
+            writeFloat(out, anchor.fractionX);
+            writeFloat(out, anchor.fractionY);
+        }
+
+        PatternFile.writeVarint(out, PatternFile.zigzag(snapshot.selectedPatternId));
+        PatternFile.writeVarint(out, snapshot.playingPatternIds.length);
+        for (int i = 0; i < snapshot.playingPatternIds.length; i++) {
+            PatternFile.writeVarint(out, snapshot.playingPatternIds[i]);
+            writeFloat(out, snapshot.playingSpeeds[i]);
+            out.write(snapshot.playingOnEvents[i] ? 1 : 0);
+        }
+        return out.toByteArray();
+    }
+
+    public static SessionSnapshot decode(ByteBuffer in) throws IOException {
+        try {
+            for (byte magic : MAGIC) {
+                if (in.get() != magic) {
+                    throw new IOException("Not a session snapshot");
+                }
+            }
+            int version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported session snapshot version " + version);
+            }
+            SessionSnapshot snapshot = new SessionSnapshot();
+            int flags = in.get();
+            snapshot.running = (flags & FLAG_RUNNING) != 0;
+            snapshot.burstMode = (flags & FLAG_BURST) != 0;
+            snapshot.triggerMode = (flags & FLAG_TRIGGER) != 0;
+            snapshot.batching = (flags & FLAG_BATCHING) != 0;
+            snapshot.intervalMicros = PatternFile.readVarint(in);
+            snapshot.strokeDurationMs = PatternFile.readVarint(in);
+            snapshot.frequencyStep = (int) PatternFile.readVarint(in);
+            snapshot.playbackSpeedStep = (int) PatternFile.readVarint(in);
+
+            int count = readCount(in, 3);
+            snapshot.markerXs = new int[count];
+            snapshot.markerYs = new int[count];
+            snapshot.markerAnchors = new NodeAnchor[count];
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < count; i++) {
+                x += (int) PatternFile.unzigzag(PatternFile.readVarint(in));
+                y += (int) PatternFile.unzigzag(PatternFile.readVarint(in));
+                snapshot.markerXs[i] = x;
+                snapshot.markerYs[i] = y;
+                if (in.get() != 0) {
+                    snapshot.markerAnchors[i] = readAnchor(in);
+                }
+            }
+
+            snapshot.selectedPatternId = (int) PatternFile.unzigzag(PatternFile.readVarint(in));
+            int playing = readCount(in, 6);
+            snapshot.playingPatternIds = new int[playing];
+            snapshot.playingSpeeds = new float[playing];
+            snapshot.playingOnEvents = new boolean[playing];
+            for (int i = 0; i < playing; i++) {
+                snapshot.playingPatternIds[i] = (int) PatternFile.readVarint(in);
+                snapshot.playingSpeeds[i] = in.getFloat();
+                snapshot.playingOnEvents[i] = in.get() != 0;
+            }
+            return snapshot;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated session snapshot", e);
+        }
+    }
+
+    private static NodeAnchor readAnchor(ByteBuffer in) throws IOException {
+        String packageName = readString(in);
+        String viewId = readString(in);
+        String text = readString(in);
+        int depth = readCount(in, 2);
+        String[] classes = new String[depth];
+        int[] indices = new int[depth];
+        for (int level = 0; level < depth; level++) {
+            classes[level] = readString(in);
+            indices[level] = (int) PatternFile.readVarint(in);
+        }
+        if (packageName == null) {
+            throw new IOException("Anchor without a package");
+        }
+        return new NodeAnchor(packageName, viewId, text, classes, indices, in.getFloat(), in.getFloat());
+    }
+
+    /** A count of items at least {@code minBytes} each, bounded by what's left so corruption can't over-allocate. */
+    private static int readCount(ByteBuffer in, int minBytes) throws IOException {
+        long count = PatternFile.readVarint(in);
+        if (count < 0 || count > in.remaining() / minBytes) {
+            throw new IOException("Corrupt count " + count);
+        }
+        return (int) count;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            out.write(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        PatternFile.writeVarint(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        long length = PatternFile.readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > in.remaining()) {
+            throw new IOException("Corrupt string length " + length);
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFloat(ByteArrayOutputStream out, float value) {
+        int bits = Float.floatToIntBits(value);
+        out.write(bits >>> 24);
+        out.write(bits >>> 16);
+        out.write(bits >>> 8);
+        out.write(bits);
+    }
+}
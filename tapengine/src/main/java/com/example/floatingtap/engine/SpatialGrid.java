@@ -0,0 +1,221 @@
+package com.example.floatingtap.engine;
+
+import java.util.Arrays;
+
+/**
+ * Uniform-grid spatial index over screen points. Each item gets an integer handle; cells are
+ * hashed into a fixed bucket table, so the grid covers any coordinate range (negative ones and
+ * rotated screens included) without knowing the screen size. Add, move and remove are O(1);
+ * nearest-point and box queries touch only the cells they overlap. Bookkeeping lives in
+ * primitive arrays that only grow, so moves during a drag allocate nothing.
+ */
+public final class SpatialGrid<T> {
+
+    private static final int BUCKETS = 1024; // Power of two, comfortably above typical cell counts
+
+    private final int cellSize;
+
+    // Per handle; a handle with items[h] == null is free
+    private Object[] items = new Object[16];
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private int[] bucketOf = new int[16];
+    private int[] slotOf = new int[16];
+    private int[] freeHandles = new int[16];
+    private int freeCount = 0;
+    private int handleLimit = 0; // Handles [0, handleLimit) have been issued at some point
+    private int size = 0;
+
+    // Per bucket: the handles it holds, unordered
+    private final int[][] buckets = new int[BUCKETS][];
+    private final int[] bucketSizes = new int[BUCKETS];
+
+    public SpatialGrid(int cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("cellSize must be positive");
+        }
+        this.cellSize = cellSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Indexes {@code item} at ({@code x}, {@code y}) and returns its handle. */
+    public int add(T item, int x, int y) {
+        if (item == null) {
+            throw new IllegalArgumentException("item must not be null");
+        }
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            if (handleLimit == items.length) {
+                grow();
+            }
+            handle = handleLimit++;
+        }
+        items[handle] = item;
+        xs[handle] = x;
+        ys[handle] = y;
+        insert(handle);
+        size++;
+        return handle;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int handle) {
+        return (T) items[handle];
+    }
+
+    public int getX(int handle) {
+        return xs[handle];
+    }
+
+    public int getY(int handle) {
+        return ys[handle];
+    }
+
+    public void move(int handle, int x, int y) {
+        checkHandle(handle);
+        int bucket = bucketFor(x, y);
+        xs[handle] = x;
+        ys[handle] = y;
+        if (bucket != bucketOf[handle]) {
+            unlink(handle);
+            insert(handle);
+        }
+    }
+
+    public void remove(int handle) {
+        checkHandle(handle);
+        unlink(handle);
+        items[handle] = null;
+        if (freeCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, freeCount * 2);
+        }
+        freeHandles[freeCount++] = handle;
+        size--;
+    }
+
+    public void clear() {
+        Arrays.fill(items, 0, handleLimit, null);
+        Arrays.fill(bucketSizes, 0);
+        handleLimit = 0;
+        freeCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Handle of the item closest to ({@code x}, {@code y}) within {@code maxDistance}, or -1.
+     * Ties go to whichever was found first.
+     */
+    public int nearest(int x, int y, int maxDistance) {
+        long bestDistance = (long) maxDistance * maxDistance;
+        int best = -1;
+        int minCx = cell(x - maxDistance);
+        int maxCx = cell(x + maxDistance);
+        int minCy = cell(y - maxDistance);
+        int maxCy = cell(y + maxDistance);
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cy = minCy; cy <= maxCy; cy++) {
+                int bucket = bucketForCell(cx, cy);
+                int[] handles = buckets[bucket];
+                for (int i = 0, n = bucketSizes[bucket]; i < n; i++) {
+                    int h = handles[i];
+                    // Buckets are shared between distant cells; skip items from other cells
+                    if (cell(xs[h]) != cx || cell(ys[h]) != cy) {
+                        continue;
+                    }
+                    long dx = xs[h] - x;
+                    long dy = ys[h] - y;
+                    long distance = dx * dx + dy * dy;
+                    if (distance <= bestDistance) {
+                        bestDistance = distance;
+                        best = h;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Appends the handles of every item inside the box (edges included) to {@code out},
+     * starting at {@code out[0]}, and returns how many there were. {@code out} must hold
+     * {@link #size()} entries.
+     */
+    public int query(int left, int top, int right, int bottom, int[] out) {
+        int count = 0;
+        for (int cx = cell(left), maxCx = cell(right); cx <= maxCx; cx++) {
+            for (int cy = cell(top), maxCy = cell(bottom); cy <= maxCy; cy++) {
+                int bucket = bucketForCell(cx, cy);
+                int[] handles = buckets[bucket];
+                for (int i = 0, n = bucketSizes[bucket]; i < n; i++) {
+                    int h = handles[i];
+                    int hx = xs[h];
+                    int hy = ys[h];
+                    if (cell(hx) != cx || cell(hy) != cy) {
+                        continue;
+                    }
+                    if (hx >= left && hx <= right && hy >= top && hy <= bottom) {
+                        out[count++] = h;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private int cell(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    private int bucketFor(int x, int y) {
+        return bucketForCell(cell(x), cell(y));
+    }
+
+    private static int bucketForCell(int cx, int cy) {
+        return (cx * 73856093 ^ cy * 19349663) & (BUCKETS - 1);
+    }
+
+    private void insert(int handle) {
+        int bucket = bucketFor(xs[handle], ys[handle]);
+        int[] handles = buckets[bucket];
+        int n = bucketSizes[bucket];
+        if (handles == null) {
+            handles = buckets[bucket] = new int[4];
+        } else if (n == handles.length) {
+            handles = buckets[bucket] = Arrays.copyOf(handles, n * 2);
+        }
+        handles[n] = handle;
+        bucketSizes[bucket] = n + 1;
+        bucketOf[handle] = bucket;
+        slotOf[handle] = n;
+    }
+
+    private void unlink(int handle) {
+        // Swap-remove: the bucket's last handle takes this one's slot
+        int bucket = bucketOf[handle];
+        int[] handles = buckets[bucket];
+        int last = --bucketSizes[bucket];
+        int moved = handles[last];
+        handles[slotOf[handle]] = moved;
+        slotOf[moved] = slotOf[handle];
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= handleLimit || items[handle] == null) {
+            throw new IllegalArgumentException("No item with handle " + handle);
+        }
+    }
+
+    private void grow() {
+        int capacity = items.length * 2;
+        items = Arrays.copyOf(items, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        bucketOf = Arrays.copyOf(bucketOf, capacity);
+        slotOf = Arrays.copyOf(slotOf, capacity);
+    }
+}
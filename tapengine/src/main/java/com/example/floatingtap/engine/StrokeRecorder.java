@@ -0,0 +1,165 @@
+package com.example.floatingtap.engine;
+
+import java.util.Arrays;
+
+/**
+ * Collects the raw samples of one touch stroke (down, every move sample, up) and, when the
+ * finger lifts, reduces them to the few points needed to replay the stroke within a given
+ * error before appending it to a {@link TapPattern}. Buffers are reused across strokes, so
+ * recording allocates only when a stroke is longer than any before it.
+ */
+public final class StrokeRecorder {
+
+    private final float tolerance;
+    private final long toleranceSquared;
+
+    private int[] xs = new int[64];
+    private int[] ys = new int[64];
+    private long[] times = new long[64]; // Relative to the down event
+    private boolean[] keep = new boolean[64];
+    private int[] stack = new int[128];
+    private int count = 0;
+    private long downTime;
+    private boolean active = false;
+
+    /** @param tolerancePx how far, at any instant, the replayed finger may stray from the recorded one */
+    public StrokeRecorder(float tolerancePx) {
+        this.tolerance = tolerancePx;
+        this.toleranceSquared = (long) Math.ceil(tolerancePx * tolerancePx);
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void begin(int x, int y, long eventTime) {
+        count = 0;
+        downTime = eventTime;
+        active = true;
+        add(x, y, eventTime);
+    }
+
+    /** Adds a move sample; samples must arrive in time order. */
+    public void sample(int x, int y, long eventTime) {
+        if (active) {
+            add(x, y, eventTime);
+        }
+    }
+
+    /**
+     * Ends the stroke with the up event's position and time, simplifies it, and appends it to
+     * {@code pattern} as starting at {@code timestamp}.
+     */
+    public void end(int x, int y, long eventTime, TapPattern pattern, long timestamp) {
+        if (!active) {
+            return;
+        }
+        add(x, y, eventTime);
+        active = false;
+        long hold = Math.max(times[count - 1], 1);
+        int kept = simplify();
+        pattern.addStroke(timestamp, hold, xs, ys, times, kept);
+    }
+
+    /** Ends the stroke at its last sample, e.g. when recording stops with a finger still down. */
+    public void finish(TapPattern pattern, long timestamp) {
+        if (active) {
+            count--; // end() re-adds the last sample
+            end(xs[count], ys[count], downTime + times[count], pattern, timestamp);
+        }
+    }
+
+    public void cancel() {
+        active = false;
+        count = 0;
+    }
+
+    private void add(int x, int y, long eventTime) {
+        if (count == xs.length) {
+            int capacity = count * 2;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            times = Arrays.copyOf(times, capacity);
+            keep = new boolean[capacity];
+            stack = new int[capacity * 2];
+        }
+        xs[count] = x;
+        ys[count] = y;
+        times[count] = eventTime - downTime;
+        count++;
+    }
+
+    /**
+     * Douglas-Peucker over space and time: a sample survives if it lies more than the tolerance
+     * from where the finger would be at that moment moving in a straight line, at constant
+     * speed, between its surviving neighbours. Pauses and speed changes are therefore kept,
+     * not just corners. Compacts the buffers in place and returns the number of points kept;
+     * a stroke that never left the tolerance of its first point becomes a single point.
+     */
+    private int simplify() {
+        if (count <= 2) {
+            if (count == 2 && distanceSquared(0, 1) <= toleranceSquared) {
+                return 1;
+            }
+            return count;
+        }
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+        // Explicit stack of [first, last] ranges so long strokes can't overflow the call stack
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            int farthest = -1;
+            double farthestDistance = tolerance;
+            for (int i = first + 1; i < last; i++) {
+                double distance = synchronizedDistance(first, last, i);
+                if (distance > farthestDistance) {
+                    farthestDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                times[kept] = times[i];
+                kept++;
+            }
+        }
+        if (kept == 2 && distanceSquared(0, 1) <= toleranceSquared) {
+            kept = 1;
+        }
+        return kept;
+    }
+
+    /** Distance from sample {@code i} to the point interpolated at its time on first..last. */
+    private double synchronizedDistance(int first, int last, int i) {
+        long span = times[last] - times[first];
+        double f = span > 0 ? (double) (times[i] - times[first]) / span : 0;
+        double expectedX = xs[first] + f * (xs[last] - xs[first]);
+        double expectedY = ys[first] + f * (ys[last] - ys[first]);
+        double dx = xs[i] - expectedX;
+        double dy = ys[i] - expectedY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private long distanceSquared(int a, int b) {
+        long dx = xs[a] - xs[b];
+        long dy = ys[a] - ys[b];
+        return dx * dx + dy * dy;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.floatingtap.engine;
+
+import java.util.Arrays;
+
+/**
+ * Plan for playing one recorded stroke as a chain of short segments, each its own gesture,
+ * with the finger kept down from one to the next. Segments break at recorded points, so every
+ * point is reached at its recorded time rather than at whatever time a constant speed along
+ * the whole path would give it. Points closer together than {@code minSegment} share a
+ * segment, and a stretch longer than {@code maxSegment} (a slow drag, a long hold) is cut at
+ * interpolated points. Only the points are planned; gestures are built as segments fall due.
+ */
+public final class StrokeSegments {
+
+    private final int[] xs;
+    private final int[] ys;
+    private final long[] times; // Playback time since the stroke's start
+    // Segment s runs from point segmentEnds[s - 1] (0 for s = 0) to point segmentEnds[s]
+    private final int[] segmentEnds;
+    private final int segmentCount;
+
+    private StrokeSegments(int[] xs, int[] ys, long[] times, int[] segmentEnds, int segmentCount) {
+        this.xs = xs;
+        this.ys = ys;
+        this.times = times;
+        this.segmentEnds = segmentEnds;
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Plans stroke {@code index} of {@code pattern} as played at {@code speed} times the
+     * recorded speed; segment limits are in playback time. A tap of default length
+     * ({@code hold} 0) has nothing to stream; callers should precompile it as usual.
+     */
+    public static StrokeSegments plan(TapPattern pattern, int index, float speed, long minSegment, long maxSegment) {
+        if (minSegment < 1 || maxSegment < minSegment) {
+            throw new IllegalArgumentException("Need 1 <= minSegment <= maxSegment");
+        }
+        int recorded = pattern.getPointCount(index);
+        long end = TapPattern.scaleTime(
+                Math.max(pattern.getHold(index), pattern.getPointTime(index, recorded - 1)), speed);
+        // Upper bound: every recorded gap cut into maxSegment pieces, plus a final hold point
+        int capacity = recorded + 2 + (int) (end / maxSegment);
+        int[] xs = new int[capacity];
+        int[] ys = new int[capacity];
+        long[] times = new long[capacity];
+        int[] ends = new int[capacity];
+        int segments = 0;
+
+        xs[0] = pattern.getPointX(index, 0);
+        ys[0] = pattern.getPointY(index, 0);
+        times[0] = 0;
+        int points = 1;
+        long segmentStart = 0;
+        for (int p = 1; p <= recorded; p++) {
+            int x;
+            int y;
+            long t;
+            if (p < recorded) {
+                x = pattern.getPointX(index, p);
+                y = pattern.getPointY(index, p);
+                t = TapPattern.scaleTime(pattern.getPointTime(index, p), speed);
+            } else if (end > times[points - 1]) {
+                // The finger rests at its last point until the hold is up
+                x = xs[points - 1];
+                y = ys[points - 1];
+                t = end;
+            } else {
+                break;
+            }
+            int lastX = xs[points - 1];
+            int lastY = ys[points - 1];
+            long lastT = times[points - 1];
+            // Cut a stretch that would run past the segment limit, moving in a straight line
+            while (t - segmentStart > maxSegment) {
+                long cut = segmentStart + maxSegment;
+                if (cut > lastT) {
+                    double f = (double) (cut - lastT) / (t - lastT);
+                    xs[points] = (int) Math.round(lastX + f * (x - lastX));
+                    ys[points] = (int) Math.round(lastY + f * (y - lastY));
+                    times[points] = cut;
+                    points++;
+                }
+                ends[segments++] = points - 1;
+                segmentStart = times[points - 1];
+            }
+            xs[points] = x;
+            ys[points] = y;
+            times[points] = t;
+            points++;
+            if (t - segmentStart >= minSegment) {
+                ends[segments++] = points - 1;
+                segmentStart = t;
+            }
+        }
+        if (segments == 0 || ends[segments - 1] != points - 1) {
+            if (segments > 0 && times[points - 1] - segmentStart < minSegment) {
+                // Fold a short tail into the segment before it, unless that overruns the limit
+                if (times[points - 1] - times[segments > 1 ? ends[segments - 2] : 0] <= maxSegment) {
+                    segments--;
+                }
+            }
+            ends[segments++] = points - 1;
+        }
+        return new StrokeSegments(xs, ys, times, Arrays.copyOf(ends, segments), segments);
+    }
+
+    public int segmentCount() {
+        return segmentCount;
+    }
+
+    /** Index of the point segment {@code segment} starts at; it's the previous segment's end. */
+    public int segmentStart(int segment) {
+        return segment == 0 ? 0 : segmentEnds[segment - 1];
+    }
+
+    /** Index of the point segment {@code segment} ends at, inclusive. */
+    public int segmentEnd(int segment) {
+        return segmentEnds[segment];
+    }
+
+    /** How long segment {@code segment} takes at the planned speed. */
+    public long segmentDuration(int segment) {
+        return times[segmentEnd(segment)] - times[segmentStart(segment)];
+    }
+
+    /** When segment {@code segment} starts, relative to the stroke's start. */
+    public long segmentTime(int segment) {
+        return times[segmentStart(segment)];
+    }
+
+    public long duration() {
+        return times[segmentEnds[segmentCount - 1]];
+    }
+
+    public int getX(int point) {
+        return xs[point];
+    }
+
+    public int getY(int point) {
+        return ys[point];
+    }
+
+    public long getTime(int point) {
+        return times[point];
+    }
+}
@@ -0,0 +1,6 @@
+package com.example.floatingtap.engine;
+
+/** Monotonic time source for the engine; elapsed realtime on a device, so time asleep counts. */
+public interface TapClock {
+    long nowMillis();
+}
@@ -0,0 +1,159 @@
+package com.example.floatingtap.engine;
+
+import java.io.PrintWriter;
+
+/**
+ * What tapping costs the thread doing it: CPU time and allocations per tap, and how often the
+ * thread is woken. The thread's cumulative readings are taken after each dispatch, from the
+ * {@link ThreadCounters} or as passed in; only the difference from the readings at the last
+ * reset counts. A {@link TapEngine} keeps one, reset with its telemetry. Updated only from the
+ * tap thread, without allocating.
+ */
+public final class TapCost {
+
+    /** Passed for allocations while the runtime isn't counting them. */
+    public static final long NOT_COUNTED = -1;
+
+    /** The tap thread's cumulative counters, as the host's runtime reports them. */
+    public interface ThreadCounters {
+        long cpuNanos();
+
+        /** Objects allocated by the thread so far, or {@link #NOT_COUNTED}. */
+        long allocations();
+    }
+
+    /** For hosts that can't read their thread's counters: only taps and wakeups are counted. */
+    public static final ThreadCounters NO_COUNTERS = new ThreadCounters() {
+        @Override
+        public long cpuNanos() {
+            return 0;
+        }
+
+        @Override
+        public long allocations() {
+            return NOT_COUNTED;
+        }
+    };
+
+    private final ThreadCounters counters;
+
+    private long cpuBaseNanos;
+    // Allocation counting can be switched on mid-run, so it keeps its own baseline and taps
+    private long allocationBase = NOT_COUNTED;
+    private long allocationTaps;
+    private volatile long startTime;
+    private volatile long taps;
+    private volatile long cpuNanos;
+    private volatile long allocations = NOT_COUNTED;
+    private volatile long wakeups;
+    private volatile long alarmWakeups;
+
+    public TapCost() {
+        this(NO_COUNTERS);
+    }
+
+    public TapCost(ThreadCounters counters) {
+        this.counters = counters;
+    }
+
+    /** Starts over from the counters' current readings. */
+    public void reset(long now) {
+        reset(now, counters.cpuNanos(), counters.allocations());
+    }
+
+    /** Starts over from the thread's current readings. */
+    public void reset(long now, long threadCpuNanos, long threadAllocations) {
+        startTime = now;
+        cpuBaseNanos = threadCpuNanos;
+        allocationBase = threadAllocations;
+        allocationTaps = 0;
+        taps = 0;
+        cpuNanos = 0;
+        allocations = threadAllocations == NOT_COUNTED ? NOT_COUNTED : 0;
+        wakeups = 0;
+        alarmWakeups = 0;
+    }
+
+    /** The thread woke up to do something for the taps: a timer firing or a gesture callback. */
+    public void onWakeup() {
+        wakeups++;
+    }
+
+    /** The device was woken from sleep by an alarm to make a tap on time. */
+    public void onAlarmWakeup() {
+        alarmWakeups++;
+    }
+
+    /** After a dispatch, reading the counters. */
+    public void onDispatched(int taps) {
+        onDispatched(taps, counters.cpuNanos(), counters.allocations());
+    }
+
+    public void onDispatched(int taps, long threadCpuNanos, long threadAllocations) {
+        this.taps += taps;
+        cpuNanos = threadCpuNanos - cpuBaseNanos;
+        if (threadAllocations == NOT_COUNTED) {
+            allocationBase = NOT_COUNTED;
+            allocations = NOT_COUNTED;
+        } else if (allocationBase == NOT_COUNTED) {
+            // Counting just started; this dispatch's own allocations were before the baseline
+            allocationBase = threadAllocations;
+            allocationTaps = 0;
+            allocations = 0;
+        } else {
+            allocationTaps += taps;
+            allocations = threadAllocations - allocationBase;
+        }
+    }
+
+    public long getTaps() {
+        return taps;
+    }
+
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    public long getAlarmWakeups() {
+        return alarmWakeups;
+    }
+
+    public float cpuMicrosPerTap() {
+        long count = taps;
+        return count == 0 ? 0 : cpuNanos / 1000f / count;
+    }
+
+    /** Objects allocated on the thread per tap, or NaN while allocations aren't counted. */
+    public float allocationsPerTap() {
+        long count = allocationTaps;
+        long allocated = allocations;
+        if (allocated == NOT_COUNTED) {
+            return Float.NaN;
+        }
+        return count == 0 ? 0 : (float) allocated / count;
+    }
+
+    public float wakeupsPerTap() {
+        long count = taps;
+        return count == 0 ? 0 : (float) wakeups / count;
+    }
+
+    /** Wakeups per minute since the last reset. */
+    public float wakeupsPerMinute(long now) {
+        long elapsed = now - startTime;
+        return elapsed <= 0 ? 0 : wakeups * 60000f / elapsed;
+    }
+
+    public void dump(PrintWriter writer, long now) {
+        writer.println("Tap cost (tap thread only):");
+        writer.printf("  taps: %d, thread cpu: %.1f us/tap%n", taps, cpuMicrosPerTap());
+        float allocated = allocationsPerTap();
+        if (Float.isNaN(allocated)) {
+            writer.println("  allocations: not counted");
+        } else {
+            writer.printf("  allocations: %.2f/tap%n", allocated);
+        }
+        writer.printf("  wakeups: %d (%.1f/min, %.2f/tap), alarm wakeups: %d%n",
+                wakeups, wakeupsPerMinute(now), wakeupsPerTap(), alarmWakeups);
+    }
+}
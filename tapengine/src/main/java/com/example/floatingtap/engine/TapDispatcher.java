@@ -0,0 +1,17 @@
+package com.example.floatingtap.engine;
+
+/**
+ * What the engine needs from its host: a way to send a gesture and a way to run a task at
+ * an absolute time. On a device that's {@code dispatchGesture} plus a timer on the tap thread
+ * (a {@code Handler}, or an alarm for times far off); off-device it's a simulation.
+ */
+public interface TapDispatcher<G> {
+
+    /** Sends a gesture; the host reports the outcome through {@link TapEngine#onGestureFinished}. */
+    void dispatch(G gesture);
+
+    /** Runs {@code task} on the engine's thread at {@code timeMillis} on the {@link TapClock}. */
+    void postAtTime(Runnable task, long timeMillis);
+
+    void removeCallbacks(Runnable task);
+}
@@ -0,0 +1,402 @@
+package com.example.floatingtap.engine;
+
+import java.util.ArrayList;
+
+/**
+ * Plays looping tap timelines through a {@link TapDispatcher}, one gesture in flight at a
+ * time. Each loop keeps a cursor into its {@link TapSchedule} and exposes only its next
+ * deadline; any number of loops run at once, merged by a min-heap on those deadlines and
+ * drained by a single task posted for the earliest one. Picking the next tap therefore costs
+ * O(log loops) whatever the length of the timelines, and since every deadline is absolute
+ * neither host delays nor dispatch cost accumulate into drift. Everything except
+ * {@link Loop#deactivate()} and the batching switch must be called on the dispatcher's thread.
+ */
+public final class TapEngine<G> {
+
+    // The system runs one gesture per service at a time; dispatching another cancels it
+    public static final int MAX_IN_FLIGHT = 1;
+    // Grace period after a gesture's expected end before its callback counts as lost
+    public static final long GESTURE_TIMEOUT_MS = 1000;
+    public static final long MIN_PACING_GAP_MS = 5;
+    public static final long MAX_PACING_GAP_MS = 250;
+    private static final long NOT_POSTED = Long.MIN_VALUE;
+
+    private final TapClock clock;
+    private final TapDispatcher<G> dispatcher;
+
+    // Read on every dispatch, so toggling takes effect on the next gesture
+    private volatile boolean batchingEnabled = false;
+
+    // Gesture pipeline state, only touched on the dispatcher's thread
+    // Active loops as a binary heap, earliest next deadline first
+    private final ArrayList<Loop> heap = new ArrayList<>();
+    private long pumpTime = NOT_POSTED; // When the pump is posted for
+    private int runningLoops = 0;
+    private int inFlight = 0;
+    private long inFlightDeadline = 0; // Past this the in-flight gesture's callback is presumed lost
+    private long inFlightDispatchTime = 0;
+    private int inFlightTaps = 0; // Taps the in-flight gesture finishes; 0 for a continued segment or a release
+    private Loop inFlightLoop = null; // Whose gesture is in flight, so it hears if it's cut short
+    // Whose streamed stroke has its finger down between segments; any other gesture lifts it
+    private Loop fingerDownLoop = null;
+    private volatile long pacingGapMs = 0;
+    private long nextDispatchAllowed = 0;
+
+    // Single writer (the dispatcher's thread); read by the UI and dump()
+    private final TapTelemetry telemetry = new TapTelemetry();
+    private final TapCost cost; // Reset along with the telemetry
+
+    // The one task on the dispatcher's queue: runs whenever the earliest loop falls due
+    private final Runnable pump = new Runnable() {
+        @Override
+        public void run() {
+            pumpTime = NOT_POSTED;
+            pump();
+        }
+    };
+
+    public TapEngine(TapClock clock, TapDispatcher<G> dispatcher) {
+        this(clock, dispatcher, TapCost.NO_COUNTERS);
+    }
+
+    /** As above, measuring the dispatcher's thread by {@code counters} in {@link #getCost()}. */
+    public TapEngine(TapClock clock, TapDispatcher<G> dispatcher, TapCost.ThreadCounters counters) {
+        this.clock = clock;
+        this.dispatcher = dispatcher;
+        this.cost = new TapCost(counters);
+    }
+
+    /**
+     * Packs consecutive taps into one multi-stroke gesture (up to the limits the schedule was
+     * built with) instead of dispatching one gesture per tap.
+     */
+    public void setBatchingEnabled(boolean enabled) {
+        batchingEnabled = enabled;
+    }
+
+    public boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    public TapTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /** What the dispatcher's thread spends per tap; the host adds its own wakeups. */
+    public TapCost getCost() {
+        return cost;
+    }
+
+    public long getPacingGapMs() {
+        return pacingGapMs;
+    }
+
+    /** Loops started and not yet stopped; dispatcher's thread only. */
+    public int getRunningLoops() {
+        return runningLoops;
+    }
+
+    /** Starts playing {@code schedule}; counters are reset if nothing else was running. */
+    public Loop start(TapSchedule<G> schedule) {
+        return start(schedule, false);
+    }
+
+    /**
+     * As {@link #start(TapSchedule)}; with {@code alwaysBatch} the loop dispatches whole
+     * batches regardless of the batching switch, which is the only way to sustain rates
+     * faster than one gesture round trip.
+     */
+    public Loop start(TapSchedule<G> schedule, boolean alwaysBatch) {
+        return start(schedule, alwaysBatch, -1);
+    }
+
+    /** As {@link #start(TapSchedule, boolean)}, but beginning now at entry {@code startIndex}. */
+    public Loop start(TapSchedule<G> schedule, boolean alwaysBatch, int startIndex) {
+        return start(schedule, alwaysBatch, startIndex, 0);
+    }
+
+    /**
+     * As {@link #start(TapSchedule, boolean, int)}, stopping by itself once the timeline has
+     * played through {@code cycles} times; 0 loops until stopped. The schedule can be started
+     * again once the loop {@link Loop#isStopped() has stopped}.
+     */
+    public Loop start(TapSchedule<G> schedule, boolean alwaysBatch, int startIndex, int cycles) {
+        if (runningLoops == 0) {
+            telemetry.reset();
+            cost.reset(clock.nowMillis());
+            pacingGapMs = 0;
+        }
+        Loop loop = new Loop(schedule, alwaysBatch, cycles);
+        loop.start(startIndex);
+        return loop;
+    }
+
+    /**
+     * Replaces {@code replaced} with a loop on {@code schedule}, typically the same timeline
+     * with new positions or timing. It picks up at the entry the old loop would have played
+     * next, when that entry was due, so no tap is repeated and the wait for the next one isn't
+     * cut short. {@code replaced} is stopped.
+     */
+    public Loop replace(Loop replaced, TapSchedule<G> schedule, boolean alwaysBatch) {
+        int index = replaced.schedule.nextIndex() % schedule.offsets.length;
+        long deadline = replaced.schedule.nextDeadline();
+        // Started before the old one stops, so the engine never looks idle and resets its counters
+        Loop loop = new Loop(schedule, alwaysBatch, 0);
+        loop.start(index, deadline);
+        replaced.stop();
+        return loop;
+    }
+
+    /**
+     * Reports the outcome of the gesture last handed to {@link TapDispatcher#dispatch}. The
+     * taps it counts are the ones recorded when it went out, not its strokes: a streamed
+     * stroke is one tap however many segments it takes, and a release is none.
+     */
+    public void onGestureFinished(boolean completed) {
+        long now = clock.nowMillis();
+        telemetry.onFinished(now, inFlightDispatchTime, inFlightTaps, completed);
+        if (completed) {
+            // Ease back toward full speed while gestures keep landing
+            pacingGapMs = pacingGapMs / 2;
+        } else {
+            // The system (or a real touch) is pushing back - widen the gap between gestures
+            pacingGapMs = Math.min(Math.max(pacingGapMs * 2, MIN_PACING_GAP_MS), MAX_PACING_GAP_MS);
+        }
+        inFlight = Math.max(inFlight - 1, 0);
+        if (!completed && inFlightLoop != null) {
+            inFlightLoop.schedule.onGestureInterrupted();
+        }
+        inFlightLoop = null;
+        nextDispatchAllowed = now + pacingGapMs;
+        if (!heap.isEmpty()) {
+            schedulePump(Math.max(nextDispatchAllowed, heap.get(0).schedule.nextDeadline()));
+        }
+    }
+
+    /** Dispatches for the loop with the earliest deadline, if it's due and the slot is free. */
+    private void pump() {
+        // Loops deactivated from another thread drop out here, before their stop() arrives
+        while (!heap.isEmpty() && !heap.get(0).active) {
+            removeAt(0);
+        }
+        if (heap.isEmpty()) {
+            return;
+        }
+        Loop loop = heap.get(0);
+        long now = clock.nowMillis();
+        long scheduledTime = loop.schedule.nextDeadline();
+        if (now < scheduledTime) {
+            schedulePump(scheduledTime);
+            return;
+        }
+        if (!acquireDispatchSlot(now)) {
+            return;
+        }
+
+        G gesture = loop.schedule.takeNext(loop.alwaysBatch || batchingEnabled, now);
+        // Published before the dispatch, so the host can pass it on as the gesture goes out
+        loop.lastTapIndex = loop.schedule.lastIndex();
+        dispatchTracked(loop, gesture, now, scheduledTime, loop.schedule.lastDuration(),
+                loop.schedule.lastTapCount());
+        if (loop.cycles > 0 && loop.schedule.cyclesCompleted() >= loop.cycles) {
+            // Its last gesture is in flight and nothing follows it
+            loop.stop();
+        } else {
+            loop.schedule.resyncIfBehind(now);
+            // Deadlines only move forward, so the loop can only sink
+            siftDown(0);
+        }
+        if (!heap.isEmpty()) {
+            schedulePump(heap.get(0).schedule.nextDeadline());
+        }
+    }
+
+    /** Keeps exactly one pump posted, for {@code time}. */
+    private void schedulePump(long time) {
+        if (time == pumpTime) {
+            return;
+        }
+        if (pumpTime != NOT_POSTED) {
+            dispatcher.removeCallbacks(pump);
+        }
+        pumpTime = time;
+        dispatcher.postAtTime(pump, time);
+    }
+
+    /**
+     * Returns true if a gesture may go out now. While one is in flight (or the pacing gap
+     * after the last one hasn't elapsed) the pump is parked until the slot frees.
+     */
+    private boolean acquireDispatchSlot(long now) {
+        if (inFlight >= MAX_IN_FLIGHT) {
+            if (now < inFlightDeadline) {
+                // Watchdog in case the callback never arrives; a callback re-posts it sooner
+                schedulePump(inFlightDeadline);
+                return false;
+            }
+            inFlight = 0;
+            if (inFlightLoop != null) {
+                inFlightLoop.schedule.onGestureInterrupted();
+                inFlightLoop = null;
+            }
+        }
+        if (now < nextDispatchAllowed) {
+            schedulePump(nextDispatchAllowed);
+            return false;
+        }
+        return true;
+    }
+
+    private void add(Loop loop) {
+        heap.add(loop);
+        siftUp(heap.size() - 1);
+        schedulePump(heap.get(0).schedule.nextDeadline());
+    }
+
+    private void removeAt(int index) {
+        heap.get(index).heapIndex = -1;
+        Loop last = heap.remove(heap.size() - 1);
+        if (index < heap.size()) {
+            place(last, index);
+            siftDown(index);
+            siftUp(index);
+        }
+        if (heap.isEmpty() && pumpTime != NOT_POSTED) {
+            dispatcher.removeCallbacks(pump);
+            pumpTime = NOT_POSTED;
+        }
+    }
+
+    private void siftUp(int index) {
+        Loop loop = heap.get(index);
+        long deadline = loop.schedule.nextDeadline();
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap.get(parent).schedule.nextDeadline() <= deadline) {
+                break;
+            }
+            place(heap.get(parent), index);
+            index = parent;
+        }
+        place(loop, index);
+    }
+
+    private void siftDown(int index) {
+        Loop loop = heap.get(index);
+        long deadline = loop.schedule.nextDeadline();
+        int size = heap.size();
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size
+                    && heap.get(child + 1).schedule.nextDeadline() < heap.get(child).schedule.nextDeadline()) {
+                child++;
+            }
+            if (deadline <= heap.get(child).schedule.nextDeadline()) {
+                break;
+            }
+            place(heap.get(child), index);
+            index = child;
+        }
+        place(loop, index);
+    }
+
+    private void place(Loop loop, int index) {
+        heap.set(index, loop);
+        loop.heapIndex = index;
+    }
+
+    private void dispatchTracked(Loop loop, G gesture, long now, long scheduledTime, long gestureDuration, int taps) {
+        if (fingerDownLoop != null && fingerDownLoop != loop) {
+            // The system cancels a held stroke when another gesture starts
+            fingerDownLoop.schedule.onGestureInterrupted();
+        }
+        fingerDownLoop = loop != null && loop.schedule.isFingerDown() ? loop : null;
+        inFlight++;
+        inFlightLoop = loop;
+        inFlightDispatchTime = now;
+        inFlightTaps = taps;
+        inFlightDeadline = now + gestureDuration + GESTURE_TIMEOUT_MS;
+        telemetry.onDispatched(now, scheduledTime, taps);
+        dispatcher.dispatch(gesture);
+        cost.onDispatched(taps);
+    }
+
+    /**
+     * One looping timeline. Gestures are precompiled by its schedule, so it allocates nothing;
+     * it runs alongside every other loop started on the same engine.
+     */
+    public final class Loop {
+        private final TapSchedule<G> schedule;
+        private final boolean alwaysBatch;
+        private final int cycles; // Passes to play before stopping, or 0 for no limit
+        // Cleared from any thread so the dispatcher's thread sees it before the stop runs
+        private volatile boolean active = false;
+        private boolean stopped = false;
+        private int heapIndex = -1; // Position in the engine's heap, or -1 when not in it
+        // Published for the UI's active-tap highlight
+        private volatile int lastTapIndex = -1;
+
+        Loop(TapSchedule<G> schedule, boolean alwaysBatch, int cycles) {
+            this.schedule = schedule;
+            this.alwaysBatch = alwaysBatch;
+            this.cycles = cycles;
+        }
+
+        void start(int startIndex) {
+            active = true;
+            runningLoops++;
+            if (startIndex >= 0) {
+                schedule.start(clock.nowMillis(), startIndex);
+            } else {
+                schedule.start(clock.nowMillis());
+            }
+            add(this);
+        }
+
+        void start(int startIndex, long deadline) {
+            active = true;
+            runningLoops++;
+            schedule.start(clock.nowMillis(), startIndex, deadline);
+            add(this);
+        }
+
+        /** Timeline index of the first tap in the last dispatched gesture, or -1 before the first. */
+        public int getLastTapIndex() {
+            return lastTapIndex;
+        }
+
+        /** True once stopped, by {@link #stop()} or by finishing its cycles; dispatcher's thread only. */
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        /** Stops dispatching immediately; safe from any thread. Follow with {@link #stop()}. */
+        public void deactivate() {
+            active = false;
+        }
+
+        /**
+         * Removes the loop from the timeline; dispatcher's thread only. Other loops play on.
+         * A streamed stroke stopped mid-way gets its finger lifted straight away, even if a
+         * segment is still in flight.
+         */
+        public void stop() {
+            active = false;
+            if (heapIndex >= 0) {
+                removeAt(heapIndex);
+            }
+            if (!stopped) {
+                stopped = true;
+                runningLoops--;
+                G release = schedule.takeRelease();
+                if (release != null) {
+                    long now = clock.nowMillis();
+                    dispatchTracked(null, release, now, now, 1, 0);
+                }
+            }
+        }
+    }
+}
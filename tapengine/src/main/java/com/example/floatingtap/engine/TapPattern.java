@@ -0,0 +1,164 @@
+package com.example.floatingtap.engine;
+
+import java.util.Arrays;
+
+/**
+ * A recorded sequence of touch strokes, stored as parallel primitive arrays. A stroke is one
+ * finger going down, optionally moving through more points, and lifting; a plain tap is a
+ * stroke with a single point. {@link #getX}, {@link #getY} and {@link #getTimestamp} describe
+ * where and when each stroke starts, so code that only cares about taps can ignore the rest.
+ */
+public final class TapPattern {
+    public String name;
+    public long duration; // Until the last stroke ends, in milliseconds
+    public long tail; // Pause after the last stroke before the pattern repeats, in milliseconds
+    // Coordinates are in ScreenSpace units rather than the pixels of the screen it was recorded on
+    public boolean normalized;
+
+    // Struct-of-arrays storage, per stroke
+    private long[] timestamps; // Time since recording started in milliseconds
+    private long[] holds; // How long the finger stays down; 0 for a tap of unspecified length
+    private int[] firstPoints; // Index of the stroke's first point in the point arrays
+    private int[] pointCounts;
+    private int size;
+
+    // Per point, strokes laid out back to back
+    private int[] pointXs;
+    private int[] pointYs;
+    private long[] pointTimes; // Relative to the stroke's start
+    private int pointCount;
+
+    public TapPattern(String name) {
+        this(name, 16);
+    }
+
+    public TapPattern(String name, int capacity) {
+        this.name = name;
+        int strokes = Math.max(capacity, 1);
+        this.timestamps = new long[strokes];
+        this.holds = new long[strokes];
+        this.firstPoints = new int[strokes];
+        this.pointCounts = new int[strokes];
+        this.pointXs = new int[strokes];
+        this.pointYs = new int[strokes];
+        this.pointTimes = new long[strokes];
+        this.size = 0;
+        this.pointCount = 0;
+        this.duration = 0;
+        this.tail = 0;
+    }
+
+    /** Adds a tap whose hold time is left to the player. */
+    public void addTap(int x, int y, long timestamp) {
+        ensureStrokeCapacity();
+        ensurePointCapacity(1);
+        timestamps[size] = timestamp;
+        holds[size] = 0;
+        firstPoints[size] = pointCount;
+        pointCounts[size] = 1;
+        pointXs[pointCount] = x;
+        pointYs[pointCount] = y;
+        pointTimes[pointCount] = 0;
+        pointCount++;
+        size++;
+        duration = Math.max(duration, timestamp);
+    }
+
+    /**
+     * Adds a stroke through {@code count} points starting at {@code timestamp} and lasting
+     * {@code hold} ms. Point times are relative to the stroke's start; the first should be 0.
+     */
+    public void addStroke(long timestamp, long hold, int[] xs, int[] ys, long[] times, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("A stroke needs at least one point");
+        }
+        ensureStrokeCapacity();
+        ensurePointCapacity(count);
+        timestamps[size] = timestamp;
+        holds[size] = hold;
+        firstPoints[size] = pointCount;
+        pointCounts[size] = count;
+        System.arraycopy(xs, 0, pointXs, pointCount, count);
+        System.arraycopy(ys, 0, pointYs, pointCount, count);
+        System.arraycopy(times, 0, pointTimes, pointCount, count);
+        pointCount += count;
+        size++;
+        duration = Math.max(duration, timestamp + hold);
+    }
+
+    /** How long one pass takes when the pattern loops: its strokes, then the tail. */
+    public long cycleLength() {
+        return duration + tail;
+    }
+
+    /** {@code time} as it plays back at {@code speed} times the recorded speed. */
+    public static long scaleTime(long time, float speed) {
+        return Math.round(time / (double) speed);
+    }
+
+    /** Number of strokes. */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** Points across all strokes; a fair measure of the pattern's memory footprint. */
+    public int pointCount() {
+        return pointCount;
+    }
+
+    public int getX(int index) {
+        return pointXs[firstPoints[index]];
+    }
+
+    public int getY(int index) {
+        return pointYs[firstPoints[index]];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /** How long stroke {@code index} holds the finger down, or 0 for a tap of default length. */
+    public long getHold(int index) {
+        return holds[index];
+    }
+
+    public int getPointCount(int index) {
+        return pointCounts[index];
+    }
+
+    public int getPointX(int index, int point) {
+        return pointXs[firstPoints[index] + point];
+    }
+
+    public int getPointY(int index, int point) {
+        return pointYs[firstPoints[index] + point];
+    }
+
+    public long getPointTime(int index, int point) {
+        return pointTimes[firstPoints[index] + point];
+    }
+
+    private void ensureStrokeCapacity() {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            holds = Arrays.copyOf(holds, capacity);
+            firstPoints = Arrays.copyOf(firstPoints, capacity);
+            pointCounts = Arrays.copyOf(pointCounts, capacity);
+        }
+    }
+
+    private void ensurePointCapacity(int extra) {
+        if (pointCount + extra > pointXs.length) {
+            int capacity = Math.max(pointXs.length * 2, pointCount + extra);
+            pointXs = Arrays.copyOf(pointXs, capacity);
+            pointYs = Arrays.copyOf(pointYs, capacity);
+            pointTimes = Arrays.copyOf(pointTimes, capacity);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.example.floatingtap.engine;
+
+import java.util.Arrays;
+
+/**
+ * Cursor over one looping timeline of taps (or strokes, each with its own duration). Gestures
+ * for every tap, and for every batch of consecutive taps that fits in one gesture, are built
+ * once up front, so advancing the cursor in steady state allocates nothing. Long strokes can
+ * instead be streamed: played as a chain of segments, each built only when it falls due.
+ * Plain Java so the scheduling math can be tested off-device.
+ */
+public final class TapSchedule<G> {
+
+    /** Builds one gesture covering taps {@code [from, to)}, offset from the first tap's time. */
+    public interface GestureFactory<G> {
+        G create(int[] xs, int[] ys, long[] offsets, int from, int to);
+    }
+
+    /** Builds the gestures of streamed strokes, one segment at a time. */
+    public interface SegmentFactory<G> {
+        /**
+         * Builds segment {@code segment} of {@code stroke}, to last {@code duration} ms. With
+         * {@code continued} it carries on the finger left down by the previous segment;
+         * otherwise the finger goes down afresh at the segment's start. The finger stays
+         * down afterwards unless this is the stroke's last segment.
+         */
+        G createSegment(StrokeSegments stroke, int segment, long duration, boolean continued);
+
+        /** Lifts the finger left down after {@code segment}, where that segment ended. */
+        G createRelease(StrokeSegments stroke, int segment);
+    }
+
+    public final int[] xs;
+    public final int[] ys;
+    public final long[] offsets; // Tap times relative to the start of a cycle
+    public final long period;
+    // Cycles advance in microseconds so a period that isn't a whole number of milliseconds
+    // doesn't drift by the rounding error every cycle
+    private final long periodMicros;
+    private final long[] durations; // How long each entry's finger stays down
+    private final StrokeSegments[] streamed; // Per entry, or null where the entry is precompiled
+    private final SegmentFactory<G> segmentFactory;
+
+    private final Object[] singleGestures;
+    private final Object[] batchGestures;
+    // batchAt maps a tap to the batch it starts, or -1 if it's in the middle of one (or
+    // streamed); batch b runs from its starting tap up to, not including, tap batchEnds[b]
+    private final int[] batchAt;
+    private final int[] batchEnds;
+    private final long[] batchDurations;
+
+    private int cursor = 0;
+    private long cycleStartMicros;
+    private long nextDeadline;
+    private long lastDuration;
+    private int lastTapCount;
+    private int lastIndex = -1;
+    private int cyclesCompleted = 0;
+    // Progress through the streamed stroke under the cursor
+    private int segment = 0;
+    private boolean fingerDown = false; // The last segment dispatched left the finger down
+    private boolean interrupted = false;
+
+    public TapSchedule(int[] xs, int[] ys, long[] offsets, long period, long tapDuration,
+                int maxBatchStrokes, long maxBatchWindow, GestureFactory<G> factory) {
+        this(xs, ys, offsets, uniform(offsets.length, tapDuration), period, maxBatchStrokes, maxBatchWindow, factory);
+    }
+
+    /** A timeline whose entries last {@code durations[i]} each, e.g. recorded strokes. */
+    public TapSchedule(int[] xs, int[] ys, long[] offsets, long[] durations, long period,
+                int maxBatchStrokes, long maxBatchWindow, GestureFactory<G> factory) {
+        this(xs, ys, offsets, durations, null, period, maxBatchStrokes, maxBatchWindow, factory, null);
+    }
+
+    /**
+     * As above, but entries with a plan in {@code streamed} are played segment by segment
+     * through {@code segmentFactory} instead of as one precompiled gesture. They never join
+     * a batch, and take as long as their plan says whatever {@code durations} holds.
+     */
+    public TapSchedule(int[] xs, int[] ys, long[] offsets, long[] durations, StrokeSegments[] streamed,
+                long period, int maxBatchStrokes, long maxBatchWindow, GestureFactory<G> factory,
+                SegmentFactory<G> segmentFactory) {
+        this(xs, ys, offsets, durations, streamed, segmentFactory, period, period * 1000,
+                maxBatchStrokes, maxBatchWindow, factory);
+    }
+
+    private TapSchedule(int[] xs, int[] ys, long[] offsets, long[] durations, StrokeSegments[] streamed,
+                SegmentFactory<G> segmentFactory, long period, long periodMicros,
+                int maxBatchStrokes, long maxBatchWindow, GestureFactory<G> factory) {
+        this.xs = xs;
+        this.ys = ys;
+        this.offsets = offsets;
+        this.period = period;
+        this.periodMicros = periodMicros;
+        this.durations = durations;
+        this.streamed = streamed;
+        this.segmentFactory = segmentFactory;
+
+        int count = offsets.length;
+        singleGestures = new Object[count];
+        for (int i = 0; i < count; i++) {
+            if (!isStreamed(i)) {
+                singleGestures[i] = factory.create(xs, ys, offsets, i, i + 1);
+            }
+        }
+
+        // Greedy split of one cycle; batches never straddle the wrap so the plan is fixed
+        batchAt = new int[count];
+        int[] ends = new int[count];
+        long[] spans = new long[count];
+        int batches = 0;
+        int start = 0;
+        while (start < count) {
+            if (isStreamed(start)) {
+                batchAt[start] = -1;
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            // A batch lasts until its last finger lifts, which needn't be the last to go down
+            long span = durations[start];
+            while (end < count && end - start < maxBatchStrokes && !isStreamed(end)
+                    && offsets[end] - offsets[start] + durations[end] <= maxBatchWindow) {
+                span = Math.max(span, offsets[end] - offsets[start] + durations[end]);
+                end++;
+            }
+            for (int i = start; i < end; i++) {
+                batchAt[i] = -1;
+            }
+            batchAt[start] = batches;
+            ends[batches] = end;
+            spans[batches] = span;
+            batches++;
+            start = end;
+        }
+        batchEnds = new int[batches];
+        batchDurations = new long[batches];
+        batchGestures = new Object[batches];
+        for (int b = 0; b < batches; b++) {
+            batchEnds[b] = ends[b];
+            batchDurations[b] = spans[b];
+        }
+        for (int i = 0; i < count; i++) {
+            if (batchAt[i] >= 0) {
+                int b = batchAt[i];
+                batchGestures[b] = factory.create(xs, ys, offsets, i, batchEnds[b]);
+            }
+        }
+    }
+
+    /**
+     * Taps {@code markerXs/markerYs} in turn, one every {@code intervalMicros}, forever. Tap
+     * times sit on an exact microsecond grid and are rounded to milliseconds individually, so
+     * an interval like 33.333 ms stays accurate over any number of taps. A short marker list is
+     * repeated until one cycle holds {@code maxBatchStrokes} taps, so batches can fill up even
+     * when a single marker is tapped at a high rate.
+     */
+    public static <G> TapSchedule<G> atInterval(int[] markerXs, int[] markerYs, long intervalMicros,
+                                                long tapDuration, int maxBatchStrokes, long maxBatchWindow,
+                                                GestureFactory<G> factory) {
+        int markers = markerXs.length;
+        int repeats = Math.max(1, (maxBatchStrokes + markers - 1) / markers);
+        int count = markers * repeats;
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            xs[i] = markerXs[i % markers];
+            ys[i] = markerYs[i % markers];
+            offsets[i] = (i * intervalMicros + 500) / 1000;
+        }
+        long periodMicros = count * intervalMicros;
+        return new TapSchedule<>(xs, ys, offsets, uniform(count, tapDuration), null, null,
+                periodMicros / 1000, periodMicros, maxBatchStrokes, maxBatchWindow, factory);
+    }
+
+    private static long[] uniform(int count, long duration) {
+        long[] durations = new long[count];
+        Arrays.fill(durations, duration);
+        return durations;
+    }
+
+    private boolean isStreamed(int index) {
+        return streamed != null && streamed[index] != null;
+    }
+
+    public void start(long now) {
+        cursor = 0;
+        segment = 0;
+        fingerDown = false;
+        interrupted = false;
+        cyclesCompleted = 0;
+        cycleStartMicros = now * 1000;
+        nextDeadline = now + offsets[0];
+    }
+
+    /**
+     * Starts with entry {@code index} due at {@code now}, the rest of the timeline following
+     * on from it; e.g. to carry on where a schedule for the same pattern left off.
+     */
+    public void start(long now, int index) {
+        start(now);
+        cursor = index;
+        cycleStartMicros = (now - offsets[index]) * 1000;
+        nextDeadline = now;
+    }
+
+    /**
+     * As {@link #start(long, int)}, but entry {@code index} is due at {@code deadline}, or now
+     * if that has passed; e.g. to take over from a schedule whose next tap was already timed.
+     */
+    public void start(long now, int index, long deadline) {
+        start(Math.max(now, deadline), index);
+    }
+
+    /** Clock time at which the gesture under the cursor is due. */
+    public long nextDeadline() {
+        return nextDeadline;
+    }
+
+    /** Timeline index of the entry under the cursor: the next one to play. */
+    public int nextIndex() {
+        return cursor;
+    }
+
+    /** Length of the gesture last returned by {@link #takeNext}, stroke time included. */
+    public long lastDuration() {
+        return lastDuration;
+    }
+
+    /** Number of taps in the gesture last returned by {@link #takeNext}. */
+    public int lastTapCount() {
+        return lastTapCount;
+    }
+
+    /** Timeline index of the first tap in the gesture last returned by {@link #takeNext}. */
+    public int lastIndex() {
+        return lastIndex;
+    }
+
+    /** Times the cursor has wrapped around since {@link #start}. */
+    public int cyclesCompleted() {
+        return cyclesCompleted;
+    }
+
+    public int batchCount() {
+        return batchGestures.length;
+    }
+
+    /**
+     * Tells the schedule the gesture it last returned never finished (cancelled, its callback
+     * was lost, or another gesture went out while its finger was down), so a streamed stroke
+     * must put its finger down again rather than continue one the system has already lifted.
+     */
+    public void onGestureInterrupted() {
+        interrupted = true;
+    }
+
+    /** True while the last gesture left a streamed stroke's finger down, to be continued. */
+    public boolean isFingerDown() {
+        return fingerDown;
+    }
+
+    /**
+     * If the last gesture left a streamed stroke's finger down, returns one that lifts it and
+     * forgets the stroke; otherwise null. For stopping playback mid-stroke.
+     */
+    public G takeRelease() {
+        if (!fingerDown) {
+            return null;
+        }
+        fingerDown = false;
+        return segmentFactory.createRelease(streamed[lastIndex], segment - 1);
+    }
+
+    /** As {@link #takeNext(boolean, long)} for a gesture dispatched exactly on time. */
+    public G takeNext(boolean batching) {
+        return takeNext(batching, nextDeadline);
+    }
+
+    /**
+     * Returns the gesture due at {@link #nextDeadline()} and moves the cursor past it. With
+     * batching on, that's the whole batch starting at the cursor; a cursor left mid-batch
+     * (batching was just switched on) plays single taps until it reaches a batch boundary.
+     * A streamed stroke yields one segment per call, and a segment dispatched late at
+     * {@code now} is shortened (to no less than half) so the finger catches up with the
+     * recorded timing instead of the whole stroke running late.
+     */
+    @SuppressWarnings("unchecked")
+    public G takeNext(boolean batching, long now) {
+        if (isStreamed(cursor)) {
+            return takeSegment(now);
+        }
+        int batch = batching ? batchAt[cursor] : -1;
+        G gesture;
+        int end;
+        if (batch >= 0) {
+            gesture = (G) batchGestures[batch];
+            lastDuration = batchDurations[batch];
+            end = batchEnds[batch];
+        } else {
+            gesture = (G) singleGestures[cursor];
+            lastDuration = durations[cursor];
+            end = cursor + 1;
+        }
+        lastTapCount = end - cursor;
+        lastIndex = cursor;
+        fingerDown = false;
+        interrupted = false;
+        advanceTo(end);
+        return gesture;
+    }
+
+    private G takeSegment(long now) {
+        StrokeSegments stroke = streamed[cursor];
+        long recorded = stroke.segmentDuration(segment);
+        long end = nextDeadline + recorded;
+        long duration = Math.max(Math.min(Math.max(end - now, (recorded + 1) / 2), recorded), 1);
+        boolean last = segment == stroke.segmentCount() - 1;
+        G gesture = segmentFactory.createSegment(stroke, segment, duration, segment > 0 && !interrupted);
+        interrupted = false;
+        lastDuration = duration;
+        lastTapCount = last ? 1 : 0; // A stroke counts once, when its finger lifts
+        lastIndex = cursor;
+        fingerDown = !last;
+        if (last) {
+            segment = 0;
+            advanceTo(cursor + 1);
+        } else {
+            segment++;
+            nextDeadline = cycleStart() + offsets[cursor] + stroke.segmentTime(segment);
+        }
+        return gesture;
+    }
+
+    private void advanceTo(int end) {
+        if (end >= offsets.length) {
+            // Wrap around: the next cycle starts exactly one period after this one did
+            cursor = 0;
+            cycleStartMicros += periodMicros;
+            cyclesCompleted++;
+        } else {
+            cursor = end;
+        }
+        nextDeadline = cycleStart() + offsets[cursor];
+    }
+
+    private long cycleStart() {
+        return (cycleStartMicros + 500) / 1000;
+    }
+
+    /**
+     * If the cursor is more than a whole cycle behind {@code now} (e.g. the device was
+     * suspended), moves the timeline forward instead of replaying a burst of stale taps.
+     */
+    public void resyncIfBehind(long now) {
+        if (now - nextDeadline > period) {
+            long segmentTime = isStreamed(cursor) ? streamed[cursor].segmentTime(segment) : 0;
+            cycleStartMicros = (now - offsets[cursor] - segmentTime) * 1000;
+            nextDeadline = now;
+        }
+    }
+}
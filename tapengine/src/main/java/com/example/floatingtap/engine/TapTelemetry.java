@@ -0,0 +1,110 @@
+package com.example.floatingtap.engine;
+
+import java.io.PrintWriter;
+
+/**
+ * Timing and throughput counters for the tap engine: how late each gesture went out compared
+ * to its scheduled time, how long the system took to complete it, and how many taps landed
+ * or were cancelled. Updated only from the tap thread, without allocating.
+ */
+public final class TapTelemetry {
+
+    /** Actual dispatch time minus scheduled time. */
+    public final LatencyHistogram dispatchLag = new LatencyHistogram();
+    /** Completion or cancellation callback time minus dispatch time. */
+    public final LatencyHistogram completionTime = new LatencyHistogram();
+
+    private volatile long gesturesDispatched;
+    private volatile long gesturesCompleted;
+    private volatile long gesturesCancelled;
+    private volatile long tapsDispatched;
+    private volatile long tapsCompleted;
+    private volatile long tapsCancelled;
+    private volatile long firstDispatchTime;
+    private volatile long lastDispatchTime;
+
+    public void reset() {
+        dispatchLag.reset();
+        completionTime.reset();
+        gesturesDispatched = 0;
+        gesturesCompleted = 0;
+        gesturesCancelled = 0;
+        tapsDispatched = 0;
+        tapsCompleted = 0;
+        tapsCancelled = 0;
+        firstDispatchTime = 0;
+        lastDispatchTime = 0;
+    }
+
+    public void onDispatched(long now, long scheduledTime, int taps) {
+        if (firstDispatchTime == 0) {
+            firstDispatchTime = now;
+        }
+        lastDispatchTime = now;
+        dispatchLag.record(now - scheduledTime);
+        gesturesDispatched++;
+        tapsDispatched += taps;
+    }
+
+    public void onFinished(long now, long dispatchTime, int taps, boolean completed) {
+        completionTime.record(now - dispatchTime);
+        if (completed) {
+            gesturesCompleted++;
+            tapsCompleted += taps;
+        } else {
+            gesturesCancelled++;
+            tapsCancelled += taps;
+        }
+    }
+
+    public long getGesturesDispatched() {
+        return gesturesDispatched;
+    }
+
+    public long getGesturesCompleted() {
+        return gesturesCompleted;
+    }
+
+    public long getGesturesCancelled() {
+        return gesturesCancelled;
+    }
+
+    public long getTapsDispatched() {
+        return tapsDispatched;
+    }
+
+    public long getTapsCompleted() {
+        return tapsCompleted;
+    }
+
+    public long getTapsCancelled() {
+        return tapsCancelled;
+    }
+
+    /** Completed taps per minute since the first dispatch after the last reset. */
+    public float achievedTapsPerMinute(long now) {
+        long start = firstDispatchTime;
+        long elapsed = now - start;
+        return start == 0 || elapsed <= 0 ? 0 : tapsCompleted * 60000f / elapsed;
+    }
+
+    public void dump(PrintWriter writer, long now) {
+        writer.println("Tap telemetry:");
+        writer.printf("  gestures: %d dispatched, %d completed, %d cancelled%n",
+                gesturesDispatched, gesturesCompleted, gesturesCancelled);
+        writer.printf("  taps: %d dispatched, %d completed, %d cancelled%n",
+                tapsDispatched, tapsCompleted, tapsCancelled);
+        writer.printf("  achieved rate: %.2f taps/min%n", achievedTapsPerMinute(now));
+        if (lastDispatchTime != 0) {
+            writer.printf("  last dispatch: %d ms ago%n", now - lastDispatchTime);
+        }
+        dumpHistogram(writer, "dispatch lag", dispatchLag);
+        dumpHistogram(writer, "completion time", completionTime);
+    }
+
+    private static void dumpHistogram(PrintWriter writer, String label, LatencyHistogram histogram) {
+        writer.printf("  %s (ms): n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d%n",
+                label, histogram.count(), histogram.mean(), histogram.percentile(0.5),
+                histogram.percentile(0.9), histogram.percentile(0.99), histogram.max());
+    }
+}
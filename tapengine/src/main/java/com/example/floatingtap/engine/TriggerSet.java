@@ -0,0 +1,134 @@
+package com.example.floatingtap.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The armed {@link EventTrigger}s, matched against every incoming accessibility event. The
+ * set is immutable, so one thread can replace it while another reads; the triggers' debounce
+ * state belongs to the thread feeding events. Nothing here posts work: after each event the
+ * caller schedules one wake-up for {@link #nextDeadline()} and collects due triggers with
+ * {@link #takeDue(long)}, so between bursts there is nothing to run.
+ */
+public final class TriggerSet {
+
+    public static final TriggerSet EMPTY = new TriggerSet(new EventTrigger[0]);
+
+    private final EventTrigger[] triggers;
+    private final int eventTypes; // Union of the triggers' masks, rejecting most events at once
+    private final String[] packageNames; // Distinct packages watched, or null if any trigger watches all
+
+    private TriggerSet(EventTrigger[] triggers) {
+        this.triggers = triggers;
+        int types = 0;
+        ArrayList<String> packages = new ArrayList<>();
+        for (EventTrigger trigger : triggers) {
+            types |= trigger.eventTypes;
+            if (packages != null) {
+                if (trigger.packageName == null) {
+                    packages = null;
+                } else if (!packages.contains(trigger.packageName)) {
+                    packages.add(trigger.packageName);
+                }
+            }
+        }
+        this.eventTypes = types;
+        this.packageNames = packages != null ? packages.toArray(new String[0]) : null;
+    }
+
+    /** A copy with {@code trigger} added, replacing any trigger with the same id. */
+    public TriggerSet with(EventTrigger trigger) {
+        TriggerSet without = without(trigger.id);
+        EventTrigger[] added = Arrays.copyOf(without.triggers, without.triggers.length + 1);
+        added[added.length - 1] = trigger;
+        return new TriggerSet(added);
+    }
+
+    /** A copy without the trigger with id {@code id}; this set if there is none. */
+    public TriggerSet without(int id) {
+        for (int i = 0; i < triggers.length; i++) {
+            if (triggers[i].id == id) {
+                EventTrigger[] removed = new EventTrigger[triggers.length - 1];
+                System.arraycopy(triggers, 0, removed, 0, i);
+                System.arraycopy(triggers, i + 1, removed, i, triggers.length - i - 1);
+                return new TriggerSet(removed);
+            }
+        }
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return triggers.length == 0;
+    }
+
+    public int size() {
+        return triggers.length;
+    }
+
+    public EventTrigger get(int index) {
+        return triggers[index];
+    }
+
+    /** Event types any trigger listens for; the rest needn't be delivered at all. */
+    public int eventTypes() {
+        return eventTypes;
+    }
+
+    /**
+     * Packages any trigger listens to, or null if some trigger listens to every package.
+     * Empty when the set is; with {@link #eventTypes()} 0 that subscribes to nothing.
+     */
+    public String[] packageNames() {
+        return packageNames != null ? packageNames.clone() : null;
+    }
+
+    /** True if both sets need the same events delivered, so a subscription can stay as it is. */
+    public boolean subscribesLike(TriggerSet other) {
+        if (eventTypes != other.eventTypes) {
+            return false;
+        }
+        if (packageNames == null || other.packageNames == null) {
+            return packageNames == other.packageNames;
+        }
+        // Built in arming order, so compare as sets
+        return packageNames.length == other.packageNames.length
+                && Arrays.asList(packageNames).containsAll(Arrays.asList(other.packageNames));
+    }
+
+    /** Feeds one event; returns true if it armed or extended any trigger. */
+    public boolean onEvent(int eventType, CharSequence packageName, long now) {
+        if ((eventTypes & eventType) == 0) {
+            return false;
+        }
+        boolean matched = false;
+        for (EventTrigger trigger : triggers) {
+            if (trigger.matches(eventType, packageName)) {
+                trigger.onMatch(now);
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    /** Earliest time an armed trigger fires, or {@code Long.MAX_VALUE} if none is armed. */
+    public long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (EventTrigger trigger : triggers) {
+            if (trigger.isArmed()) {
+                next = Math.min(next, trigger.deadline());
+            }
+        }
+        return next;
+    }
+
+    /** Disarms and returns a trigger due at {@code now}, or null; call until it returns null. */
+    public EventTrigger takeDue(long now) {
+        for (EventTrigger trigger : triggers) {
+            if (trigger.isArmed() && trigger.deadline() <= now) {
+                trigger.disarm();
+                return trigger;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AnchorCacheTest {
+
+    @Test
+    public void contentChangeInvalidatesOnlyThatWindow() {
+        AnchorCache cache = new AnchorCache(3);
+        assertEquals(3, cache.invalidCount());
+        cache.put(0, 7, 0, 0, 100, 50);
+        cache.put(1, 9, 200, 200, 300, 260);
+        cache.put(2, 7, 0, 100, 100, 150);
+        assertEquals(0, cache.invalidCount());
+
+        assertEquals(2, cache.invalidateWindow(7));
+        assertFalse(cache.isValid(0));
+        assertTrue(cache.isValid(1));
+        assertFalse(cache.isValid(2));
+        assertEquals(2, cache.invalidCount());
+        // Already stale entries aren't counted twice
+        assertEquals(0, cache.invalidateWindow(7));
+
+        cache.put(0, 7, 10, 0, 110, 50);
+        assertEquals(1, cache.invalidCount());
+        assertEquals(10, cache.getLeft(0));
+        assertEquals(260, cache.getBottom(1));
+
+        cache.invalidateAll();
+        assertEquals(3, cache.invalidCount());
+    }
+
+    @Test
+    public void anchorKeepsItsRelativeSpotInsideMovedBounds() {
+        // Placed a quarter of the way across and at the middle of a 200 x 40 button at (100, 500)
+        float fx = NodeAnchor.fraction(150, 100, 300);
+        float fy = NodeAnchor.fraction(520, 500, 540);
+        NodeAnchor anchor = new NodeAnchor("com.game", "com.game:id/collect", null,
+                new String[] {"android.widget.FrameLayout", "android.widget.Button"}, new int[] {0, 2}, fx, fy);
+        assertEquals(2, anchor.depth());
+        assertEquals(2, anchor.getPathIndex(1));
+
+        // The button scrolled up and grew
+        assertEquals(100, anchor.pointX(0, 400));
+        assertEquals(230, anchor.pointY(200, 260));
+
+        assertEquals(0.5f, NodeAnchor.fraction(10, 10, 10), 0f);
+        assertEquals(1f, NodeAnchor.fraction(500, 0, 100), 0f);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals(0.0, histogram.mean(), 0.0);
+    }
+
+    @Test
+    public void percentilesLandOnBucketBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(2);
+        }
+        histogram.record(45);
+        histogram.record(700);
+
+        assertEquals(100, histogram.count());
+        assertEquals(2, histogram.percentile(0.5));
+        assertEquals(2, histogram.percentile(0.98));
+        assertEquals(50, histogram.percentile(0.99));
+        assertEquals(700, histogram.percentile(1.0));
+        assertEquals(700, histogram.max());
+        assertEquals(9.41, histogram.mean(), 0.001);
+    }
+
+    @Test
+    public void overflowAndNegativeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-3);
+        histogram.record(60000);
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(60000, histogram.percentile(1.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.max());
+    }
+
+    @Test
+    public void recordingAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 200000; i++) {
+            histogram.record(i % 300);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000000; i++) {
+            histogram.record(i % 300);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(1200000, histogram.count());
+        assertEquals("bytes allocated by 1M records", 0, allocated);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NodeAnchorTest {
+
+    private static final String[] CLASSES = {"android.widget.FrameLayout", "android.widget.Button"};
+    private static final int[] INDICES = {0, 2};
+
+    private static NodeAnchor anchor(String viewId, String text) {
+        return new NodeAnchor("com.game", viewId, text, CLASSES, INDICES, 0.5f, 0.5f);
+    }
+
+    @Test
+    public void anAnchorWithAnIdMatchesByIdAlone() {
+        NodeAnchor anchor = anchor("com.game:id/collect", "Collect");
+        assertTrue(anchor.matches(new StringBuilder("com.game:id/collect"), "Claimed"));
+        assertTrue(anchor.matches("com.game:id/collect", null));
+        // A recycled view with another id, even showing the same label
+        assertFalse(anchor.matches("com.game:id/share", "Collect"));
+        assertFalse(anchor.matches(null, "Collect"));
+    }
+
+    @Test
+    public void anAnchorWithOnlyTextNeedsTheExactText() {
+        NodeAnchor anchor = anchor(null, "Collect");
+        assertTrue(anchor.matches(null, new StringBuilder("Collect")));
+        assertTrue(anchor.matches("com.game:id/anything", "Collect"));
+        // What a search by text also turns up
+        assertFalse(anchor.matches(null, "collect"));
+        assertFalse(anchor.matches(null, "Collect all"));
+        assertFalse(anchor.matches(null, null));
+
+        assertTrue(anchor.hasText("Collect"));
+        assertFalse(anchor.hasText("COLLECT"));
+        assertFalse(anchor(null, null).hasText("Collect"));
+    }
+
+    @Test
+    public void anAnchorWithNeitherTakesAnyNode() {
+        NodeAnchor anchor = anchor(null, null);
+        assertTrue(anchor.matches(null, null));
+        assertTrue(anchor.matches("com.game:id/collect", "Collect"));
+    }
+
+    @Test
+    public void pathClassesMatchLevelByLevel() {
+        NodeAnchor anchor = anchor(null, null);
+        assertEquals(2, anchor.depth());
+        assertTrue(anchor.matchesPathClass(0, "android.widget.FrameLayout"));
+        assertTrue(anchor.matchesPathClass(1, new StringBuilder("android.widget.Button")));
+        assertFalse(anchor.matchesPathClass(1, "android.widget.FrameLayout"));
+        assertFalse(anchor.matchesPathClass(1, null));
+        assertEquals(2, anchor.getPathIndex(1));
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PatternFileTest {
+
+    private static TapPattern randomPattern(int taps) {
+        Random random = new Random(42);
+        TapPattern pattern = new TapPattern("Collector loop");
+        int x = 540;
+        int y = 1200;
+        long time = 0;
+        for (int i = 0; i < taps; i++) {
+            // Taps wander around a few targets, tens of ms to a second apart
+            x = Math.max(0, Math.min(1080, x + random.nextInt(401) - 200));
+            y = Math.max(0, Math.min(2400, y + random.nextInt(801) - 400));
+            time += 20 + random.nextInt(1000);
+            pattern.addTap(x, y, time);
+        }
+        return pattern;
+    }
+
+    private static void assertSamePattern(TapPattern expected, TapPattern actual) {
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.duration, actual.duration);
+        assertEquals(expected.tail, actual.tail);
+        assertEquals(expected.normalized, actual.normalized);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getX(i), actual.getX(i));
+            assertEquals(expected.getY(i), actual.getY(i));
+            assertEquals(expected.getTimestamp(i), actual.getTimestamp(i));
+            assertEquals(expected.getHold(i), actual.getHold(i));
+            assertEquals(expected.getPointCount(i), actual.getPointCount(i));
+            for (int p = 0; p < expected.getPointCount(i); p++) {
+                assertEquals(expected.getPointX(i, p), actual.getPointX(i, p));
+                assertEquals(expected.getPointY(i, p), actual.getPointY(i, p));
+                assertEquals(expected.getPointTime(i, p), actual.getPointTime(i, p));
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsThroughBytes() throws IOException {
+        TapPattern pattern = randomPattern(500);
+        pattern.addTap(-5, 3000, pattern.duration + 1); // Off-screen and out-of-order coordinates survive
+        byte[] encoded = PatternFile.encode(pattern);
+        assertSamePattern(pattern, PatternFile.decode(ByteBuffer.wrap(encoded)));
+    }
+
+    @Test
+    public void roundTripsStrokes() throws IOException {
+        TapPattern pattern = new TapPattern("Swipes");
+        pattern.addTap(100, 200, 0);
+        pattern.addStroke(400, 350, new int[] {100, 900, 900}, new int[] {1800, 1800, 300},
+                new long[] {0, 120, 350}, 3);
+        pattern.addStroke(1000, 800, new int[] {540}, new int[] {1200}, new long[] {0}, 1); // Long press
+        pattern.addTap(540, 1200, 2000);
+        pattern.tail = 750;
+        byte[] encoded = PatternFile.encode(pattern);
+        assertSamePattern(pattern, PatternFile.decode(ByteBuffer.wrap(encoded)));
+        assertEquals(4, pattern.size());
+        assertEquals(6, pattern.pointCount());
+    }
+
+    @Test
+    public void normalizedPatternsStayNormalized() throws IOException {
+        TapPattern pattern = new ScreenSpace(1080, 2400, ScreenSpace.ROTATION_0).toNormal(randomPattern(50));
+        assertTrue(pattern.normalized);
+        assertSamePattern(pattern, PatternFile.decode(ByteBuffer.wrap(PatternFile.encode(pattern))));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherVersions() throws IOException {
+        byte[] encoded = PatternFile.encode(randomPattern(10));
+        encoded[4] = 3;
+        PatternFile.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Test
+    public void hundredThousandTapsStayCompact() throws IOException {
+        TapPattern pattern = randomPattern(100000);
+        byte[] encoded = PatternFile.encode(pattern);
+        assertTrue("encoded size " + encoded.length, encoded.length < 600 * 1024);
+
+        File file = File.createTempFile("pattern", ".ftp");
+        try {
+            PatternFile.write(pattern, file);
+            assertEquals(encoded.length, file.length());
+            assertSamePattern(pattern, PatternFile.read(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFiles() throws IOException {
+        PatternFile.decode(ByteBuffer.wrap(new byte[] {'P', 'K', 3, 4, 1, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedFiles() throws IOException {
+        byte[] encoded = PatternFile.encode(randomPattern(10));
+        ByteBuffer truncated = ByteBuffer.wrap(encoded, 0, encoded.length - 4).slice();
+        PatternFile.decode(truncated);
+    }
+}
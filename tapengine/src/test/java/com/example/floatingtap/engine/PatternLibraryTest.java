@@ -0,0 +1,193 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PatternLibraryTest {
+
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("patterns").toFile();
+    }
+
+    private static TapPattern pattern(String name, int taps) {
+        TapPattern pattern = new TapPattern(name);
+        for (int i = 0; i < taps; i++) {
+            pattern.addTap(100 + i, 200 + i, i * 50L);
+        }
+        return pattern;
+    }
+
+    private PatternLibrary openLibrary(long maxCachedTaps) {
+        PatternLibrary library = new PatternLibrary(directory, maxCachedTaps, INLINE, INLINE);
+        library.open();
+        return library;
+    }
+
+    private static TapPattern loadNow(PatternLibrary library, PatternLibrary.Entry entry) {
+        final TapPattern[] result = new TapPattern[1];
+        library.load(entry, new PatternLibrary.LoadCallback() {
+            @Override
+            public void onLoaded(PatternLibrary.Entry entry, TapPattern pattern) {
+                result[0] = pattern;
+            }
+
+            @Override
+            public void onLoadFailed(PatternLibrary.Entry entry, IOException error) {
+                fail(error.toString());
+            }
+        });
+        return result[0];
+    }
+
+    @Test
+    public void indexSurvivesReopen() {
+        PatternLibrary library = openLibrary(1000);
+        library.save(pattern("Collector", 3), null);
+        library.save(pattern("Dismiss", 5), null);
+
+        List<PatternLibrary.Entry> entries = openLibrary(1000).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("Collector", entries.get(0).name);
+        assertEquals(3, entries.get(0).tapCount);
+        assertEquals("Dismiss", entries.get(1).name);
+        assertEquals(200, entries.get(1).cycleLength);
+        assertTrue(entries.get(1).sizeBytes > 0);
+    }
+
+    @Test
+    public void anUnnamedPatternIsNamedAfterTheIdItIsSavedUnder() {
+        PatternLibrary library = openLibrary(1000);
+        // Takes id 1 while the unnamed one is still being recorded
+        library.save(pattern("Imported", 1), null);
+        TapPattern recorded = pattern(null, 2);
+        final PatternLibrary.Entry[] saved = new PatternLibrary.Entry[1];
+        library.save(recorded, new PatternLibrary.SaveCallback() {
+            @Override
+            public void onSaved(PatternLibrary.Entry entry) {
+                saved[0] = entry;
+            }
+
+            @Override
+            public void onSaveFailed(IOException error) {
+                fail(error.toString());
+            }
+        });
+
+        assertEquals(2, saved[0].id);
+        assertEquals("Pattern 2", saved[0].name);
+        assertEquals("Pattern 2", recorded.name);
+        assertEquals("Pattern 2", openLibrary(1000).getEntries().get(1).name);
+    }
+
+    @Test
+    public void aFailedSaveIsReportedAndNotIndexed() throws IOException {
+        // A file where the directory should be, so nothing can be written into it
+        assertTrue(directory.delete());
+        assertTrue(directory.createNewFile());
+        PatternLibrary library = openLibrary(1000);
+        final IOException[] failure = new IOException[1];
+        library.save(pattern("Lost", 3), new PatternLibrary.SaveCallback() {
+            @Override
+            public void onSaved(PatternLibrary.Entry entry) {
+                fail("Saved into a file");
+            }
+
+            @Override
+            public void onSaveFailed(IOException error) {
+                failure[0] = error;
+            }
+        });
+        assertNotNull(failure[0]);
+        assertTrue(library.getEntries().isEmpty());
+    }
+
+    @Test
+    public void entriesListTheCycleLengthTailIncluded() {
+        PatternLibrary library = openLibrary(1000);
+        TapPattern looped = pattern("Looped", 3);
+        looped.tail = 400;
+        library.save(looped, null);
+        assertEquals(looped.cycleLength(), library.getEntries().get(0).cycleLength);
+
+        // And the same once rebuilt from the file's header
+        assertTrue(new File(directory, "index.dat").delete());
+        assertEquals(500, openLibrary(1000).getEntries().get(0).cycleLength);
+    }
+
+    @Test
+    public void missingIndexIsRebuiltFromPatternHeaders() {
+        PatternLibrary library = openLibrary(1000);
+        library.save(pattern("First", 2), null);
+        library.save(pattern("Second", 4), null);
+        assertTrue(new File(directory, "index.dat").delete());
+
+        PatternLibrary reopened = openLibrary(1000);
+        List<PatternLibrary.Entry> entries = reopened.getEntries();
+        assertEquals(2, entries.size());
+        assertEquals("Second", entries.get(1).name);
+        assertEquals(4, entries.get(1).tapCount);
+        // Ids carry on after the highest one found
+        reopened.save(pattern(null, 1), null);
+        assertEquals(3, reopened.getEntries().get(2).id);
+        assertEquals("Pattern 3", reopened.getEntries().get(2).name);
+    }
+
+    @Test
+    public void lazyLoadReadsBodyAndCachesIt() {
+        openLibrary(1000).save(pattern("Loop", 10), null);
+
+        PatternLibrary library = openLibrary(1000);
+        assertEquals(0, library.getCachedTaps());
+        TapPattern loaded = loadNow(library, library.getEntries().get(0));
+        assertEquals(10, loaded.size());
+        assertEquals(109, loaded.getX(9));
+        assertEquals(10, library.getCachedTaps());
+        assertSame(loaded, loadNow(library, library.getEntries().get(0)));
+    }
+
+    @Test
+    public void cacheStaysWithinTapBudget() {
+        PatternLibrary writer = openLibrary(1000);
+        for (int i = 0; i < 10; i++) {
+            writer.save(pattern("P" + i, 40), null);
+        }
+
+        PatternLibrary library = openLibrary(100);
+        List<PatternLibrary.Entry> entries = library.getEntries();
+        for (PatternLibrary.Entry entry : entries) {
+            assertEquals(40, loadNow(library, entry).size());
+            assertTrue(library.getCachedTaps() <= 100);
+        }
+        assertEquals(80, library.getCachedTaps());
+    }
+
+    @Test
+    public void deleteRemovesEntryAndFile() {
+        PatternLibrary library = openLibrary(1000);
+        library.save(pattern("Keep", 1), null);
+        library.save(pattern("Drop", 1), null);
+
+        library.delete(library.getEntries().get(1));
+        assertEquals(1, library.getEntries().size());
+        assertEquals(1, openLibrary(1000).getEntries().size());
+        assertFalse(new File(directory, "2.ftp").exists());
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScreenSpaceTest {
+
+    private static final ScreenSpace PORTRAIT = new ScreenSpace(1080, 2400, ScreenSpace.ROTATION_0);
+
+    @Test
+    public void pixelsSurviveTheRoundTrip() {
+        for (int x = 0; x <= 1080; x += 7) {
+            for (int y = 0; y <= 2400; y += 13) {
+                int nx = PORTRAIT.toNormalX(x, y);
+                int ny = PORTRAIT.toNormalY(x, y);
+                assertEquals(x, PORTRAIT.toScreenX(nx, ny));
+                assertEquals(y, PORTRAIT.toScreenY(nx, ny));
+            }
+        }
+    }
+
+    @Test
+    public void pointsFollowTheScreenAsItTurns() {
+        // Near the natural top-left corner
+        int nx = PORTRAIT.toNormalX(108, 240);
+        int ny = PORTRAIT.toNormalY(108, 240);
+
+        // Turned counterclockwise, the natural top edge is on the left
+        ScreenSpace left = new ScreenSpace(2400, 1080, ScreenSpace.ROTATION_90);
+        assertEquals(240, left.toScreenX(nx, ny));
+        assertEquals(972, left.toScreenY(nx, ny));
+
+        ScreenSpace upsideDown = new ScreenSpace(1080, 2400, ScreenSpace.ROTATION_180);
+        assertEquals(972, upsideDown.toScreenX(nx, ny));
+        assertEquals(2160, upsideDown.toScreenY(nx, ny));
+
+        ScreenSpace right = new ScreenSpace(2400, 1080, ScreenSpace.ROTATION_270);
+        assertEquals(2160, right.toScreenX(nx, ny));
+        assertEquals(108, right.toScreenY(nx, ny));
+
+        // And back again from each
+        assertEquals(nx, right.toNormalX(2160, 108));
+        assertEquals(ny, right.toNormalY(2160, 108));
+        assertEquals(nx, left.toNormalX(240, 972));
+        assertEquals(ny, left.toNormalY(240, 972));
+    }
+
+    @Test
+    public void patternsScaleToAnotherResolution() {
+        TapPattern recorded = new TapPattern("Swipe");
+        recorded.addTap(540, 1200, 0);
+        recorded.addStroke(300, 250, new int[] {100, 900}, new int[] {2000, 400}, new long[] {0, 250}, 2);
+        recorded.tail = 500;
+
+        TapPattern normalized = PORTRAIT.toNormal(recorded);
+        assertTrue(normalized.normalized);
+        assertSame(normalized, PORTRAIT.toNormal(normalized));
+
+        TapPattern smaller = new ScreenSpace(720, 1600, ScreenSpace.ROTATION_0).toScreen(normalized);
+        assertFalse(smaller.normalized);
+        assertEquals(360, smaller.getX(0));
+        assertEquals(800, smaller.getY(0));
+        assertEquals(0, smaller.getHold(0));
+        assertEquals(600, smaller.getPointX(1, 1));
+        assertEquals(267, smaller.getPointY(1, 1));
+        assertEquals(250, smaller.getPointTime(1, 1));
+        assertEquals(250, smaller.getHold(1));
+        assertEquals(recorded.duration, smaller.duration);
+        assertEquals(500, smaller.tail);
+
+        // Patterns from before normalization play as recorded
+        assertSame(recorded, PORTRAIT.toScreen(recorded));
+    }
+}
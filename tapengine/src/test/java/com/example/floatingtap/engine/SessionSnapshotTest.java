@@ -0,0 +1,107 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SessionSnapshotTest {
+
+    private static SessionSnapshot sampleSnapshot() {
+        SessionSnapshot snapshot = new SessionSnapshot();
+        snapshot.markerXs = new int[] {540, -12, 1080};
+        snapshot.markerYs = new int[] {1200, 2400, 0};
+        snapshot.markerAnchors = new NodeAnchor[] {
+                new NodeAnchor("com.game", "com.game:id/collect", null,
+                        new String[] {"android.widget.FrameLayout", "android.widget.Button"}, new int[] {0, 3},
+                        0.25f, 0.5f),
+                null,
+                new NodeAnchor("com.game", null, "Claim ✓", new String[] {"android.widget.TextView"}, new int[] {0},
+                        1f, 0f)};
+        snapshot.intervalMicros = 25000000;
+        snapshot.strokeDurationMs = 50;
+        snapshot.frequencyStep = 3;
+        snapshot.playbackSpeedStep = 100;
+        snapshot.running = true;
+        snapshot.triggerMode = true;
+        snapshot.selectedPatternId = 4;
+        snapshot.playingPatternIds = new int[] {4, 9};
+        snapshot.playingSpeeds = new float[] {1f, 2.5f};
+        snapshot.playingOnEvents = new boolean[] {false, true};
+        return snapshot;
+    }
+
+    @Test
+    public void roundTripsMarkersAnchorsAndRunState() throws IOException {
+        SessionSnapshot snapshot = sampleSnapshot();
+        SessionSnapshot read = SessionSnapshot.decode(ByteBuffer.wrap(SessionSnapshot.encode(snapshot)));
+
+        assertEquals(3, read.markerXs.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(snapshot.markerXs[i], read.markerXs[i]);
+            assertEquals(snapshot.markerYs[i], read.markerYs[i]);
+        }
+        assertNull(read.markerAnchors[1]);
+        NodeAnchor anchor = read.markerAnchors[0];
+        assertEquals("com.game", anchor.packageName);
+        assertEquals("com.game:id/collect", anchor.viewId);
+        assertNull(anchor.text);
+        assertEquals(2, anchor.depth());
+        assertEquals("android.widget.Button", anchor.getPathClass(1));
+        assertEquals(3, anchor.getPathIndex(1));
+        assertEquals(0.25f, anchor.fractionX, 0f);
+        assertEquals("Claim ✓", read.markerAnchors[2].text);
+
+        assertEquals(25000000, read.intervalMicros);
+        assertEquals(50, read.strokeDurationMs);
+        assertEquals(3, read.frequencyStep);
+        assertEquals(100, read.playbackSpeedStep);
+        assertTrue(read.running);
+        assertFalse(read.burstMode);
+        assertTrue(read.triggerMode);
+        assertFalse(read.batching);
+        assertEquals(4, read.selectedPatternId);
+        assertEquals(2, read.playingPatternIds.length);
+        assertEquals(9, read.playingPatternIds[1]);
+        assertEquals(2.5f, read.playingSpeeds[1], 0f);
+        assertTrue(read.playingOnEvents[1]);
+    }
+
+    @Test
+    public void emptySessionRoundTripsThroughAFile() throws IOException {
+        File file = File.createTempFile("session", ".fts");
+        try {
+            SessionSnapshot.write(new SessionSnapshot(), file);
+            SessionSnapshot read = SessionSnapshot.read(file);
+            assertEquals(0, read.markerXs.length);
+            assertEquals(-1, read.selectedPatternId);
+            assertEquals(0, read.playingPatternIds.length);
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherVersionsAreRejected() throws IOException {
+        byte[] encoded = SessionSnapshot.encode(sampleSnapshot());
+        encoded[4] = 1;
+        SessionSnapshot.decode(ByteBuffer.wrap(encoded));
+    }
+
+    @Test
+    public void truncatedSnapshotIsRejected() {
+        byte[] encoded = SessionSnapshot.encode(sampleSnapshot());
+        for (int length : new int[] {3, 10, encoded.length / 2, encoded.length - 1}) {
+            try {
+                SessionSnapshot.decode(ByteBuffer.wrap(encoded, 0, length));
+                fail("Decoded " + length + " of " + encoded.length + " bytes");
+            } catch (IOException expected) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SpatialGridTest {
+
+    @Test
+    public void nearestFindsClosestWithinRange() {
+        SpatialGrid<String> grid = new SpatialGrid<>(64);
+        int a = grid.add("a", 100, 100);
+        int b = grid.add("b", 130, 100);
+        grid.add("c", 1000, 1000);
+
+        assertEquals(a, grid.nearest(110, 100, 40));
+        assertEquals(b, grid.nearest(125, 104, 40));
+        assertEquals(-1, grid.nearest(500, 500, 40));
+        assertEquals("b", grid.get(b));
+    }
+
+    @Test
+    public void moveAndRemoveKeepTheIndexInSync() {
+        SpatialGrid<String> grid = new SpatialGrid<>(64);
+        int a = grid.add("a", 10, 10);
+        int b = grid.add("b", 20, 20);
+
+        grid.move(a, 900, -300);
+        assertEquals(b, grid.nearest(10, 10, 30));
+        assertEquals(a, grid.nearest(905, -305, 30));
+
+        grid.remove(b);
+        assertEquals(-1, grid.nearest(20, 20, 30));
+        assertEquals(1, grid.size());
+
+        // Freed handles are reused
+        assertEquals(b, grid.add("c", 0, 0));
+    }
+
+    @Test
+    public void matchesBruteForceUnderRandomEdits() {
+        Random random = new Random(7);
+        SpatialGrid<Integer> grid = new SpatialGrid<>(48);
+        List<Integer> live = new ArrayList<>();
+        int[] out = new int[2000];
+
+        for (int step = 0; step < 20000; step++) {
+            int op = random.nextInt(10);
+            if (op < 4 || live.isEmpty()) {
+                live.add(grid.add(step, random.nextInt(2400) - 200, random.nextInt(2400) - 200));
+            } else if (op < 8) {
+                int h = live.get(random.nextInt(live.size()));
+                grid.move(h, grid.getX(h) + random.nextInt(81) - 40, grid.getY(h) + random.nextInt(81) - 40);
+            } else {
+                grid.remove(live.remove(random.nextInt(live.size())));
+            }
+
+            if (step % 100 == 0) {
+                int x = random.nextInt(2400) - 200;
+                int y = random.nextInt(2400) - 200;
+                long best = Long.MAX_VALUE;
+                for (int h : live) {
+                    long dx = grid.getX(h) - x;
+                    long dy = grid.getY(h) - y;
+                    best = Math.min(best, dx * dx + dy * dy);
+                }
+                int found = grid.nearest(x, y, 150);
+                if (best > 150 * 150) {
+                    assertEquals(-1, found);
+                } else {
+                    long dx = grid.getX(found) - x;
+                    long dy = grid.getY(found) - y;
+                    assertEquals(best, dx * dx + dy * dy);
+                }
+
+                int left = x - 300;
+                int top = y - 200;
+                int count = grid.query(left, top, x + 300, y + 200, out);
+                int[] expected = new int[live.size()];
+                int n = 0;
+                for (int h : live) {
+                    if (grid.getX(h) >= left && grid.getX(h) <= x + 300 && grid.getY(h) >= top && grid.getY(h) <= y + 200) {
+                        expected[n++] = h;
+                    }
+                }
+                int[] actual = Arrays.copyOf(out, count);
+                Arrays.sort(actual);
+                expected = Arrays.copyOf(expected, n);
+                Arrays.sort(expected);
+                assertArrayEquals(expected, actual);
+            }
+        }
+        assertEquals(live.size(), grid.size());
+    }
+}
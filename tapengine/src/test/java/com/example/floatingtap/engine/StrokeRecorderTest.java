@@ -0,0 +1,85 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StrokeRecorderTest {
+
+    @Test
+    public void steadySwipeReducesToItsEnds() {
+        StrokeRecorder recorder = new StrokeRecorder(3f);
+        TapPattern pattern = new TapPattern("swipe");
+        recorder.begin(100, 1000, 5000);
+        // 300 samples, one per ms, moving 2 px/ms to the right
+        for (int t = 1; t < 300; t++) {
+            recorder.sample(100 + 2 * t, 1000, 5000 + t);
+        }
+        recorder.end(700, 1000, 5300, pattern, 40);
+
+        assertFalse(recorder.isActive());
+        assertEquals(1, pattern.size());
+        assertEquals(2, pattern.getPointCount(0));
+        assertEquals(40, pattern.getTimestamp(0));
+        assertEquals(300, pattern.getHold(0));
+        assertEquals(100, pattern.getPointX(0, 0));
+        assertEquals(700, pattern.getPointX(0, 1));
+        assertEquals(300, pattern.getPointTime(0, 1));
+    }
+
+    @Test
+    public void keepsCornersAndPauses() {
+        StrokeRecorder recorder = new StrokeRecorder(3f);
+        TapPattern pattern = new TapPattern("corner");
+        recorder.begin(0, 0, 0);
+        for (int t = 1; t <= 100; t++) {
+            recorder.sample(4 * t, 0, t); // Right
+        }
+        for (int t = 1; t <= 100; t++) {
+            recorder.sample(400, 0, 100 + t); // Pause at the corner
+        }
+        for (int t = 1; t < 100; t++) {
+            recorder.sample(400, 4 * t, 200 + t); // Down
+        }
+        recorder.end(400, 400, 300, pattern, 0);
+
+        // Start, arrival at the corner, departure from it, end
+        assertEquals(4, pattern.getPointCount(0));
+        assertEquals(400, pattern.getPointX(0, 1));
+        assertEquals(100, pattern.getPointTime(0, 1));
+        assertEquals(400, pattern.getPointX(0, 2));
+        assertEquals(200, pattern.getPointTime(0, 2));
+        assertEquals(400, pattern.getPointY(0, 3));
+    }
+
+    @Test
+    public void stationaryPressBecomesOnePointWithItsHold() {
+        StrokeRecorder recorder = new StrokeRecorder(3f);
+        TapPattern pattern = new TapPattern("press");
+        recorder.begin(540, 1200, 0);
+        for (int t = 1; t < 50; t++) {
+            recorder.sample(540 + t % 2, 1200, t * 16); // Finger jitter within tolerance
+        }
+        recorder.end(541, 1200, 800, pattern, 10);
+
+        assertEquals(1, pattern.getPointCount(0));
+        assertEquals(800, pattern.getHold(0));
+        assertEquals(10 + 800, pattern.duration);
+    }
+
+    @Test
+    public void finishClosesAStrokeStillInProgress() {
+        StrokeRecorder recorder = new StrokeRecorder(3f);
+        TapPattern pattern = new TapPattern("cut");
+        recorder.begin(0, 0, 100);
+        recorder.sample(300, 0, 200);
+        recorder.finish(pattern, 0);
+
+        assertEquals(1, pattern.size());
+        assertEquals(2, pattern.getPointCount(0));
+        assertEquals(100, pattern.getHold(0));
+
+        recorder.finish(pattern, 0); // Nothing active: no-op
+        assertEquals(1, pattern.size());
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StrokeSegmentsTest {
+
+    private static TapPattern stroke(long hold, int[] xs, long[] times) {
+        TapPattern pattern = new TapPattern("stroke");
+        pattern.addStroke(0, hold, xs, new int[xs.length], times, xs.length);
+        return pattern;
+    }
+
+    @Test
+    public void breaksAtRecordedPoints() {
+        StrokeSegments plan = StrokeSegments.plan(
+                stroke(900, new int[] {0, 100, 400}, new long[] {0, 300, 900}), 0, 1f, 50, 1000);
+        assertEquals(2, plan.segmentCount());
+        assertEquals(1, plan.segmentEnd(0));
+        assertEquals(1, plan.segmentStart(1));
+        assertEquals(300, plan.segmentTime(1));
+        assertEquals(600, plan.segmentDuration(1));
+        assertEquals(900, plan.duration());
+    }
+
+    @Test
+    public void speedScalesTimesButNotPositions() {
+        StrokeSegments plan = StrokeSegments.plan(
+                stroke(900, new int[] {0, 100, 400}, new long[] {0, 300, 900}), 0, 3f, 50, 1000);
+        assertEquals(2, plan.segmentCount());
+        assertEquals(100, plan.segmentTime(1));
+        assertEquals(100, plan.getX(plan.segmentEnd(0)));
+        assertEquals(300, plan.duration());
+    }
+
+    @Test
+    public void mergesPointsCloserThanTheMinimumSegment() {
+        TapPattern pattern = stroke(100, new int[] {0, 10, 20, 30, 40, 50}, new long[] {0, 20, 40, 60, 80, 100});
+        StrokeSegments plan = StrokeSegments.plan(pattern, 0, 1f, 50, 1000);
+        // 0..60 reaches the minimum; the 40 ms left over folds into it
+        assertEquals(1, plan.segmentCount());
+        assertEquals(5, plan.segmentEnd(0));
+        assertEquals(100, plan.segmentDuration(0));
+    }
+
+    @Test
+    public void cutsLongStretchesAtInterpolatedPoints() {
+        StrokeSegments plan = StrokeSegments.plan(
+                stroke(2500, new int[] {0, 2500}, new long[] {0, 2500}), 0, 1f, 50, 1000);
+        assertEquals(3, plan.segmentCount());
+        int cut = plan.segmentEnd(0);
+        assertEquals(1000, plan.getTime(cut));
+        assertEquals(1000, plan.getX(cut));
+        assertEquals(2000, plan.getX(plan.segmentEnd(1)));
+        assertEquals(500, plan.segmentDuration(2));
+    }
+
+    @Test
+    public void longPressIsHeldInPlaceAcrossSegments() {
+        StrokeSegments plan = StrokeSegments.plan(
+                stroke(150_000, new int[] {540}, new long[] {0}), 0, 1f, 50, 1000);
+        assertEquals(150, plan.segmentCount());
+        assertEquals(150_000, plan.duration());
+        for (int s = 0; s < plan.segmentCount(); s++) {
+            assertEquals(1000, plan.segmentDuration(s));
+            assertEquals(540, plan.getX(plan.segmentEnd(s)));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TapCostTest {
+
+    @Test
+    public void costIsMeasuredFromTheReset() {
+        TapCost cost = new TapCost();
+        cost.reset(1000, 5000000, 700);
+        cost.onWakeup();
+        cost.onDispatched(1, 5040000, 703);
+        cost.onWakeup();
+        cost.onWakeup();
+        cost.onDispatched(3, 5100000, 709);
+
+        assertEquals(4, cost.getTaps());
+        assertEquals(25f, cost.cpuMicrosPerTap(), 0.001f);
+        assertEquals(2.25f, cost.allocationsPerTap(), 0.001f);
+        assertEquals(0.75f, cost.wakeupsPerTap(), 0.001f);
+        assertEquals(6f, cost.wakeupsPerMinute(31000), 0.001f);
+    }
+
+    @Test
+    public void allocationsCountOnlyWhileCounting() {
+        TapCost cost = new TapCost();
+        cost.reset(0, 0, TapCost.NOT_COUNTED);
+        cost.onDispatched(2, 1000, TapCost.NOT_COUNTED);
+        assertTrue(Float.isNaN(cost.allocationsPerTap()));
+
+        // Switched on mid-run: the first reading is only a baseline
+        cost.onDispatched(2, 2000, 50);
+        assertEquals(0f, cost.allocationsPerTap(), 0f);
+        cost.onDispatched(4, 3000, 58);
+        assertEquals(2f, cost.allocationsPerTap(), 0.001f);
+
+        cost.onDispatched(1, 4000, TapCost.NOT_COUNTED);
+        assertTrue(Float.isNaN(cost.allocationsPerTap()));
+        assertEquals(0.444f, cost.cpuMicrosPerTap(), 0.001f);
+    }
+
+    @Test
+    public void theEngineMeasuresEachRunFromItsStart() {
+        SimulatedTapHost host = new SimulatedTapHost(0, 10);
+        final long[] cpu = {0};
+        TapEngine<SimulatedTapHost.Gesture> engine = new TapEngine<>(host, host, new TapCost.ThreadCounters() {
+            @Override
+            public long cpuNanos() {
+                // 20 us between one reading and the next
+                return cpu[0] += 20000;
+            }
+
+            @Override
+            public long allocations() {
+                return 0;
+            }
+        });
+        host.attach(engine);
+
+        TapEngine<SimulatedTapHost.Gesture>.Loop loop = engine.start(everyTenthSecond());
+        host.runUntil(950);
+        assertEquals(10, engine.getCost().getTaps());
+        assertEquals(20f, engine.getCost().cpuMicrosPerTap(), 0.001f);
+        assertEquals(0f, engine.getCost().allocationsPerTap(), 0f);
+
+        // Nothing else running, so the next start is a new run
+        loop.stop();
+        host.runUntil(2000);
+        engine.start(everyTenthSecond());
+        host.runUntil(2050);
+        assertEquals(1, engine.getCost().getTaps());
+        assertEquals(20f, engine.getCost().cpuMicrosPerTap(), 0.001f);
+    }
+
+    private static TapSchedule<SimulatedTapHost.Gesture> everyTenthSecond() {
+        return new TapSchedule<>(new int[1], new int[1], new long[] {0}, 100, 50, 20, 1000,
+                SimulatedTapHost.gestureFactory(50));
+    }
+
+    @Test
+    public void idleCostIsZero() {
+        TapCost cost = new TapCost();
+        cost.reset(500, 0, 0);
+        assertEquals(0f, cost.cpuMicrosPerTap(), 0f);
+        assertEquals(0f, cost.allocationsPerTap(), 0f);
+        assertEquals(0f, cost.wakeupsPerTap(), 0f);
+        assertEquals(0f, cost.wakeupsPerMinute(500), 0f);
+    }
+}
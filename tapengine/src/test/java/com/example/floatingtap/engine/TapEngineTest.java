@@ -0,0 +1,306 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import static org.junit.Assert.*;
+
+public class TapEngineTest {
+
+    private static final long TAP_DURATION = 50;
+
+    private SimulatedTapHost host;
+    private TapEngine<SimulatedTapHost.Gesture> engine;
+
+    @Before
+    public void setUp() {
+        host = new SimulatedTapHost(10_000, 10);
+        engine = new TapEngine<>(host, host);
+        host.attach(engine);
+    }
+
+    private TapSchedule<SimulatedTapHost.Gesture> everyMs(long interval, int taps) {
+        int[] coords = new int[taps];
+        long[] offsets = new long[taps];
+        for (int i = 0; i < taps; i++) {
+            offsets[i] = i * interval;
+        }
+        return new TapSchedule<>(coords, coords, offsets, taps * interval, TAP_DURATION, 20, 1000,
+                SimulatedTapHost.gestureFactory(TAP_DURATION));
+    }
+
+    @Test
+    public void slowLoopDispatchesEveryTapOnTime() {
+        engine.start(everyMs(1000, 3));
+        host.runUntil(10_000 + 60_000 - 1);
+
+        TapTelemetry telemetry = engine.getTelemetry();
+        assertEquals(60, telemetry.getTapsDispatched());
+        assertEquals(60, telemetry.getTapsCompleted());
+        assertEquals(0, telemetry.dispatchLag.max());
+        assertEquals(TAP_DURATION + 10, telemetry.completionTime.max());
+    }
+
+    @Test
+    public void fastLoopWaitsForTheInFlightGesture() {
+        // 100 taps/s, but each gesture holds the single slot for 60 ms
+        engine.start(everyMs(10, 10));
+        host.runUntil(10_000 + 10_000);
+
+        TapTelemetry telemetry = engine.getTelemetry();
+        long dispatched = telemetry.getGesturesDispatched();
+        assertTrue(dispatched <= 10_000 / 60 + 1);
+        assertTrue(dispatched >= 10_000 / 60 - 1);
+        assertEquals(0, telemetry.getGesturesCancelled());
+    }
+
+    @Test
+    public void batchingRecoversThroughputWhenGesturesAreSlowerThanTheInterval() {
+        engine.setBatchingEnabled(true);
+        engine.start(everyMs(10, 10));
+        host.runUntil(10_000 + 10_000);
+
+        // One 140 ms gesture per 100 ms cycle, so a batch is always waiting on the previous one
+        // but each still carries all ten taps
+        TapTelemetry telemetry = engine.getTelemetry();
+        assertEquals(10 * telemetry.getGesturesDispatched(), telemetry.getTapsDispatched());
+        assertTrue(telemetry.getTapsCompleted() > 10 * (10_000 / 160));
+    }
+
+    @Test
+    public void stopDropsPendingWork() {
+        TapEngine<SimulatedTapHost.Gesture>.Loop loop = engine.start(everyMs(100, 5));
+        host.runUntil(10_000 + 1_000);
+        long dispatched = engine.getTelemetry().getGesturesDispatched();
+
+        loop.deactivate();
+        loop.stop();
+        host.runUntil(10_000 + 5_000);
+
+        assertEquals(dispatched, engine.getTelemetry().getGesturesDispatched());
+        assertEquals(0, host.pendingTasks());
+    }
+
+    @Test
+    public void concurrentLoopsKeepTheirOwnPeriods() {
+        // A collector tap every 200 ms alongside a dismiss tap every 3 s, offset so they never coincide
+        TapEngine<SimulatedTapHost.Gesture>.Loop fast = engine.start(everyMs(200, 1));
+        host.runUntil(10_000 + 100);
+        engine.start(everyMs(3000, 1));
+        host.runUntil(10_000 + 60_000 - 1);
+
+        TapTelemetry telemetry = engine.getTelemetry();
+        assertEquals(300 + 20, telemetry.getTapsDispatched());
+        assertEquals(0, telemetry.dispatchLag.max());
+        assertEquals(2, engine.getRunningLoops());
+        assertEquals(0, fast.getLastTapIndex());
+    }
+
+    @Test
+    public void stoppingOneLoopLeavesTheOthersPlaying() {
+        TapEngine<SimulatedTapHost.Gesture>.Loop fast = engine.start(everyMs(200, 1));
+        host.runUntil(10_000 + 100);
+        TapEngine<SimulatedTapHost.Gesture>.Loop slow = engine.start(everyMs(1000, 1));
+        host.runUntil(10_000 + 10_000 - 1);
+        assertEquals(50 + 10, engine.getTelemetry().getTapsDispatched());
+
+        fast.deactivate();
+        fast.stop();
+        host.runUntil(10_000 + 20_000 - 1);
+        assertEquals(50 + 20, engine.getTelemetry().getTapsDispatched());
+
+        slow.deactivate();
+        slow.stop();
+        host.runUntil(10_000 + 30_000);
+        assertEquals(0, host.pendingTasks());
+    }
+
+    @Test
+    public void coincidingLoopsTakeTurnsForTheSlot() {
+        // Both due every 200 ms at the same instants; one has to wait out the other's gesture
+        engine.start(everyMs(200, 1));
+        engine.start(everyMs(200, 1));
+        host.runUntil(10_000 + 10_000 - 1);
+
+        TapTelemetry telemetry = engine.getTelemetry();
+        assertEquals(100, telemetry.getTapsDispatched());
+        assertEquals(TAP_DURATION + 10, telemetry.dispatchLag.max());
+    }
+
+    @Test
+    public void loopLimitedToOneCycleStopsByItself() {
+        TapSchedule<SimulatedTapHost.Gesture> schedule = everyMs(100, 3);
+        TapEngine<SimulatedTapHost.Gesture>.Loop once = engine.start(schedule, false, -1, 1);
+        host.runUntil(10_000 + 5_000);
+
+        assertEquals(3, engine.getTelemetry().getTapsDispatched());
+        assertTrue(once.isStopped());
+        assertEquals(0, engine.getRunningLoops());
+        assertEquals(0, host.pendingTasks());
+
+        // The same schedule plays another pass when started again
+        engine.start(schedule, false, -1, 1);
+        host.runUntil(10_000 + 10_000);
+        assertEquals(3, engine.getTelemetry().getTapsDispatched());
+    }
+
+    /** A 3 s drag, slow then fast, then resting: streamed as four segments. */
+    private static TapSchedule<SimulatedTapHost.Gesture> streamedDrag() {
+        TapPattern pattern = new TapPattern("drag");
+        pattern.addStroke(0, 3000, new int[] {0, 100, 200, 900}, new int[] {0, 0, 0, 0},
+                new long[] {0, 1000, 2000, 2500}, 4);
+        StrokeSegments plan = StrokeSegments.plan(pattern, 0, 1f, 50, 1000);
+        return new TapSchedule<>(new int[] {0}, new int[] {0}, new long[] {0}, new long[] {3000},
+                new StrokeSegments[] {plan}, 5000, 20, 1000,
+                SimulatedTapHost.gestureFactory(TAP_DURATION), SimulatedTapHost.segmentFactory());
+    }
+
+    @Test
+    public void streamedStrokeKeepsItsRecordedTimingDespiteCallbackLatency() {
+        engine.start(streamedDrag());
+        host.runUntil(10_000 + 3_000 + 5);
+
+        // Each continuation goes out 10 ms late and is shortened to make it up, so the
+        // finger still lifts when the recording did
+        TapTelemetry telemetry = engine.getTelemetry();
+        assertEquals(4, telemetry.getGesturesDispatched());
+        assertEquals(1, telemetry.getTapsDispatched());
+        assertEquals(10, telemetry.dispatchLag.max());
+        assertEquals(0, telemetry.getTapsCompleted());
+        host.runUntil(10_000 + 3_000 + 10);
+        assertEquals(1, telemetry.getTapsCompleted());
+    }
+
+    @Test
+    public void streamedDragCountsAsOneTap() {
+        TapEngine<SimulatedTapHost.Gesture>.Loop loop = engine.start(streamedDrag());
+        host.runUntil(10_000 + 5_000 - 1);
+
+        TapTelemetry telemetry = engine.getTelemetry();
+        assertEquals(4, telemetry.getGesturesCompleted());
+        assertEquals(1, telemetry.getTapsCompleted());
+
+        // Stopped partway through the next drag: neither the segment in flight nor the release is a tap
+        host.runUntil(10_000 + 6_500);
+        loop.deactivate();
+        loop.stop();
+        host.runUntil(10_000 + 10_000);
+        assertEquals(7, telemetry.getGesturesCompleted());
+        assertEquals(1, telemetry.getTapsCompleted());
+        assertEquals(0, telemetry.getTapsCancelled());
+    }
+
+    @Test
+    public void stoppingMidStrokeLiftsTheFinger() {
+        TapEngine<SimulatedTapHost.Gesture>.Loop loop = engine.start(streamedDrag());
+        host.runUntil(10_000 + 1_500);
+        assertEquals(2, engine.getTelemetry().getGesturesDispatched());
+
+        loop.deactivate();
+        loop.stop();
+        assertEquals(3, engine.getTelemetry().getGesturesDispatched());
+        host.runUntil(10_000 + 10_000);
+        assertEquals(3, engine.getTelemetry().getGesturesDispatched());
+        assertEquals(0, host.pendingTasks());
+    }
+
+    @Test
+    public void replacingALoopKeepsItsPlaceAndItsWait() {
+        TapEngine<SimulatedTapHost.Gesture>.Loop loop = engine.start(everyMs(1000, 4));
+        host.runUntil(10_000 + 1_500);
+        assertEquals(2, engine.getTelemetry().getGesturesDispatched());
+
+        // Half a second into the wait for tap 2; the replacement mustn't tap now
+        TapEngine<SimulatedTapHost.Gesture>.Loop replacement = engine.replace(loop, everyMs(1000, 4), false);
+        assertTrue(loop.isStopped());
+        host.runUntil(10_000 + 2_000 - 1);
+        assertEquals(2, engine.getTelemetry().getGesturesDispatched());
+        host.runUntil(10_000 + 2_000);
+        assertEquals(3, engine.getTelemetry().getGesturesDispatched());
+        assertEquals(2, replacement.getLastTapIndex());
+        assertEquals(0, engine.getTelemetry().dispatchLag.max());
+        assertEquals(1, engine.getRunningLoops());
+    }
+
+    @Test
+    public void anotherLoopsTapBetweenSegmentsPutsTheFingerDownAgain() {
+        // Gestures as dispatched, and which segments were built to continue the one before
+        final ArrayList<SimulatedTapHost.Gesture> dispatched = new ArrayList<>();
+        final IdentityHashMap<SimulatedTapHost.Gesture, Boolean> continuations = new IdentityHashMap<>();
+        engine = new TapEngine<>(host, new TapDispatcher<SimulatedTapHost.Gesture>() {
+            @Override
+            public void dispatch(SimulatedTapHost.Gesture gesture) {
+                dispatched.add(gesture);
+                host.dispatch(gesture);
+            }
+
+            @Override
+            public void postAtTime(Runnable task, long timeMillis) {
+                host.postAtTime(task, timeMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+                host.removeCallbacks(task);
+            }
+        });
+        host.attach(engine);
+        final TapSchedule.SegmentFactory<SimulatedTapHost.Gesture> segments = SimulatedTapHost.segmentFactory();
+        TapPattern pattern = new TapPattern("drag");
+        pattern.addStroke(0, 3000, new int[] {0, 100, 200, 900}, new int[] {0, 0, 0, 0},
+                new long[] {0, 1000, 2000, 2500}, 4);
+        TapSchedule<SimulatedTapHost.Gesture> drag = new TapSchedule<>(new int[] {0}, new int[] {0},
+                new long[] {0}, new long[] {3000},
+                new StrokeSegments[] {StrokeSegments.plan(pattern, 0, 1f, 50, 1000)}, 5000, 20, 1000,
+                SimulatedTapHost.gestureFactory(TAP_DURATION), new TapSchedule.SegmentFactory<SimulatedTapHost.Gesture>() {
+                    @Override
+                    public SimulatedTapHost.Gesture createSegment(StrokeSegments stroke, int segment, long duration,
+                                                                  boolean continued) {
+                        SimulatedTapHost.Gesture gesture = segments.createSegment(stroke, segment, duration, continued);
+                        continuations.put(gesture, continued);
+                        return gesture;
+                    }
+
+                    @Override
+                    public SimulatedTapHost.Gesture createRelease(StrokeSegments stroke, int segment) {
+                        return segments.createRelease(stroke, segment);
+                    }
+                });
+
+        engine.start(drag);
+        host.runUntil(10_000 + 300);
+        // A marker tap due while the first segment holds the finger down
+        engine.start(everyMs(5000, 1));
+        host.runUntil(10_000 + 3_100);
+
+        int taps = 0;
+        for (int i = 0; i < dispatched.size(); i++) {
+            SimulatedTapHost.Gesture gesture = dispatched.get(i);
+            if (!continuations.containsKey(gesture)) {
+                taps++;
+                continue;
+            }
+            if (continuations.get(gesture)) {
+                // Only a segment straight after another of the same stroke may continue it
+                assertTrue(i > 0 && continuations.containsKey(dispatched.get(i - 1)));
+            }
+        }
+        assertEquals(1, taps);
+        assertEquals(5, dispatched.size());
+    }
+
+    @Test
+    public void startingWhileIdleResetsCounters() {
+        TapEngine<SimulatedTapHost.Gesture>.Loop loop = engine.start(everyMs(100, 5));
+        host.runUntil(10_000 + 1_000);
+        loop.stop();
+        host.runUntil(10_000 + 2_000);
+        assertTrue(engine.getTelemetry().getGesturesDispatched() > 0);
+
+        engine.start(everyMs(100, 5));
+        assertEquals(0, engine.getTelemetry().getGesturesDispatched());
+    }
+}
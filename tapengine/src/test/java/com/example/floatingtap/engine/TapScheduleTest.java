@@ -0,0 +1,254 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class TapScheduleTest {
+
+    /** Stands in for a GestureDescription: records which taps it covers. */
+    private static final class FakeGesture {
+        final int from;
+        final int to;
+
+        FakeGesture(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final TapSchedule.GestureFactory<FakeGesture> FACTORY =
+            new TapSchedule.GestureFactory<FakeGesture>() {
+                @Override
+                public FakeGesture create(int[] xs, int[] ys, long[] offsets, int from, int to) {
+                    return new FakeGesture(from, to);
+                }
+            };
+
+    private static TapSchedule<FakeGesture> schedule(long[] offsets, long period, int maxStrokes, long window) {
+        int[] coords = new int[offsets.length];
+        return new TapSchedule<>(coords, coords, offsets, period, 50, maxStrokes, window, FACTORY);
+    }
+
+    @Test
+    public void deadlinesStayOnAbsoluteGridAcrossCycles() {
+        TapSchedule<FakeGesture> schedule = schedule(new long[] {0, 120, 370}, 1000, 20, 1000);
+        schedule.start(5000);
+
+        for (int cycle = 0; cycle < 10000; cycle++) {
+            long cycleStart = 5000 + cycle * 1000L;
+            assertEquals(cycleStart, schedule.nextDeadline());
+            schedule.takeNext(false);
+            assertEquals(cycleStart + 120, schedule.nextDeadline());
+            schedule.takeNext(false);
+            assertEquals(cycleStart + 370, schedule.nextDeadline());
+            schedule.takeNext(false);
+        }
+    }
+
+    @Test
+    public void batchesRespectStrokeAndWindowLimits() {
+        long[] offsets = new long[10];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = i * 100L;
+        }
+        // Window fits taps 0..3 (300 + 50 <= 400); stroke cap is looser
+        TapSchedule<FakeGesture> schedule = schedule(offsets, 1000, 8, 400);
+        assertEquals(3, schedule.batchCount());
+
+        schedule.start(0);
+        FakeGesture first = schedule.takeNext(true);
+        assertEquals(0, first.from);
+        assertEquals(4, first.to);
+        assertEquals(350, schedule.lastDuration());
+        assertEquals(400, schedule.nextDeadline());
+
+        // Stroke cap binds before the window does
+        TapSchedule<FakeGesture> capped = schedule(offsets, 1000, 2, 10000);
+        assertEquals(5, capped.batchCount());
+    }
+
+    @Test
+    public void strokeDurationsShapeBatches() {
+        int[] coords = new int[4];
+        long[] offsets = {0, 100, 200, 700};
+        long[] durations = {600, 50, 50, 400};
+        TapSchedule<FakeGesture> schedule = new TapSchedule<>(coords, coords, offsets, durations, 2000,
+                20, 1000, FACTORY);
+        // The last stroke would end at 1100, past the window
+        assertEquals(2, schedule.batchCount());
+
+        schedule.start(0);
+        schedule.takeNext(true);
+        // The long first stroke outlasts the taps that follow it
+        assertEquals(600, schedule.lastDuration());
+        schedule.takeNext(false);
+        assertEquals(400, schedule.lastDuration());
+    }
+
+    @Test
+    public void streamedStrokeYieldsOneSegmentPerDeadline() {
+        TapPattern pattern = new TapPattern("swipe");
+        pattern.addTap(0, 0, 0);
+        pattern.addStroke(100, 400, new int[] {0, 50, 300}, new int[] {0, 0, 0}, new long[] {0, 100, 400}, 3);
+        pattern.addTap(0, 0, 600);
+        StrokeSegments[] streamed = {null, StrokeSegments.plan(pattern, 1, 1f, 50, 1000), null};
+
+        final boolean[] continued = new boolean[4];
+        final int[] built = new int[1];
+        TapSchedule.SegmentFactory<FakeGesture> segments = new TapSchedule.SegmentFactory<FakeGesture>() {
+            @Override
+            public FakeGesture createSegment(StrokeSegments stroke, int segment, long duration, boolean cont) {
+                continued[built[0]++] = cont;
+                return new FakeGesture(segment, segment + 1);
+            }
+
+            @Override
+            public FakeGesture createRelease(StrokeSegments stroke, int segment) {
+                return new FakeGesture(-1, segment);
+            }
+        };
+        int[] coords = new int[3];
+        TapSchedule<FakeGesture> schedule = new TapSchedule<>(coords, coords, new long[] {0, 100, 600},
+                new long[] {50, 400, 50}, streamed, 1000, 20, 1000, FACTORY, segments);
+        // The streamed stroke splits the timeline; the taps either side can't batch across it
+        assertEquals(2, schedule.batchCount());
+
+        schedule.start(0);
+        schedule.takeNext(true);
+        assertEquals(100, schedule.nextDeadline());
+        schedule.takeNext(true);
+        assertEquals(100, schedule.lastDuration());
+        assertEquals(0, schedule.lastTapCount());
+        assertEquals(200, schedule.nextDeadline());
+        // Stopping here would leave the finger down after segment 0
+        FakeGesture release = schedule.takeRelease();
+        assertEquals(-1, release.from);
+        assertEquals(0, release.to);
+        assertNull(schedule.takeRelease());
+
+        schedule = new TapSchedule<>(coords, coords, new long[] {0, 100, 600},
+                new long[] {50, 400, 50}, streamed, 1000, 20, 1000, FACTORY, segments);
+        built[0] = 0;
+        schedule.start(0);
+        schedule.takeNext(true);
+        schedule.takeNext(true);
+        schedule.onGestureInterrupted();
+        // Dispatched 40 ms late: the 300 ms segment is shortened to land on time
+        schedule.takeNext(true, 240);
+        assertEquals(260, schedule.lastDuration());
+        assertEquals(1, schedule.lastTapCount());
+        assertEquals(1, schedule.lastIndex());
+        assertEquals(600, schedule.nextDeadline());
+        assertFalse(continued[0]);
+        assertFalse(continued[1]); // The first segment was cut short, so the finger goes down again
+        assertNull(schedule.takeRelease());
+    }
+
+    @Test
+    public void batchingSwitchedOnMidBatchWaitsForBoundary() {
+        TapSchedule<FakeGesture> schedule = schedule(new long[] {0, 10, 20, 30}, 100, 2, 1000);
+        schedule.start(0);
+
+        schedule.takeNext(false);
+        FakeGesture single = schedule.takeNext(true);
+        assertEquals(1, single.from);
+        assertEquals(2, single.to);
+        FakeGesture batch = schedule.takeNext(true);
+        assertEquals(2, batch.from);
+        assertEquals(4, batch.to);
+        assertEquals(100, schedule.nextDeadline());
+    }
+
+    @Test
+    public void startingMidTimelineKeepsTheRestOfTheCycle() {
+        TapSchedule<FakeGesture> schedule = schedule(new long[] {0, 120, 370}, 1000, 20, 1000);
+        schedule.start(5000, 1);
+        assertEquals(5000, schedule.nextDeadline());
+        assertEquals(1, schedule.takeNext(false).from);
+        assertEquals(5250, schedule.nextDeadline());
+        schedule.takeNext(false);
+        // The cycle wraps as if it had started at entry 0
+        assertEquals(5880, schedule.nextDeadline());
+    }
+
+    @Test
+    public void resyncsWhenMoreThanACycleBehind() {
+        TapSchedule<FakeGesture> schedule = schedule(new long[] {0, 200}, 500, 20, 1000);
+        schedule.start(0);
+        schedule.takeNext(false);
+
+        schedule.resyncIfBehind(600);
+        assertEquals(200, schedule.nextDeadline());
+
+        schedule.resyncIfBehind(10000);
+        assertEquals(10000, schedule.nextDeadline());
+        schedule.takeNext(false);
+        assertEquals(10300, schedule.nextDeadline());
+    }
+
+    @Test
+    public void steadyStateLoopAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threads.isThreadAllocatedMemorySupported());
+
+        long[] offsets = new long[64];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = i * 30L;
+        }
+        TapSchedule<FakeGesture> schedule = schedule(offsets, 2000, 10, 1000);
+        schedule.start(0);
+
+        // Warm up so JIT compilation and class loading are out of the measurement
+        long sink = runLoop(schedule, 2000000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        sink += runLoop(schedule, 1000000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(sink != 0);
+        assertEquals("bytes allocated by 1M steady-state taps", 0, allocated);
+    }
+
+    private static long runLoop(TapSchedule<FakeGesture> schedule, int iterations) {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            FakeGesture gesture = schedule.takeNext((i & 1) == 0);
+            schedule.resyncIfBehind(schedule.nextDeadline());
+            sink += gesture.to + schedule.lastDuration();
+        }
+        return sink;
+    }
+
+    @Test
+    public void fractionalIntervalDoesNotDriftOverManyCycles() {
+        // 30 taps/s is 33.333 ms per tap; rounding the period to 33 ms would gain 10 ms a second
+        TapSchedule<FakeGesture> schedule = TapSchedule.atInterval(new int[] {1}, new int[] {2}, 33333,
+                10, 20, 1000, FACTORY);
+        schedule.start(0);
+
+        for (int tap = 0; tap < 30 * 3600; tap++) {
+            long exact = tap * 33333L / 1000;
+            assertTrue(Math.abs(schedule.nextDeadline() - exact) <= 1);
+            schedule.takeNext(false);
+        }
+    }
+
+    @Test
+    public void shortMarkerListIsRepeatedToFillABatch() {
+        TapSchedule<FakeGesture> schedule = TapSchedule.atInterval(new int[] {1, 2, 3}, new int[] {4, 5, 6}, 20000,
+                10, 8, 1000, FACTORY);
+
+        assertEquals(9, schedule.offsets.length);
+        assertEquals(3, schedule.xs[8]);
+        assertEquals(180, schedule.period);
+        schedule.start(0);
+        FakeGesture batch = schedule.takeNext(true);
+        assertEquals(0, batch.from);
+        assertEquals(8, batch.to);
+    }
+}
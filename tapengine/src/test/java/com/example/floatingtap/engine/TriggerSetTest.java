@@ -0,0 +1,112 @@
+package com.example.floatingtap.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TriggerSetTest {
+
+    // Same values as AccessibilityEvent's, which this module can't see
+    private static final int WINDOW_STATE_CHANGED = 0x20;
+    private static final int WINDOW_CONTENT_CHANGED = 0x800;
+    private static final int VIEW_CLICKED = 0x1;
+
+    private static EventTrigger trigger(int id, int types, String packageName) {
+        return new EventTrigger(id, types, packageName, null, null, 300, 2000);
+    }
+
+    @Test
+    public void burstOfEventsFiresOnceAfterItSettles() {
+        TriggerSet set = TriggerSet.EMPTY.with(trigger(1, WINDOW_CONTENT_CHANGED, "com.game"));
+        for (long t = 0; t <= 500; t += 50) {
+            assertTrue(set.onEvent(WINDOW_CONTENT_CHANGED, "com.game", t));
+        }
+        assertEquals(800, set.nextDeadline());
+        assertNull(set.takeDue(799));
+
+        assertEquals(1, set.takeDue(800).id);
+        assertNull(set.takeDue(800));
+        assertEquals(Long.MAX_VALUE, set.nextDeadline());
+    }
+
+    @Test
+    public void steadyStreamStillFiresAtTheMaximumWait() {
+        TriggerSet set = TriggerSet.EMPTY.with(trigger(1, WINDOW_CONTENT_CHANGED, null));
+        for (long t = 0; t < 2000; t += 100) {
+            set.onEvent(WINDOW_CONTENT_CHANGED, "any.app", t);
+        }
+        assertEquals(2000, set.nextDeadline());
+        assertNotNull(set.takeDue(2000));
+    }
+
+    @Test
+    public void eventsOfOtherTypesOrPackagesAreIgnored() {
+        TriggerSet set = TriggerSet.EMPTY
+                .with(trigger(1, WINDOW_STATE_CHANGED, "com.game"))
+                .with(trigger(2, WINDOW_STATE_CHANGED | WINDOW_CONTENT_CHANGED, "com.other"));
+        assertEquals(WINDOW_STATE_CHANGED | WINDOW_CONTENT_CHANGED, set.eventTypes());
+
+        assertFalse(set.onEvent(VIEW_CLICKED, "com.game", 0));
+        assertFalse(set.onEvent(WINDOW_CONTENT_CHANGED, "com.game", 0));
+        assertFalse(set.onEvent(WINDOW_STATE_CHANGED, null, 0));
+        assertEquals(Long.MAX_VALUE, set.nextDeadline());
+
+        // Compared by content, not identity
+        assertTrue(set.onEvent(WINDOW_STATE_CHANGED, new StringBuilder("com.game"), 0));
+        assertEquals(1, set.takeDue(300).id);
+    }
+
+    @Test
+    public void replacingAndRemovingTriggersById() {
+        TriggerSet set = TriggerSet.EMPTY
+                .with(trigger(1, WINDOW_STATE_CHANGED, null))
+                .with(trigger(2, WINDOW_STATE_CHANGED, null))
+                .with(trigger(1, WINDOW_CONTENT_CHANGED, null));
+        assertEquals(2, set.size());
+        assertEquals(2, set.get(0).id);
+
+        set = set.without(2);
+        assertEquals(1, set.size());
+        assertSame(set, set.without(5));
+        assertTrue(set.without(1).isEmpty());
+    }
+
+    @Test
+    public void subscriptionCoversExactlyWhatTheTriggersNeed() {
+        assertEquals(0, TriggerSet.EMPTY.eventTypes());
+        assertEquals(0, TriggerSet.EMPTY.packageNames().length);
+
+        TriggerSet game = TriggerSet.EMPTY
+                .with(trigger(1, WINDOW_STATE_CHANGED, "com.game"))
+                .with(trigger(2, WINDOW_CONTENT_CHANGED, "com.game"));
+        assertEquals(1, game.packageNames().length);
+        assertEquals("com.game", game.packageNames()[0]);
+
+        TriggerSet both = game.with(trigger(3, WINDOW_STATE_CHANGED, "com.other"));
+        assertEquals(2, both.packageNames().length);
+        assertFalse(both.subscribesLike(game));
+        // Same packages and types, armed in a different order
+        TriggerSet reordered = TriggerSet.EMPTY
+                .with(trigger(3, WINDOW_STATE_CHANGED, "com.other"))
+                .with(trigger(2, WINDOW_CONTENT_CHANGED | WINDOW_STATE_CHANGED, "com.game"));
+        assertTrue(both.subscribesLike(reordered));
+
+        // One trigger on any package widens the whole subscription
+        TriggerSet any = both.with(trigger(4, VIEW_CLICKED, null));
+        assertNull(any.packageNames());
+        assertFalse(any.subscribesLike(both));
+        assertTrue(any.without(4).subscribesLike(both));
+    }
+
+    @Test
+    public void bareViewIdIsResolvedAgainstThePackage() {
+        EventTrigger trigger = new EventTrigger(1, EventTrigger.ANY_EVENT_TYPE, "com.game", "", "collect", 0, 0);
+        assertEquals("com.game:id/collect", trigger.viewId);
+        assertNull(trigger.text);
+        assertTrue(trigger.hasNodeCondition());
+
+        EventTrigger any = new EventTrigger(2, EventTrigger.ANY_EVENT_TYPE, null, null, "other:id/ok", 0, 0);
+        assertEquals("other:id/ok", any.viewId);
+        assertFalse(new EventTrigger(3, VIEW_CLICKED, null, null, null, 0, 0).hasNodeCondition());
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.floatingtap.engine;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Virtual-time stand-in for the device: a clock that only moves when {@link #runUntil} says
+ * so, a task queue ordered by deadline, and a gesture "system" that reports each gesture
+ * complete a fixed latency after its strokes end. Lets tests and benchmarks drive a
+ * {@link TapEngine} through minutes of playback in milliseconds, deterministically.
+ */
+public final class SimulatedTapHost implements TapClock, TapDispatcher<SimulatedTapHost.Gesture> {
+
+    /** What the simulation needs to know about a gesture: how many taps and how long. */
+    public static final class Gesture {
+        public final int taps;
+        public final long duration;
+
+        public Gesture(int taps, long duration) {
+            this.taps = taps;
+            this.duration = duration;
+        }
+    }
+
+    /** Builds simulated gestures the way the service builds GestureDescriptions. */
+    public static TapSchedule.GestureFactory<Gesture> gestureFactory(final long tapDuration) {
+        return new TapSchedule.GestureFactory<Gesture>() {
+            @Override
+            public Gesture create(int[] xs, int[] ys, long[] offsets, int from, int to) {
+                return new Gesture(to - from, offsets[to - 1] - offsets[from] + tapDuration);
+            }
+        };
+    }
+
+    /** Builds simulated stroke segments; a stroke's tap is counted on its last segment. */
+    public static TapSchedule.SegmentFactory<Gesture> segmentFactory() {
+        return new TapSchedule.SegmentFactory<Gesture>() {
+            @Override
+            public Gesture createSegment(StrokeSegments stroke, int segment, long duration, boolean continued) {
+                return new Gesture(segment == stroke.segmentCount() - 1 ? 1 : 0, duration);
+            }
+
+            @Override
+            public Gesture createRelease(StrokeSegments stroke, int segment) {
+                return new Gesture(0, 1);
+            }
+        };
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final Runnable runnable;
+        final long time;
+        final long sequence; // Keeps tasks posted for the same time in FIFO order, like a looper
+
+        Task(Runnable runnable, long time, long sequence) {
+            this.runnable = runnable;
+            this.time = time;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private final long completionLatencyMs;
+    private TapEngine<Gesture> engine;
+    private long now;
+    private long sequence;
+
+    /**
+     * @param startTime           initial clock reading
+     * @param completionLatencyMs delay between a gesture's last stroke ending and its callback
+     */
+    public SimulatedTapHost(long startTime, long completionLatencyMs) {
+        this.now = startTime;
+        this.completionLatencyMs = completionLatencyMs;
+    }
+
+    /** Completion callbacks go to {@code engine}; call once, before the first dispatch. */
+    public void attach(TapEngine<Gesture> engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public long nowMillis() {
+        return now;
+    }
+
+    @Override
+    public void dispatch(final Gesture gesture) {
+        postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                engine.onGestureFinished(true);
+            }
+        }, now + gesture.duration + completionLatencyMs);
+    }
+
+    @Override
+    public void postAtTime(Runnable task, long timeMillis) {
+        queue.add(new Task(task, Math.max(timeMillis, now), sequence++));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        Iterator<Task> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().runnable == task) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Runs every task due up to {@code time}, advancing the clock to each, then to {@code time}. */
+    public void runUntil(long time) {
+        while (!queue.isEmpty() && queue.peek().time <= time) {
+            Task task = queue.poll();
+            now = task.time;
+            task.runnable.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    public int pendingTasks() {
+        return queue.size();
+    }
+}